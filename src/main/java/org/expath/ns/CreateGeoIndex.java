@@ -0,0 +1,47 @@
+package org.expath.ns;
+
+import java.io.*;
+
+import org.basex.core.*;
+import org.basex.data.*;
+import org.basex.query.*;
+
+/**
+ * Command that builds the spatial index of the currently opened database.
+ * Optionally, index options can be specified (see {@link GeoIndexOptions}).
+ * The command is meant for Java clients, which execute it on their context
+ * ({@code new CreateGeoIndex().execute(context)}): the command parser of BaseX
+ * cannot be extended by this project, so the command has no textual syntax.
+ * In queries, the {@code create-index} function of the index modules can be used.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class CreateGeoIndex extends Command {
+  /**
+   * Default constructor.
+   */
+  public CreateGeoIndex() {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * @param options index options (may be {@code null})
+   */
+  public CreateGeoIndex(final String options) {
+    super(Perm.WRITE, true, options);
+  }
+
+  @Override
+  protected boolean run() throws IOException {
+    try {
+      final Data data = context.data();
+      final GeoIndexOptions opts = GeoIndexOptions.parse(args[0]);
+      final int size = new GeoIndexBuilder(data, true, opts).build();
+      return info("Spatial index created: % geometries.", size);
+    } catch(final QueryException ex) {
+      return error(ex.getMessage());
+    }
+  }
+}
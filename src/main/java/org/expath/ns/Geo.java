@@ -2,21 +2,20 @@ package org.expath.ns;
 
 import static org.basex.util.Token.*;
 
-import java.io.*;
 import java.util.*;
 
 import org.basex.*;
-import org.basex.build.*;
-import org.basex.build.xml.*;
-import org.basex.io.*;
 import org.basex.query.*;
+import org.basex.query.iter.*;
 import org.basex.query.util.*;
+import org.basex.query.value.*;
 import org.basex.query.value.item.*;
 import org.basex.query.value.node.*;
 import org.basex.query.value.type.*;
 import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.*;
 import com.vividsolutions.jts.io.*;
-import com.vividsolutions.jts.io.gml2.*;
+import com.vividsolutions.jts.operation.union.*;
 
 /**
  * This module contains geo spatial functions for the Geo module.
@@ -44,14 +43,31 @@ public class Geo extends QueryModule {
   private static final QNm Q_GML_MULTIPOLYGON = QNm.get(GML, "MultiPolygon", URI);
   /** QName gml:MultiLineString. */
   private static final QNm Q_GML_MULTILINESTRING = QNm.get(GML, "MultiLineString", URI);
-
+  /** QName gml:Curve. */
+  private static final QNm Q_GML_CURVE = QNm.get(GML, "Curve", URI);
+  /** QName gml:Surface. */
+  private static final QNm Q_GML_SURFACE = QNm.get(GML, "Surface", URI);
+  /** QName gml:MultiCurve. */
+  private static final QNm Q_GML_MULTICURVE = QNm.get(GML, "MultiCurve", URI);
+  /** QName gml:MultiSurface. */
+  private static final QNm Q_GML_MULTISURFACE = QNm.get(GML, "MultiSurface", URI);
+
+  /** Geometry factory for aggregated geometries. */
+  private static final GeometryFactory FACTORY = new GeometryFactory();
   /** Array containing all QNames. */
   private static final QNm[] QNAMES = {
     Q_GML_POINT, Q_GML_LINESTRING, Q_GML_POLYGON, Q_GML_MULTIPOINT,
-    Q_GML_MULTILINESTRING, Q_GML_MULTIPOLYGON, Q_GML_LINEARRING
+    Q_GML_MULTILINESTRING, Q_GML_MULTIPOLYGON, Q_GML_LINEARRING, Q_GML_CURVE,
+    Q_GML_SURFACE, Q_GML_MULTICURVE, Q_GML_MULTISURFACE
   };
-  /** Cashing map. */
-  static IdentityHashMap<ANode, Geometry> nodes = new IdentityHashMap<ANode, Geometry>();
+  /** Node of the prepared geometry. */
+  private ANode prepNode;
+  /** Prepared geometry. */
+  private PreparedGeometry prepared;
+  /** First node of the last predicate call. */
+  private ANode last1;
+  /** Second node of the last predicate call. */
+  private ANode last2;
 
   /**
    * Returns the dimension of an item.
@@ -164,13 +180,10 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln equals(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).equals(nodes.get(node2)));
+    return Bln.get(geo1.equals(geo2));
   }
 
   /**
@@ -196,12 +209,12 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln intersects(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
-    boolean b = nodes.get(node1).intersects(nodes.get(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
+    final int side = prepare(node1, node2, geo1, geo2);
+    boolean b = side == 1 ? prepared.intersects(geo2) :
+      side == 2 ? prepared.intersects(geo1) :
+      geo1.intersects(geo2);
     return Bln.get(b);
   }
 
@@ -214,13 +227,10 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln touches(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).touches(nodes.get(node2)));
+    return Bln.get(geo1.touches(geo2));
   }
 
   /**
@@ -232,13 +242,10 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln crosses(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).crosses(nodes.get(node2)));
+    return Bln.get(geo1.crosses(geo2));
   }
 
   /**
@@ -250,13 +257,13 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln within(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).within(nodes.get(node2)));
+    final int side = prepare(node1, node2, geo1, geo2);
+    return Bln.get(side == 1 ? prepared.within(geo2) :
+      side == 2 ? prepared.contains(geo1) :
+      geo1.within(geo2));
   }
 
   /**
@@ -270,13 +277,13 @@ public class Geo extends QueryModule {
   @Deterministic
   public Bln contains(final ANode node1, final ANode node2) throws QueryException {
 
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).contains(nodes.get(node2)));
+    final int side = prepare(node1, node2, geo1, geo2);
+    return Bln.get(side == 1 ? prepared.contains(geo2) :
+      side == 2 ? prepared.within(geo1) :
+      geo1.contains(geo2));
   }
 
   /**
@@ -288,13 +295,10 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln overlaps(final ANode node1, final ANode node2) throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).overlaps(nodes.get(node2)));
+    return Bln.get(geo1.overlaps(geo2));
   }
 
   /**
@@ -310,13 +314,10 @@ public class Geo extends QueryModule {
   @Deterministic
   public Bln relate(final ANode node1, final ANode node2, final Str intersectionMatrix)
       throws QueryException {
-    if (!nodes.containsKey(node1))
-      nodes.put(node1, checkGeo(node1));
-
-    if (!nodes.containsKey(node2))
-      nodes.put(node2, checkGeo(node2));
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
 
-    return Bln.get(nodes.get(node1).relate(nodes.get(node2),
+    return Bln.get(geo1.relate(geo2,
         intersectionMatrix.toJava()));
   }
 
@@ -324,6 +325,11 @@ public class Geo extends QueryModule {
    * Returns the shortest distance in the units of the spatial reference system
    * of geometry, between the geometries.
    * The distance is the distance between a point on each of the geometries.
+   * The reference systems are specified by the {@code srsName} attributes of the
+   * geometries (see {@link GeoCrs}): the distance between geographic geometries is
+   * the geodesic distance in meters. If the systems differ, the geometries are
+   * compared in the geographic system if one of them is geographic, and otherwise
+   * in the system of the first geometry.
    * @param node1 xml element containing gml object(s)
    * @param node2 xml element containing gml object(s)
    * @return distance double value
@@ -333,13 +339,16 @@ public class Geo extends QueryModule {
   public Dbl distance(final ANode node1, final ANode node2) throws QueryException {
     final Geometry geo1 = checkGeo(node1);
     final Geometry geo2 = checkGeo(node2);
-    return Dbl.get(geo1.distance(geo2));
+    final GeoCrs crs1 = GeoCrs.get(node1), crs2 = GeoCrs.get(node2);
+    final GeoCrs crs = crs2.geographic() || crs1 == GeoCrs.PLANAR ? crs2 : crs1;
+    return Dbl.get(crs.distance(crs1.transform(geo1, crs), crs2.transform(geo2, crs)));
   }
 
   /**
    * Returns a polygon that represents all Points whose distance from this
    * geometric object is less than or equal to distance.
    * The returned element must be either gml:Polygon, gml:LineString or gml:Point.
+   * The distance of geographic geometries is given in meters (see {@link GeoCrs}).
    * @param node xml element containing gml object(s)
    * @param distance specific distance from the $geometry (the buffer width)
    * @return buffer geometry as gml element
@@ -347,7 +356,21 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public ANode buffer(final ANode node, final Dbl distance) throws QueryException {
-    return gmlWriter(checkGeo(node).buffer(distance.dbl()));
+    return gmlWriter(GeoCrs.get(node).buffer(checkGeo(node), distance.dbl()));
+  }
+
+  /**
+   * Returns the buffer of a geometry in the specified output format.
+   * @param node xml element containing gml object(s)
+   * @param distance specific distance from the $geometry (the buffer width)
+   * @param format output format ({@code gml}, {@code wkt} or {@code wkb})
+   * @return buffer geometry
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public Item buffer(final ANode node, final Dbl distance, final Str format)
+      throws QueryException {
+    return write(GeoCrs.get(node).buffer(checkGeo(node), distance.dbl()), format);
   }
 
   /**
@@ -362,6 +385,18 @@ public class Geo extends QueryModule {
     return gmlWriter(checkGeo(node).convexHull());
   }
 
+  /**
+   * Returns the convex hull geometry of a geometry in the specified output format.
+   * @param node xml element containing gml object(s)
+   * @param format output format ({@code gml}, {@code wkt} or {@code wkb})
+   * @return convex hull geometry
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public Item convexHull(final ANode node, final Str format) throws QueryException {
+    return write(checkGeo(node).convexHull(), format);
+  }
+
   /**
    * Returns a geometric object representing the Point set intersection of two geometries.
    * @param node1 xml element containing gml object(s)
@@ -376,6 +411,22 @@ public class Geo extends QueryModule {
     return gmlWriter(geo1.intersection(geo2));
   }
 
+  /**
+   * Returns the intersection of two geometries in the specified output format.
+   * @param node1 xml element containing gml object(s)
+   * @param node2 xml element containing gml object(s)
+   * @param format output format ({@code gml}, {@code wkt} or {@code wkb})
+   * @return intersection geometry
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public Item intersection(final ANode node1, final ANode node2, final Str format)
+      throws QueryException {
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
+    return write(geo1.intersection(geo2), format);
+  }
+
   /**
    * Returns a geometric object that represents the Point set union of two geometries.
    * @param node1 xml element containing gml object(s)
@@ -390,6 +441,22 @@ public class Geo extends QueryModule {
     return gmlWriter(geo1.union(geo2));
   }
 
+  /**
+   * Returns the union of two geometries in the specified output format.
+   * @param node1 xml element containing gml object(s)
+   * @param node2 xml element containing gml object(s)
+   * @param format output format ({@code gml}, {@code wkt} or {@code wkb})
+   * @return union geometry
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public Item union(final ANode node1, final ANode node2, final Str format)
+      throws QueryException {
+    final Geometry geo1 = checkGeo(node1);
+    final Geometry geo2 = checkGeo(node2);
+    return write(geo1.union(geo2), format);
+  }
+
   /**
    * Returns a geometric object that represents the
    * Point set difference of two geometries.
@@ -420,6 +487,57 @@ public class Geo extends QueryModule {
     return gmlWriter(geo1.symDifference(geo2));
   }
 
+  /**
+   * Returns the union of all geometries of a sequence. The union is computed in a
+   * single cascaded operation, which is much faster than a pairwise union of the
+   * geometries.
+   * @param nodes xml elements containing gml object(s)
+   * @return union geometry as a gml element
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public ANode unionAll(final Value nodes) throws QueryException {
+    return gmlWriter(UnaryUnionOp.union(checkGeos(nodes), FACTORY));
+  }
+
+  /**
+   * Returns the envelope of all geometries of a sequence.
+   * @param nodes xml elements containing gml object(s)
+   * @return envelope geometry as a gml element
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public ANode extent(final Value nodes) throws QueryException {
+    final Envelope env = new Envelope();
+    for(final Geometry geo : checkGeos(nodes)) {
+      env.expandToInclude(geo.getEnvelopeInternal());
+    }
+    return gmlWriter(FACTORY.toGeometry(env));
+  }
+
+  /**
+   * Collects all geometries of a sequence in a single multi geometry. A
+   * gml:MultiGeometry element is returned if the geometries have different types.
+   * @param nodes xml elements containing gml object(s)
+   * @return collection as a gml element
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public ANode collect(final Value nodes) throws QueryException {
+    return gmlWriter(FACTORY.buildGeometry(checkGeos(nodes)));
+  }
+
+  /**
+   * Returns the convex hull of all geometries of a sequence.
+   * @param nodes xml elements containing gml object(s)
+   * @return convex hull geometry as a gml element
+   * @throws QueryException query exception
+   */
+  @Deterministic
+  public ANode convexHullAll(final Value nodes) throws QueryException {
+    return gmlWriter(FACTORY.buildGeometry(checkGeos(nodes)).convexHull());
+  }
+
   /**
    * Returns number of geometries in a geometry collection,
    * or 1 if the input is not a collection.
@@ -513,7 +631,7 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public ANode startPoint(final ANode node) throws QueryException {
-    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING);
+    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING, Q_GML_CURVE);
     if(geo == null && checkGeo(node) != null)
       throw GeoErrors.geoType(node.qname().local(), "Line");
 
@@ -530,7 +648,7 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public ANode endPoint(final ANode node) throws QueryException {
-    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING);
+    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING, Q_GML_CURVE);
     if(geo == null && checkGeo(node) != null)
       throw GeoErrors.geoType(node.qname().local(), "Line");
 
@@ -548,8 +666,8 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln isClosed(final ANode node) throws QueryException {
-    final Geometry geo = geo(node,
-        Q_GML_LINEARRING, Q_GML_LINESTRING, Q_GML_MULTILINESTRING);
+    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING,
+        Q_GML_MULTILINESTRING, Q_GML_CURVE, Q_GML_MULTICURVE);
     if(geo == null && checkGeo(node) != null)
       throw GeoErrors.geoType(node.qname().local(), "Line");
 
@@ -568,7 +686,7 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public Bln isRing(final ANode node) throws QueryException {
-    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING);
+    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING, Q_GML_CURVE);
     if(geo == null && checkGeo(node) != null)
       throw GeoErrors.geoType(node.qname().local(), "Line");
 
@@ -597,7 +715,7 @@ public class Geo extends QueryModule {
    */
   @Deterministic
   public ANode pointN(final ANode node, final Int number) throws QueryException {
-    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING);
+    final Geometry geo = geo(node, Q_GML_LINEARRING, Q_GML_LINESTRING, Q_GML_CURVE);
     if(geo == null && checkGeo(node) != null)
       throw GeoErrors.geoType(node.qname().local(), "Line");
 
@@ -696,6 +814,44 @@ public class Geo extends QueryModule {
 
   // PRIVATE METHODS (hidden from user of module) ========================================
 
+  /**
+   * Chooses the argument of a binary predicate whose geometry is prepared.
+   * A geometry is prepared if its node is passed on in two successive calls,
+   * e.g. if it is constant in a FLWOR loop, and it is reused as long as its node
+   * is passed on.
+   * @param node1 first node
+   * @param node2 second node
+   * @param geo1 geometry of the first node
+   * @param geo2 geometry of the second node
+   * @return {@code 1} or {@code 2} if the geometry of the first or second node
+   *   has been prepared, or {@code 0}
+   */
+  private int prepare(final ANode node1, final ANode node2, final Geometry geo1,
+      final Geometry geo2) {
+    int side = same(prepNode, node1) ? 1 : same(prepNode, node2) ? 2 : 0;
+    if(side == 0) {
+      side = same(last1, node1) || same(last2, node1) ? 1 :
+        same(last1, node2) || same(last2, node2) ? 2 : 0;
+      if(side != 0) {
+        prepNode = side == 1 ? node1 : node2;
+        prepared = PreparedGeometryFactory.prepare(side == 1 ? geo1 : geo2);
+      }
+    }
+    last1 = node1;
+    last2 = node2;
+    return side;
+  }
+
+  /**
+   * Checks if two nodes are identical.
+   * @param node1 first node (may be {@code null})
+   * @param node2 second node
+   * @return result of check
+   */
+  private static boolean same(final ANode node1, final ANode node2) {
+    return node1 != null && (node1 == node2 || node1.is(node2));
+  }
+
   /**
    * Reads an element as a gml node. Returns a geometry element
    * or throws an exception if the element is of the wrong type.
@@ -709,6 +865,22 @@ public class Geo extends QueryModule {
     return geo;
   }
 
+  /**
+   * Reads the geometries of all nodes of a sequence.
+   * @param nodes xml nodes containing gml object(s)
+   * @return geometries
+   * @throws QueryException query exception
+   */
+  private ArrayList<Geometry> checkGeos(final Value nodes) throws QueryException {
+    final ArrayList<Geometry> geos = new ArrayList<Geometry>((int) nodes.size());
+    final Iter iter = nodes.iter();
+    for(Item it; (it = iter.next()) != null;) {
+      if(!(it instanceof ANode)) Err.FUNCMP.thrw(null, this, NodeType.ELM, it.type);
+      geos.add(checkGeo((ANode) it));
+    }
+    return geos;
+  }
+
   /**
    * Reads an element as a gml node. Returns a geometry element
    * or {@code null} if the element does not match one of the specified types.
@@ -722,12 +894,15 @@ public class Geo extends QueryModule {
       Err.FUNCMP.thrw(null, this, NodeType.ELM, node.type);
     final QNm qname = node.qname();
     for(final QNm geo : names) {
-      if(!qname.eq(geo)) continue;
+      if(!GmlReader.is(qname, geo)) continue;
     // type found... create reader and geometry element
+      Geometry geometry = GeoCache.get(node);
+      if(geometry != null) return geometry;
       try {
         final GmlReader bxGmlReader = new GmlReader();
-        return bxGmlReader.createGeometry(node);
-
+        geometry = bxGmlReader.createGeometry(node);
+        GeoCache.put(node, geometry);
+        return geometry;
       } catch (QueryException qe) {
         throw qe;
       } catch (final Throwable e) {
@@ -738,29 +913,29 @@ public class Geo extends QueryModule {
   }
 
   /**
-   * Writes an geometry and returns a string representation of the geometry.
+   * Writes a geometry as gml element.
    * @param geometry geometry
-   * @return DBNode database node
+   * @return element
    * @throws QueryException exception
    */
-  private DBNode gmlWriter(final Geometry geometry) throws QueryException {
-    String geo;
-    try {
-      // write geometry and add namespace declaration
-      geo = new GMLWriter().write(geometry).replaceAll(
-          "^<gml:(.*?)>", "<gml:$1 xmlns:gml='" + string(URI) + "'>");
-    } catch(final Exception ex) {
-      throw GeoErrors.gmlWriterErr(ex);
-    }
-
-    try {
-      final IO io = new IOContent(geo);
-      return new DBNode(MemBuilder.build(new XMLParser(io, context.context.prop)));
-
+  private ANode gmlWriter(final Geometry geometry) throws QueryException {
+    return new GmlWriter().createElement(geometry);
+  }
 
-    } catch(final IOException ex) {
-      throw Err.IOERR.thrw(null, ex);
-    }
+  /**
+   * Writes a geometry in the specified format ({@code gml}, {@code wkt} or
+   * {@code wkb}).
+   * @param geometry geometry
+   * @param format output format
+   * @return gml element, WKT string or WKB binary
+   * @throws QueryException exception
+   */
+  private Item write(final Geometry geometry, final Str format) throws QueryException {
+    final String f = string(format.string());
+    if(f.equals("gml")) return gmlWriter(geometry);
+    if(f.equals("wkt")) return Str.get(new WKTWriter().write(geometry));
+    if(f.equals("wkb")) return new B64(new WKBWriter().write(geometry));
+    throw GeoErrors.unknownFormat(f);
   }
 
   /**
@@ -0,0 +1,147 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.basex.io.*;
+
+/**
+ * This class provides read access to a file that is mapped into memory in segments.
+ * Files are addressed with long offsets, so that their size is not limited by the
+ * maximum size of a single mapped buffer (2 GB). Each segment is mapped with the
+ * first bytes of the following segment, so that every value of up to eight bytes
+ * can be read from a single segment, no matter if it is aligned.
+ * Byte arrays that are built in main memory are wrapped in a single segment.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoBuffer {
+  /** Number of bits of the default segment size (1 GB). */
+  static final int SEGMENT = 30;
+  /** Number of bytes by which each segment overlaps with the following one. */
+  private static final int OVERLAP = 8;
+
+  /** Segments. */
+  private final ByteBuffer[] segments;
+  /** Number of bits of the segment size. */
+  private final int shift;
+  /** Mask for the offsets within a segment. */
+  private final long mask;
+  /** Size of the file. */
+  private final long size;
+
+  /**
+   * Constructor.
+   * @param sgm segments
+   * @param sh number of bits of the segment size
+   * @param sz size of the file
+   */
+  private GeoBuffer(final ByteBuffer[] sgm, final int sh, final long sz) {
+    segments = sgm;
+    shift = sh;
+    mask = (1L << sh) - 1;
+    size = sz;
+  }
+
+  /**
+   * Maps the specified file into memory.
+   * @param file file
+   * @param segment number of bits of the segment size (between {@code 3} and
+   *   {@link #SEGMENT})
+   * @return buffer
+   * @throws IOException I/O exception
+   */
+  static GeoBuffer map(final IOFile file, final int segment) throws IOException {
+    if(segment < 3 || segment > SEGMENT)
+      throw new IllegalArgumentException("Invalid segment size: " + segment);
+    final RandomAccessFile raf = new RandomAccessFile(file.file(), "r");
+    try {
+      final FileChannel fc = raf.getChannel();
+      final long sz = fc.size();
+      final int n = (int) (sz + (1L << segment) - 1 >>> segment);
+      final ByteBuffer[] sgm = new ByteBuffer[n];
+      for(int s = 0; s < n; s++) {
+        final long start = (long) s << segment;
+        // the mappings remain valid after the file has been closed
+        sgm[s] = fc.map(MapMode.READ_ONLY, start,
+            Math.min(sz - start, (1L << segment) + OVERLAP));
+      }
+      return new GeoBuffer(sgm, segment, sz);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Wraps the specified bytes.
+   * @param bytes bytes
+   * @return buffer
+   */
+  static GeoBuffer wrap(final byte[] bytes) {
+    return new GeoBuffer(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, 31, bytes.length);
+  }
+
+  /**
+   * Returns the size of the file.
+   * @return number of bytes
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of segments.
+   * @return number of segments
+   */
+  int segments() {
+    return segments.length;
+  }
+
+  /**
+   * Reads an integer.
+   * @param off offset
+   * @return value
+   */
+  int getInt(final long off) {
+    return segments[(int) (off >>> shift)].getInt((int) (off & mask));
+  }
+
+  /**
+   * Reads a long.
+   * @param off offset
+   * @return value
+   */
+  long getLong(final long off) {
+    return segments[(int) (off >>> shift)].getLong((int) (off & mask));
+  }
+
+  /**
+   * Reads a double.
+   * @param off offset
+   * @return value
+   */
+  double getDouble(final long off) {
+    return segments[(int) (off >>> shift)].getDouble((int) (off & mask));
+  }
+
+  /**
+   * Reads bytes, which may span several segments.
+   * @param off offset
+   * @param bytes array to be filled
+   */
+  void get(final long off, final byte[] bytes) {
+    long o = off;
+    for(int b = 0; b < bytes.length;) {
+      // duplicate the segment, as its position is not thread-safe
+      final ByteBuffer bb = segments[(int) (o >>> shift)].duplicate();
+      final int p = (int) (o & mask), n = Math.min(bytes.length - b, bb.capacity() - p);
+      bb.position(p);
+      bb.get(bytes, b, n);
+      b += n;
+      o += n;
+    }
+  }
+}
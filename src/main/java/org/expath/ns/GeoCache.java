@@ -0,0 +1,176 @@
+package org.expath.ns;
+
+import java.lang.ref.*;
+import java.util.*;
+
+import org.basex.data.*;
+import org.basex.query.value.node.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class caches the geometries of the nodes that are passed on to the functions
+ * of the geo module, so that geometries that are repeatedly used, e.g. in joins,
+ * are parsed only once. Database nodes are identified by their database and
+ * pre value, and main-memory nodes by their identity. Both the databases and the
+ * main-memory nodes are weakly referenced, and the least recently used geometries
+ * are evicted if the maximum number of geometries is exceeded.
+ * The geometries of database nodes are discarded if the database has been updated,
+ * including updates that only replace values (see {@link GeoStamp}).
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoCache {
+  /** Maximum number of cached geometries (can be set via system property). */
+  private static final int MAX = Integer.getInteger("org.basex.geo.geometries", 10000);
+  /** Cached geometries, in the order of their last access. */
+  private static final LinkedHashMap<Key, Geometry> CACHE =
+      new LinkedHashMap<Key, Geometry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Geometry> eldest) {
+          return size() > MAX;
+        }
+      };
+  /** Keys whose databases or nodes have been garbage-collected. */
+  private static final ReferenceQueue<Object> CLEARED = new ReferenceQueue<Object>();
+  /** Number of cache hits. */
+  private static long hits;
+  /** Number of cache misses. */
+  private static long misses;
+
+  /** Private constructor, preventing instantiation. */
+  private GeoCache() { }
+
+  /**
+   * Returns the cached geometry of a node.
+   * @param node node
+   * @return geometry, or {@code null} if the geometry is not cached
+   */
+  public static Geometry get(final ANode node) {
+    final Key key = key(node, null);
+    synchronized(CACHE) {
+      final Geometry geo = CACHE.get(key);
+      if(geo == null) misses++;
+      else hits++;
+      return geo;
+    }
+  }
+
+  /**
+   * Caches the geometry of a node.
+   * @param node node
+   * @param geo geometry
+   */
+  public static void put(final ANode node, final Geometry geo) {
+    final Key key = key(node, CLEARED);
+    synchronized(CACHE) {
+      for(Reference<?> ref; (ref = CLEARED.poll()) != null;) CACHE.remove(ref);
+      CACHE.put(key, geo);
+    }
+  }
+
+  /**
+   * Returns the number of cached geometries.
+   * @return number of geometries
+   */
+  public static int size() {
+    synchronized(CACHE) {
+      return CACHE.size();
+    }
+  }
+
+  /**
+   * Returns the number of cache hits.
+   * @return number of hits
+   */
+  public static long hits() {
+    synchronized(CACHE) {
+      return hits;
+    }
+  }
+
+  /**
+   * Returns the number of cache misses.
+   * @return number of misses
+   */
+  public static long misses() {
+    synchronized(CACHE) {
+      return misses;
+    }
+  }
+
+  /**
+   * Discards all geometries and resets the counters.
+   */
+  public static void clear() {
+    synchronized(CACHE) {
+      CACHE.clear();
+      while(CLEARED.poll() != null);
+      hits = 0;
+      misses = 0;
+    }
+  }
+
+  /**
+   * Creates the key of a node.
+   * @param node node
+   * @param queue queue for cleared keys ({@code null} for keys that are only
+   *   used for lookups)
+   * @return key
+   */
+  private static Key key(final ANode node, final ReferenceQueue<Object> queue) {
+    if(node instanceof DBNode) {
+      final DBNode dbn = (DBNode) node;
+      final Data data = dbn.data;
+      return new Key(data, dbn.pre, new GeoStamp(data), queue);
+    }
+    return new Key(node, -1, null, queue);
+  }
+
+  /**
+   * Cache key, which weakly references a database or a main-memory node.
+   * Keys are equal if they reference the same object, and keys whose object has
+   * been garbage-collected are only equal to themselves.
+   */
+  private static final class Key extends WeakReference<Object> {
+    /** Pre value ({@code -1} for main-memory nodes). */
+    private final int pre;
+    /** State of the database at caching time ({@code null} for main-memory
+     * nodes). */
+    private final GeoStamp stamp;
+    /** Hash code. */
+    private final int hash;
+
+    /**
+     * Constructor.
+     * @param ref database or main-memory node
+     * @param p pre value
+     * @param st state of the database (may be {@code null})
+     * @param queue reference queue (may be {@code null})
+     */
+    Key(final Object ref, final int p, final GeoStamp st,
+        final ReferenceQueue<Object> queue) {
+      super(ref, queue);
+      pre = p;
+      stamp = st;
+      hash = System.identityHashCode(ref) * 31 + p;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof Key)) return false;
+      final Key key = (Key) obj;
+      final Object ref = get();
+      if(ref == null || ref != key.get() || pre != key.pre) return false;
+      return stamp == null ? key.stamp == null : key.stamp != null &&
+          stamp.matches(key.stamp);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,544 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import java.util.*;
+
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.query.value.type.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.util.*;
+
+/**
+ * This class represents the coordinate reference system of geometries, which is
+ * specified by the {@code srsName} attribute of a GML element or one of its
+ * ancestors. Two kinds of systems are recognized:
+ * <ul>
+ *   <li> geographic systems ({@code EPSG:4326} and related datums, {@code CRS84}),
+ *        with longitudes and latitudes in degrees. The axis order is longitude,
+ *        latitude, except for URN and {@code http://www.opengis.net/def/crs/} names
+ *        of EPSG systems, which have the latitude as first axis. Distances are
+ *        geodesic distances in meters on a sphere with the mean earth radius, and
+ *        the segments of lines and polygons are regarded as great-circle arcs.</li>
+ *   <li> the spherical Web Mercator projection ({@code EPSG:3857} and its aliases),
+ *        with coordinates in meters.</li>
+ * </ul>
+ * All other geometries are planar, and their distances are given in the units of
+ * their coordinates. Geometries of different systems are transformed before they
+ * are compared. Both the parsed systems and the transformations between them are
+ * cached.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoCrs {
+  /** Mean earth radius in meters. */
+  static final double RADIUS = 6371008.8;
+  /** Radius of the sphere of the Web Mercator projection in meters. */
+  private static final double SPHERE = 6378137;
+  /** Maximum latitude of the Web Mercator projection. */
+  private static final double MAXLAT = 85.0511287798;
+  /** QName srsName. */
+  private static final QNm Q_SRSNAME = new QNm("srsName");
+  /** Codes of geographic systems. */
+  private static final int[] GEOGRAPHIC = { 4326, 4258, 4269 };
+  /** Codes of the Web Mercator projection. */
+  private static final int[] WEBMERCATOR = { 3857, 3785, 900913, 102100, 102113 };
+
+  /** Planar system. */
+  static final GeoCrs PLANAR = new GeoCrs(0, false);
+  /** Geographic system, with longitudes as x and latitudes as y coordinates. */
+  static final GeoCrs WGS84 = new GeoCrs(4326, false);
+  /** Geographic system, with latitudes as x and longitudes as y coordinates. */
+  static final GeoCrs WGS84_LATLON = new GeoCrs(4326, true);
+  /** Web Mercator projection. */
+  static final GeoCrs MERCATOR = new GeoCrs(3857, false);
+
+  /** Cached systems, indexed by their names. */
+  private static final HashMap<String, GeoCrs> SYSTEMS = new HashMap<String, GeoCrs>();
+  /** Cached transformations, indexed by the names of their source and target. */
+  private static final HashMap<String, Transform> TRANSFORMS =
+      new HashMap<String, Transform>();
+
+  /** EPSG code ({@code 0} for planar geometries). */
+  final int code;
+  /** Indicates if latitudes are the x coordinates. */
+  final boolean latlon;
+
+  /**
+   * Constructor.
+   * @param c EPSG code
+   * @param ll axis order
+   */
+  private GeoCrs(final int c, final boolean ll) {
+    code = c;
+    latlon = ll;
+  }
+
+  /**
+   * Returns the reference system of an element, which is specified by the
+   * {@code srsName} attribute of the element or one of its ancestors.
+   * @param node element
+   * @return reference system ({@link #PLANAR} if no system or an unknown system
+   *   is specified)
+   */
+  static GeoCrs get(final ANode node) {
+    for(ANode n = node; n != null; n = n.parent()) {
+      final byte[] srs = n.type == NodeType.ELM ? n.attribute(Q_SRSNAME) : null;
+      if(srs != null) return get(string(srs));
+    }
+    return PLANAR;
+  }
+
+  /**
+   * Returns the reference system with the specified name.
+   * @param name name of the system
+   * @return reference system ({@link #PLANAR} if the system is unknown)
+   */
+  static GeoCrs get(final String name) {
+    synchronized(SYSTEMS) {
+      GeoCrs crs = SYSTEMS.get(name);
+      if(crs == null) {
+        crs = parse(name);
+        SYSTEMS.put(name, crs);
+      }
+      return crs;
+    }
+  }
+
+  /**
+   * Indicates if this is a geographic system.
+   * @return result of check
+   */
+  boolean geographic() {
+    return code == WGS84.code;
+  }
+
+  /**
+   * Computes the distance between two geometries of this system. The distance
+   * between geographic geometries is the geodesic distance: it is {@code 0} if the
+   * geometries intersect (which is tested for their longitudes and latitudes), and
+   * otherwise the smallest distance between a vertex of one geometry and a point on a
+   * segment of the other geometry.
+   * @param geo1 first geometry
+   * @param geo2 second geometry
+   * @return distance
+   */
+  double distance(final Geometry geo1, final Geometry geo2) {
+    return geographic() ? geodesic(geo1, geo2, 0) : geo1.distance(geo2);
+  }
+
+  /**
+   * Checks if the distance between two geometries of this system is at most the
+   * specified distance (see {@link #distance(Geometry, Geometry)}). The vertices of
+   * geographic geometries are only visited until a close enough vertex is found.
+   * @param geo1 first geometry
+   * @param geo2 second geometry
+   * @param dist distance
+   * @return result of check
+   */
+  boolean within(final Geometry geo1, final Geometry geo2, final double dist) {
+    return geographic() ? geodesic(geo1, geo2, dist) <= dist :
+      geo1.isWithinDistance(geo2, dist);
+  }
+
+  /**
+   * Returns a lower bound for the distances between all geometries within the
+   * specified envelopes.
+   * @param env1 first envelope
+   * @param env2 second envelope
+   * @return distance
+   */
+  double bound(final Envelope env1, final Envelope env2) {
+    if(!geographic() || env1.isNull() || env2.isNull()) return env1.distance(env2);
+    final double dlat = gap(minLat(env1), maxLat(env1), minLat(env2), maxLat(env2));
+    // longitudes may be nearer across the antimeridian
+    final double span = Math.max(maxLon(env1), maxLon(env2)) -
+        Math.min(minLon(env1), minLon(env2));
+    final double dlon = Math.min(Math.max(0, 360 - span),
+        gap(minLon(env1), maxLon(env1), minLon(env2), maxLon(env2)));
+    // the cosines of all latitudes are at least the cosine of the largest latitude
+    final double lat = Math.min(90, Math.max(maxAbsLat(env1), maxAbsLat(env2)));
+    final double sp = Math.sin(Math.toRadians(dlat) / 2);
+    final double sl = Math.sin(Math.toRadians(dlon) / 2) * Math.cos(Math.toRadians(lat));
+    return 2 * RADIUS * Math.asin(Math.min(1, Math.sqrt(sp * sp + sl * sl)));
+  }
+
+  /**
+   * Returns an envelope that includes all geometries within the specified distance
+   * of the given envelope. In geographic systems, the distance is converted to
+   * latitude and longitude differences. The longitudes are not restricted if the
+   * search area includes a pole or crosses the antimeridian.
+   * @param env envelope
+   * @param dist distance
+   * @return envelope
+   */
+  Envelope expand(final Envelope env, final double dist) {
+    if(!geographic() || env.isNull()) return GeoPredicate.expand(env, dist);
+    final double r = dist / RADIUS;
+    if(r >= Math.PI) return GeoPredicate.ALL;
+    final double dlat = Math.toDegrees(r);
+    final double minlat = minLat(env) - dlat, maxlat = maxLat(env) + dlat;
+    final double lat = maxAbsLat(env);
+    double minlon = -Double.MAX_VALUE, maxlon = Double.MAX_VALUE;
+    if(lat + dlat < 90) {
+      // largest longitude difference of a circle around the largest latitude
+      final double s = Math.sin(r) / Math.cos(Math.toRadians(lat));
+      final double dlon = Math.toDegrees(Math.asin(Math.min(1, s)));
+      if(minLon(env) - dlon >= -180 && maxLon(env) + dlon <= 180) {
+        minlon = minLon(env) - dlon;
+        maxlon = maxLon(env) + dlon;
+      }
+    }
+    return latlon ? new Envelope(minlat, maxlat, minlon, maxlon) :
+      new Envelope(minlon, maxlon, minlat, maxlat);
+  }
+
+  /**
+   * Returns the buffer of a geometry of this system. In geographic systems, the
+   * distance is given in meters, and the buffer is computed in the Web Mercator
+   * projection, scaled to the latitude of the center of the geometry.
+   * @param geo geometry
+   * @param dist distance
+   * @return buffer
+   */
+  Geometry buffer(final Geometry geo, final double dist) {
+    if(!geographic() || geo.isEmpty()) return geo.buffer(dist);
+    final Envelope env = geo.getEnvelopeInternal();
+    final double lat = Math.min(MAXLAT, Math.abs(minLat(env) + maxLat(env)) / 2);
+    final double scale = SPHERE / RADIUS / Math.cos(Math.toRadians(lat));
+    return MERCATOR.transform(transform(geo, MERCATOR).buffer(dist * scale), this);
+  }
+
+  /**
+   * Transforms a geometry of this system to the specified system. The geometry is
+   * returned unchanged if one of the systems is planar.
+   * @param geo geometry
+   * @param crs target system
+   * @return transformed geometry
+   */
+  Geometry transform(final Geometry geo, final GeoCrs crs) {
+    if(this == crs || this == PLANAR || crs == PLANAR) return geo;
+    // cached geometries must not be changed
+    final Geometry g = (Geometry) geo.clone();
+    g.apply(transformation(crs));
+    g.geometryChanged();
+    return g;
+  }
+
+  /**
+   * Returns the transformation from this system to the specified system.
+   * @param crs target system
+   * @return transformation ({@code null} if the systems are equal or if one of them
+   *   is planar)
+   */
+  Transform transformation(final GeoCrs crs) {
+    if(this == crs || this == PLANAR || crs == PLANAR) return null;
+    final String key = this + ">" + crs;
+    synchronized(TRANSFORMS) {
+      Transform tr = TRANSFORMS.get(key);
+      if(tr == null) {
+        tr = new Transform(this, crs);
+        TRANSFORMS.put(key, tr);
+      }
+      return tr;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return code == 0 ? "planar" : "EPSG:" + code + (latlon ? " (lat/lon)" : "");
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Computes the geodesic distance between two geographic geometries.
+   * @param geo1 first geometry
+   * @param geo2 second geometry
+   * @param stop distance at which the computation may be stopped
+   * @return distance in meters, or any distance up to {@code stop} if the
+   *   distance is smaller
+   */
+  private double geodesic(final Geometry geo1, final Geometry geo2, final double stop) {
+    if(geo1.isEmpty() || geo2.isEmpty()) return 0;
+    if(geo1 instanceof Point && geo2 instanceof Point) {
+      return haversine(geo1.getCoordinate(), geo2.getCoordinate());
+    }
+    if(geo1.intersects(geo2)) return 0;
+    final ArrayList<double[]> parts1 = vectors(geo1), parts2 = vectors(geo2);
+    final double max = stop / RADIUS;
+    final double min = nearest(parts1, parts2, Math.PI, max);
+    return (min <= max ? min : nearest(parts2, parts1, min, max)) * RADIUS;
+  }
+
+  /**
+   * Returns the smallest angle between a vertex of the first geometry and a segment
+   * of the second geometry.
+   * @param parts1 parts of the first geometry
+   * @param parts2 parts of the second geometry
+   * @param min smallest angle found so far
+   * @param stop angle at which the search is stopped
+   * @return angle in radians
+   */
+  private static double nearest(final ArrayList<double[]> parts1,
+      final ArrayList<double[]> parts2, final double min, final double stop) {
+    double m = min;
+    for(final double[] vs : parts1) {
+      for(int v = 0; v < vs.length; v += 3) {
+        for(final double[] ss : parts2) {
+          if(ss.length == 3) {
+            m = Math.min(m, angle(vs, v, ss, 0));
+          } else {
+            for(int s = 3; s < ss.length; s += 3) m = Math.min(m, arc(vs, v, ss, s - 3));
+          }
+          if(m <= stop) return m;
+        }
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Returns the unit vectors of the coordinates of a geographic geometry. A vector
+   * array is returned for each point and each line or ring of the geometry.
+   * @param geo geometry
+   * @return arrays with the x, y and z components of the vectors
+   */
+  private ArrayList<double[]> vectors(final Geometry geo) {
+    final ArrayList<double[]> parts = new ArrayList<double[]>();
+    final ArrayList<Coordinate[]> coords = new ArrayList<Coordinate[]>();
+    for(final Object o : PointExtracter.getPoints(geo)) {
+      coords.add(((Point) o).getCoordinates());
+    }
+    for(final Object o : LinearComponentExtracter.getLines(geo)) {
+      coords.add(((LineString) o).getCoordinates());
+    }
+    for(final Coordinate[] cs : coords) {
+      final double[] vs = new double[cs.length * 3];
+      for(int c = 0; c < cs.length; c++) {
+        final double lat = Math.toRadians(latlon ? cs[c].x : cs[c].y);
+        final double lon = Math.toRadians(latlon ? cs[c].y : cs[c].x);
+        final double cl = Math.cos(lat);
+        vs[c * 3] = cl * Math.cos(lon);
+        vs[c * 3 + 1] = cl * Math.sin(lon);
+        vs[c * 3 + 2] = Math.sin(lat);
+      }
+      if(vs.length != 0) parts.add(vs);
+    }
+    return parts;
+  }
+
+  /**
+   * Returns the angle between two unit vectors.
+   * @param v1 components of the first vector
+   * @param o1 offset of the first vector
+   * @param v2 components of the second vector
+   * @param o2 offset of the second vector
+   * @return angle in radians
+   */
+  private static double angle(final double[] v1, final int o1, final double[] v2,
+      final int o2) {
+    final double x1 = v1[o1], y1 = v1[o1 + 1], z1 = v1[o1 + 2];
+    final double x2 = v2[o2], y2 = v2[o2 + 1], z2 = v2[o2 + 2];
+    final double cx = y1 * z2 - z1 * y2, cy = z1 * x2 - x1 * z2, cz = x1 * y2 - y1 * x2;
+    final double cos = x1 * x2 + y1 * y2 + z1 * z2;
+    return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), cos);
+  }
+
+  /**
+   * Returns the angle between a unit vector and a great-circle arc. If the foot
+   * of the vector on the great circle is not located on the arc, the angle to the
+   * nearer end of the arc is returned.
+   * @param p components of the vector
+   * @param o offset of the vector
+   * @param s components of the start and end of the arc
+   * @param a offset of the start of the arc
+   * @return angle in radians
+   */
+  private static double arc(final double[] p, final int o, final double[] s,
+      final int a) {
+    final double ax = s[a], ay = s[a + 1], az = s[a + 2];
+    final double bx = s[a + 3], by = s[a + 4], bz = s[a + 5];
+    // normal of the great circle
+    final double nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+    final double nn = Math.sqrt(nx * nx + ny * ny + nz * nz);
+    if(nn > 1e-15) {
+      final double px = p[o], py = p[o + 1], pz = p[o + 2];
+      final double sin = (px * nx + py * ny + pz * nz) / nn;
+      // foot of the vector, which lies on the arc if it is between its ends
+      final double fx = px - sin * nx / nn, fy = py - sin * ny / nn,
+          fz = pz - sin * nz / nn;
+      final double s1 = (ay * fz - az * fy) * nx + (az * fx - ax * fz) * ny +
+          (ax * fy - ay * fx) * nz;
+      final double s2 = (fy * bz - fz * by) * nx + (fz * bx - fx * bz) * ny +
+          (fx * by - fy * bx) * nz;
+      if(s1 >= 0 && s2 >= 0) {
+        final double f = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        return Math.atan2(Math.abs(sin), f);
+      }
+    }
+    return Math.min(angle(p, o, s, a), angle(p, o, s, a + 3));
+  }
+
+  /**
+   * Parses the name of a reference system.
+   * @param name name
+   * @return reference system
+   */
+  private static GeoCrs parse(final String name) {
+    final String n = name.trim().toUpperCase(Locale.ENGLISH);
+    if(n.endsWith("CRS84") || n.endsWith("CRS:84")) return WGS84;
+    int s = n.length();
+    while(s > 0 && Character.isDigit(n.charAt(s - 1))) s--;
+    if(s == n.length() || n.length() - s > 9 || !n.contains("EPSG")) return PLANAR;
+    final int c = Integer.parseInt(n.substring(s));
+    for(final int g : GEOGRAPHIC) {
+      if(c == g) {
+        return n.startsWith("URN:") || n.contains("/DEF/CRS/") ? WGS84_LATLON : WGS84;
+      }
+    }
+    for(final int m : WEBMERCATOR) if(c == m) return MERCATOR;
+    return PLANAR;
+  }
+
+  /**
+   * Computes the geodesic distance between two geographic coordinates.
+   * @param c1 first coordinate
+   * @param c2 second coordinate
+   * @return distance in meters
+   */
+  private double haversine(final Coordinate c1, final Coordinate c2) {
+    final double lat1 = Math.toRadians(latlon ? c1.x : c1.y);
+    final double lat2 = Math.toRadians(latlon ? c2.x : c2.y);
+    final double lon = Math.toRadians(latlon ? c2.y - c1.y : c2.x - c1.x);
+    final double sp = Math.sin((lat2 - lat1) / 2), sl = Math.sin(lon / 2);
+    final double h = sp * sp + Math.cos(lat1) * Math.cos(lat2) * sl * sl;
+    return 2 * RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+  }
+
+  /**
+   * Returns the gap between two intervals.
+   * @param min1 minimum of the first interval
+   * @param max1 maximum of the first interval
+   * @param min2 minimum of the second interval
+   * @param max2 maximum of the second interval
+   * @return gap ({@code 0} if the intervals intersect)
+   */
+  private static double gap(final double min1, final double max1, final double min2,
+      final double max2) {
+    return Math.max(0, Math.max(min2 - max1, min1 - max2));
+  }
+
+  /**
+   * Returns the minimum latitude of an envelope.
+   * @param env envelope
+   * @return latitude
+   */
+  private double minLat(final Envelope env) {
+    return latlon ? env.getMinX() : env.getMinY();
+  }
+
+  /**
+   * Returns the maximum latitude of an envelope.
+   * @param env envelope
+   * @return latitude
+   */
+  private double maxLat(final Envelope env) {
+    return latlon ? env.getMaxX() : env.getMaxY();
+  }
+
+  /**
+   * Returns the largest absolute latitude of an envelope.
+   * @param env envelope
+   * @return latitude
+   */
+  private double maxAbsLat(final Envelope env) {
+    return Math.max(Math.abs(minLat(env)), Math.abs(maxLat(env)));
+  }
+
+  /**
+   * Returns the minimum longitude of an envelope.
+   * @param env envelope
+   * @return longitude
+   */
+  private double minLon(final Envelope env) {
+    return latlon ? env.getMinY() : env.getMinX();
+  }
+
+  /**
+   * Returns the maximum longitude of an envelope.
+   * @param env envelope
+   * @return longitude
+   */
+  private double maxLon(final Envelope env) {
+    return latlon ? env.getMaxY() : env.getMaxX();
+  }
+
+  /**
+   * Transformation of coordinates between two reference systems, which are not
+   * planar. Coordinates are converted to longitudes and latitudes and then to the
+   * coordinates of the target system. The transformation has no state, so that it
+   * can be shared by all threads.
+   */
+  static final class Transform implements CoordinateSequenceFilter {
+    /** Source system. */
+    private final GeoCrs source;
+    /** Target system. */
+    private final GeoCrs target;
+
+    /**
+     * Constructor.
+     * @param s source system
+     * @param t target system
+     */
+    Transform(final GeoCrs s, final GeoCrs t) {
+      source = s;
+      target = t;
+    }
+
+    @Override
+    public void filter(final CoordinateSequence seq, final int i) {
+      final double[] xy = { seq.getOrdinate(i, 0), seq.getOrdinate(i, 1) };
+      transform(xy);
+      seq.setOrdinate(i, 0, xy[0]);
+      seq.setOrdinate(i, 1, xy[1]);
+    }
+
+    /**
+     * Transforms a coordinate.
+     * @param xy x and y coordinate, which are replaced by the transformed coordinate
+     */
+    void transform(final double[] xy) {
+      final double x = xy[0], y = xy[1];
+      final double lon, lat;
+      if(source == MERCATOR) {
+        lon = Math.toDegrees(x / SPHERE);
+        lat = Math.toDegrees(Math.atan(Math.sinh(y / SPHERE)));
+      } else {
+        lon = source.latlon ? y : x;
+        lat = source.latlon ? x : y;
+      }
+      if(target == MERCATOR) {
+        final double l = Math.toRadians(Math.max(-MAXLAT, Math.min(MAXLAT, lat)));
+        xy[0] = SPHERE * Math.toRadians(lon);
+        xy[1] = SPHERE * Math.log(Math.tan(Math.PI / 4 + l / 2));
+      } else {
+        xy[0] = target.latlon ? lat : lon;
+        xy[1] = target.latlon ? lon : lat;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public boolean isGeometryChanged() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.io.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class collects the entries of a spatial index: the pre value, id, envelope,
+ * geometry store record and content hash of each indexed geometry. Envelopes,
+ * records and hashes are stored in flat arrays.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoEntries {
+  /** Pre values. */
+  private final IntList pres = new IntList();
+  /** Ids. */
+  private final IntList ids = new IntList();
+  /** Envelopes (min x, min y, max x, max y). */
+  private double[] envs = new double[32];
+  /** Offsets of the records in the geometry store. */
+  private long[] records = new long[8];
+  /** Hashes of the contents of the geometries. */
+  private long[] hashes = new long[8];
+
+  /**
+   * Adds an entry.
+   * @param pre pre value
+   * @param id id
+   * @param env envelope
+   * @param record offset of the record in the geometry store, or {@code -1}
+   * @param hash hash of the contents of the geometry
+   */
+  void add(final int pre, final int id, final Envelope env, final long record,
+      final long hash) {
+    final int s = pres.size() << 2;
+    if(s == envs.length) {
+      envs = Arrays.copyOf(envs, s << 1);
+      records = Arrays.copyOf(records, s >> 1);
+      hashes = Arrays.copyOf(hashes, s >> 1);
+    }
+    records[s >> 2] = record;
+    hashes[s >> 2] = hash;
+    envs[s] = env.getMinX();
+    envs[s + 1] = env.getMinY();
+    envs[s + 2] = env.getMaxX();
+    envs[s + 3] = env.getMaxY();
+    pres.add(pre);
+    ids.add(id);
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return number of entries
+   */
+  int size() {
+    return pres.size();
+  }
+
+  /**
+   * Returns the pre value of an entry.
+   * @param e entry
+   * @return pre value
+   */
+  int pre(final int e) {
+    return pres.get(e);
+  }
+
+  /**
+   * Returns the id of an entry.
+   * @param e entry
+   * @return id
+   */
+  int id(final int e) {
+    return ids.get(e);
+  }
+
+  /**
+   * Returns the offset of the record of an entry in the geometry store.
+   * @param e entry
+   * @return record offset, or {@code -1}
+   */
+  long record(final int e) {
+    return records[e];
+  }
+
+  /**
+   * Returns the hash of the contents of the geometry of an entry.
+   * @param e entry
+   * @return hash
+   */
+  long hash(final int e) {
+    return hashes[e];
+  }
+
+  /**
+   * Returns the envelope of an entry.
+   * @param e entry
+   * @return envelope
+   */
+  Envelope envelope(final int e) {
+    final int s = e << 2;
+    return new Envelope(envs[s], envs[s + 2], envs[s + 1], envs[s + 3]);
+  }
+
+  /**
+   * Returns the envelopes of all entries. The array may be larger than the number of
+   * entries.
+   * @return envelopes (min x, min y, max x, max y)
+   */
+  double[] envelopes() {
+    return envs;
+  }
+
+  /**
+   * Packs the entries and writes them to the specified index file.
+   * The file is first written to a temporary file and then renamed,
+   * so that readers never see an incomplete index.
+   * @param file index file
+   * @param db state of the database
+   * @param stamp stamp of the geometry store ({@code 0} if there is none)
+   * @param opts index options
+   * @param invalid number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  void write(final IOFile file, final GeoStamp db, final int stamp,
+      final GeoIndexOptions opts, final int invalid) throws IOException {
+    final IOFile tmp = tmp(file);
+    PackedRTree.write(this, opts, tmp, db, stamp, invalid);
+    move(tmp, file);
+  }
+
+  /**
+   * Returns a temporary file for the specified file.
+   * @param file file
+   * @return temporary file
+   */
+  static IOFile tmp(final IOFile file) {
+    return new IOFile(file.path() + ".tmp");
+  }
+
+  /**
+   * Replaces a file with a temporary file. The file is renamed, which replaces
+   * an existing file atomically on most platforms. Otherwise, the complete file is
+   * renamed to a separate name before the existing file is deleted, so that an
+   * interrupted replacement can be completed (see {@link #recover(IOFile)}).
+   * Must be called while the lock for writing the index files is held
+   * (see {@link GeoIndexes#writer(String)}).
+   * @param tmp temporary file
+   * @param file file
+   * @throws IOException I/O exception
+   */
+  static void move(final IOFile tmp, final IOFile file) throws IOException {
+    if(tmp.file().renameTo(file.file())) return;
+    final IOFile next = next(file);
+    next.delete();
+    if(!tmp.file().renameTo(next.file()) || !file.delete() && file.exists() ||
+        !next.file().renameTo(file.file())) {
+      throw new IOException("Could not write " + file);
+    }
+  }
+
+  /**
+   * Completes an interrupted replacement of a file (see {@link #move(IOFile, IOFile)}).
+   * Must be called while the lock for writing the index files is held.
+   * @param file file
+   */
+  static void recover(final IOFile file) {
+    final IOFile next = next(file);
+    if(!file.exists() && next.exists()) next.file().renameTo(file.file());
+  }
+
+  /**
+   * Returns the file that replaces the specified file.
+   * @param file file
+   * @return replacing file
+   */
+  private static IOFile next(final IOFile file) {
+    return new IOFile(file.path() + ".next");
+  }
+}
@@ -1,5 +1,7 @@
 package org.expath.ns;
 
+import java.io.*;
+
 import org.basex.query.*;
 import org.basex.query.value.item.*;
 import org.basex.util.*;
@@ -120,6 +122,87 @@ static QueryException jtsConstruction(final Object e) {
     return thrw(9, "Invalid coordinate found.");
   }
 
+  /**
+   * GEO0010: No spatial index.
+   * @param db database name
+   * @return query exception
+   */
+  static QueryException noIndex(final Object db) {
+    return thrw(10, "Database '%' has no spatial index.", db);
+  }
+
+  /**
+   * GEO0011: Invalid intersection matrix pattern.
+   * @param pattern pattern
+   * @return query exception
+   */
+  static QueryException matrixPattern(final Object pattern) {
+    return thrw(11, "Invalid intersection matrix pattern: '%'.", pattern);
+  }
+
+  /**
+   * GEO0012: Unknown spatial predicate.
+   * @param name name of the predicate
+   * @return query exception
+   */
+  static QueryException unknownPredicate(final Object name) {
+    return thrw(12, "Unknown spatial predicate: '%'.", name);
+  }
+
+  /**
+   * GEO0013: Unknown output format.
+   * @param format format
+   * @return query exception
+   */
+  static QueryException unknownFormat(final Object format) {
+    return thrw(13, "Unknown output format: '%'.", format);
+  }
+
+  /**
+   * GEO0014: Invalid index option.
+   * @param option option
+   * @return query exception
+   */
+  static QueryException indexOption(final Object option) {
+    return thrw(14, "Invalid index option: '%'.", option);
+  }
+
+  /**
+   * GEO0015: Invalid tile.
+   * @param tile tile
+   * @return query exception
+   */
+  static QueryException invalidTile(final Object tile) {
+    return thrw(15, "Invalid tile: '%'.", tile);
+  }
+
+  /**
+   * GEO0016: Reference system not supported by tiles.
+   * @param srs name of the reference system
+   * @return query exception
+   */
+  static QueryException tileCrs(final Object srs) {
+    return thrw(16, "Reference system not supported by tiles: '%'.", srs);
+  }
+
+  /**
+   * GEO0017: Predicate not supported by joins.
+   * @param pred name of the predicate
+   * @return query exception
+   */
+  static QueryException joinPredicate(final Object pred) {
+    return thrw(17, "Predicate not supported by joins: '%'.", pred);
+  }
+
+  /**
+   * GEO0018: Spatial index cannot be read.
+   * @param ex I/O exception
+   * @return query exception
+   */
+  static QueryException indexIO(final IOException ex) {
+    return thrw(18, "Spatial index cannot be read: %.", ex.getMessage());
+  }
+
   /**
    * Returns a query exception.
    * @param code code
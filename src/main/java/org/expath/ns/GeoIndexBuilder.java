@@ -0,0 +1,223 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import java.io.*;
+
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.query.*;
+import org.basex.query.value.node.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.io.*;
+
+/**
+ * This class builds the spatial index of a database. All GML geometries are
+ * scanned in a single pass over the database table, and their envelopes are
+ * bulk-loaded into a packed R-tree, which is written next to the other database
+ * files in the format of {@link PackedRTree}. The node capacity and the packing
+ * strategy of the tree can be chosen via {@link GeoIndexOptions}. Optionally, the
+ * geometries are stored as WKB in a {@link GeoStore}, so that index queries need
+ * not parse GML.
+ *
+ * The database is scanned in a single pass, and geometries are written to the store
+ * as they are parsed. Geometries that cannot be parsed are skipped, and their number
+ * is stored in the index file. The entries are collected by a {@link GeoIndexLoader}:
+ * up to the buffer size of the index options, they are kept in main memory
+ * (about 50 bytes per geometry, plus the temporary arrays of the packer); larger
+ * indexes are sorted in runs on disk, so that the heap that is needed is bounded.
+ *
+ * Each entry contains a hash of the contents of its geometry, and the index is
+ * stamped with the state of the database (see {@link GeoStamp}), so that geometries
+ * that have been updated after the index was built can be detected
+ * (see {@link GeoIndexDelta}).
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexBuilder {
+  /** Name of the index file. */
+  public static final String FILE = "geoidx";
+
+  /** Offset basis of the FNV-1a hash. */
+  private static final long BASIS = 0xcbf29ce484222325L;
+  /** Prime of the FNV-1a hash. */
+  private static final long PRIME = 0x100000001b3L;
+
+  /** Parsed entries. */
+  private GeoIndexLoader entries;
+  /** Number of geometries that could not be parsed. */
+  private int invalid;
+
+  /** Data reference. */
+  private final Data data;
+  /** Indicates if geometries are written to the geometry store. */
+  private final boolean store;
+  /** Index options. */
+  private final GeoIndexOptions options;
+  /** BaseX GML reader. */
+  private final GmlReader gmlReader = new GmlReader();
+  /** WKB writer. */
+  private final WKBWriter wkbWriter = new WKBWriter();
+  /** Output of the geometry store ({@code null} if no geometries are stored). */
+  private GeoStore.Output output;
+
+  /**
+   * Constructor. Geometries are written to the geometry store.
+   * @param d data reference
+   */
+  public GeoIndexBuilder(final Data d) {
+    this(d, true);
+  }
+
+  /**
+   * Constructor.
+   * @param d data reference
+   * @param s indicates if geometries are written to the geometry store
+   */
+  public GeoIndexBuilder(final Data d, final boolean s) {
+    this(d, s, GeoIndexOptions.DEFAULT);
+  }
+
+  /**
+   * Constructor.
+   * @param d data reference
+   * @param s indicates if geometries are written to the geometry store
+   * @param o index options
+   */
+  public GeoIndexBuilder(final Data d, final boolean s, final GeoIndexOptions o) {
+    data = d;
+    store = s;
+    options = o;
+  }
+
+  /**
+   * Builds the index and writes it to disk, and drops the previous index handle.
+   * Builds and merges of the same database are exclusive.
+   * @return number of indexed geometries
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public int build() throws QueryException, IOException {
+    final String name = data.meta.name;
+    synchronized(GeoIndexes.writer(name)) {
+      final GeoStamp db = new GeoStamp(data);
+      final IOFile sf = storeFile(data);
+      entries = new GeoIndexLoader(file(data), options);
+      int stamp = 0;
+      if(store) {
+        // the stamp links the index to its store
+        stamp = (int) System.nanoTime() | 1;
+        final IOFile tmp = GeoEntries.tmp(sf);
+        output = new GeoStore.Output(tmp, stamp);
+        try {
+          scan();
+        } finally {
+          output.close();
+          output = null;
+        }
+        GeoEntries.move(tmp, sf);
+      } else {
+        sf.delete();
+        scan();
+      }
+      entries.write(db, stamp, invalid);
+      GeoIndexes.drop(name);
+      return entries.size();
+    }
+  }
+
+  /**
+   * Returns the index file of the specified database.
+   * @param data data reference
+   * @return index file
+   */
+  public static IOFile file(final Data data) {
+    return data.meta.dbfile(FILE);
+  }
+
+  /**
+   * Returns the geometry store file of the specified database.
+   * @param data data reference
+   * @return store file
+   */
+  public static IOFile storeFile(final Data data) {
+    return data.meta.dbfile(GeoStore.FILE);
+  }
+
+  /**
+   * Checks if the element with the specified pre value is a GML geometry.
+   * @param data data reference
+   * @param pre pre value
+   * @return result of check
+   */
+  static boolean geometry(final Data data, final int pre) {
+    // compare local names first to avoid the namespace lookup
+    return GmlReader.isGeometry(local(data.name(pre, Data.ELEM))) &&
+        GmlReader.isGeometry(new DBNode(data, pre).qname());
+  }
+
+  /**
+   * Computes a hash of the contents of a geometry: the kinds and names of all nodes
+   * of its subtree, and the values of its attributes and texts. The hash changes if
+   * a coordinate or an attribute of the geometry is updated.
+   * @param data data reference
+   * @param pre pre value of the geometry
+   * @return hash
+   */
+  static long hash(final Data data, final int pre) {
+    long h = BASIS;
+    final int end = pre + data.size(pre, Data.ELEM);
+    for(int p = pre; p < end; p++) {
+      final int kind = data.kind(p);
+      h = (h ^ kind) * PRIME;
+      if(kind == Data.ELEM || kind == Data.ATTR) h = hash(h, data.name(p, kind));
+      if(kind != Data.ELEM) h = hash(h, data.text(p, kind != Data.ATTR));
+    }
+    return h;
+  }
+
+  /**
+   * Scans all GML geometries of the database. Geometries that are nested in other
+   * geometries are skipped. Geometries that cannot be parsed are skipped and counted,
+   * as they are by {@link GeoIndexDelta}.
+   * @throws IOException I/O exception
+   */
+  private void scan() throws IOException {
+    final int sz = data.meta.size;
+    for(int pre = 0; pre < sz;) {
+      final int kind = data.kind(pre);
+      if(kind == Data.ELEM && geometry(data, pre)) {
+        Geometry geom = null;
+        try {
+          geom = gmlReader.createGeometry(new DBNode(data, pre));
+        } catch(final QueryException ex) {
+          invalid++;
+        }
+        final Envelope env = geom == null ? null : geom.getEnvelopeInternal();
+        if(env != null && !env.isNull()) {
+          final long record = output == null ? -1 : output.add(wkbWriter.write(geom));
+          entries.add(pre, data.id(pre), env, record, hash(data, pre));
+        }
+        // skip descendants of the geometry
+        pre += data.size(pre, kind);
+      } else {
+        pre += kind == Data.ELEM || kind == Data.DOC ? data.attSize(pre, kind) : 1;
+      }
+    }
+  }
+
+  /**
+   * Adds a token to a hash. The length of the token is included, so that the
+   * boundaries of adjacent tokens are preserved.
+   * @param hash hash
+   * @param token token
+   * @return new hash
+   */
+  private static long hash(final long hash, final byte[] token) {
+    long h = (hash ^ token.length) * PRIME;
+    for(final byte b : token) h = (h ^ b & 0xFF) * PRIME;
+    return h;
+  }
+}
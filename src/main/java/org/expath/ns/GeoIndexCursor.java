@@ -0,0 +1,17 @@
+package org.expath.ns;
+
+/**
+ * This interface is implemented by cursors over the entries of spatial index
+ * queries. In contrast to visitors, cursors are advanced by the caller, so that
+ * results can be returned while the index is traversed.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+interface GeoIndexCursor {
+  /**
+   * Returns the offset of the next entry.
+   * @return entry offset, or {@code -1} if there are no more entries
+   */
+  int next();
+}
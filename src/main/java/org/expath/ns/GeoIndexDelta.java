@@ -0,0 +1,627 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.query.*;
+import org.basex.query.value.node.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.io.*;
+
+/**
+ * This class contains the changes of a database since its spatial index has been
+ * built. Index entries are keyed by node ids, which survive structural updates, and
+ * the contents of their geometries are compared by hashes:
+ * <ul>
+ *   <li> Entries whose ids have disappeared belong to deleted geometries, and
+ *        entries whose geometries have been updated are replaced by new entries;
+ *        both are treated as deleted.</li>
+ *   <li> Geometries that are not contained in the index, or whose contents have
+ *        been updated, are parsed and packed into a small overlay tree in main
+ *        memory. Geometries that cannot be parsed are skipped and counted.</li>
+ * </ul>
+ * A delta is immutable and belongs to a specific state of the database
+ * (see {@link GeoStamp}). The delta of a new state is derived from the delta of the
+ * previous state, without scanning the database:
+ * <ul>
+ *   <li> Nodes that have been inserted since the previous state are found in a
+ *        single pass over the ids of the table, as their ids are larger than the
+ *        last id of the previous state. Inserted geometries are parsed, and
+ *        geometries that contain inserted nodes (such as elements whose values have
+ *        been replaced) are parsed again. The added geometries of the previous state
+ *        that have been moved are found in the same pass.</li>
+ *   <li> The pre values of the index entries are resolved when they are requested:
+ *        an entry is looked up at its last known pre value, and by its id if the
+ *        node has been moved. Entries whose ids cannot be found have been deleted.
+ *        Ids are resolved in constant time if the database maintains an id-pre
+ *        mapping (UPDINDEX option), and by scanning the table otherwise.</li>
+ * </ul>
+ * Updates that neither insert nor delete nodes (replaced values of text and attribute
+ * nodes) leave no trace in the ids. For such states, and before a merge, the delta is
+ * verified in a single pass over the database, in which the hashes of all geometries
+ * are compared and the current pre values of all entries are stored; only geometries
+ * that have not been parsed for the previous delta are parsed again. Text and
+ * attribute values that are replaced in the same state as nodes are inserted or
+ * deleted, and nodes that are deleted from geometries, are detected by the next
+ * verification. If the delta grows too large, it is
+ * merged with the index in the background.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoIndexDelta {
+  /** Minimum number of changes that triggers a merge. */
+  private static final int MERGE = 10000;
+  /** Maximum number of changes that is kept in main memory. */
+  private static final int MAXMERGE = 1 << 18;
+
+  /** State of the database. */
+  final GeoStamp stamp;
+  /** Index. */
+  private final PackedRTree tree;
+  /** Current pre values of the index entries ({@code -1} for entries of deleted or
+   * updated geometries), or {@code null} if the delta has not been verified and
+   * pre values are resolved on request. */
+  private final int[] pres;
+  /** Last verified delta, whose pre values are the starting points for resolving
+   * the pre values of this delta ({@code null} if the delta has been verified, or if
+   * the pre values of the index are the starting points). */
+  private final GeoIndexDelta base;
+  /** Ids of index entries whose geometries have been updated since the last
+   * verification, sorted. */
+  private final int[] replaced;
+  /** Added entries. */
+  private final GeoEntries added = new GeoEntries();
+  /** WKB of the added geometries (referenced by the record offsets of the entries). */
+  private final ArrayList<byte[]> wkbs = new ArrayList<byte[]>();
+  /** Ids, hashes and pre values of the skipped geometries (the highest bit of an
+   * id is set if the geometry cannot be parsed). */
+  private long[] skipped = new long[12];
+  /** Number of skipped geometries ({@code skipped} contains three values for each). */
+  private int skips;
+  /** Ids of the added and skipped geometries and their references
+   * ({@code id << 32 | ref}; added entries are referenced by their offsets, and
+   * skipped geometries by {@code -s - 1}), sorted. */
+  private final long[] refs;
+  /** Geometry factory. */
+  private final GeometryFactory factory = new GeometryFactory();
+  /** Overlay tree with the added entries (the records of the overlay entries are
+   * the offsets of the added entries). */
+  private final PackedRTree overlay;
+  /** Number of geometries (an upper bound if the delta has not been verified). */
+  private final int count;
+  /** Number of index entries of deleted or updated geometries (a lower bound if the
+   * delta has not been verified). */
+  private final int deleted;
+  /** Number of nodes that have been deleted since the last verification. */
+  private final int removed;
+  /** Number of geometries that cannot be parsed. */
+  private int invalid;
+
+  /**
+   * Constructor, which verifies the delta in a pass over the database.
+   * @param data database
+   * @param tree index
+   * @param previous delta of a previous state of the database, whose parsed
+   *   geometries are reused if they have not been updated (may be {@code null})
+   * @throws IOException I/O exception
+   */
+  private GeoIndexDelta(final Data data, final PackedRTree tree,
+      final GeoIndexDelta previous) throws IOException {
+    stamp = new GeoStamp(data);
+    this.tree = tree;
+    base = null;
+    replaced = new int[0];
+    removed = 0;
+    final int ts = tree.size();
+    pres = new int[ts];
+    Arrays.fill(pres, -1);
+
+    final GmlReader reader = new GmlReader();
+    final WKBWriter writer = new WKBWriter();
+    int kept = 0, hint = 0;
+    final int sz = data.meta.size;
+    for(int pre = 0; pre < sz;) {
+      final int kind = data.kind(pre);
+      if(kind == Data.ELEM && GeoIndexBuilder.geometry(data, pre)) {
+        final int id = data.id(pre);
+        final long hash = GeoIndexBuilder.hash(data, pre);
+        final int p = tree.position(id, hint);
+        final int e = p == -1 ? -1 : tree.sorted(p);
+        if(p != -1) hint = p + 1;
+        if(e != -1 && tree.hash(e) == hash) {
+          pres[e] = pre;
+          kept++;
+        } else if(previous == null || !previous.copy(this, pre, id, hash)) {
+          add(data, pre, id, hash, reader, writer);
+        }
+        // skip descendants of the geometry
+        pre += data.size(pre, kind);
+      } else {
+        pre += kind == Data.ELEM || kind == Data.DOC ? data.attSize(pre, kind) : 1;
+      }
+    }
+    deleted = ts - kept;
+    count = kept + added.size();
+    refs = refs();
+    overlay = pack();
+  }
+
+  /**
+   * Constructor, which derives the delta from the delta of the previous state.
+   * @param data database
+   * @param tree index
+   * @param previous delta of the previous state (may be {@code null})
+   * @param from previous state of the database
+   * @throws IOException I/O exception
+   */
+  private GeoIndexDelta(final Data data, final PackedRTree tree,
+      final GeoIndexDelta previous, final GeoStamp from) throws IOException {
+    stamp = new GeoStamp(data);
+    this.tree = tree;
+    pres = null;
+    base = previous == null ? null : previous.pres != null ? previous : previous.base;
+
+    // parse inserted geometries, collect geometries that contain inserted nodes, and
+    // find the moved geometries of the previous state
+    final int[] moved = previous == null ? new int[0] : previous.moved(data);
+    final int[] located = new int[moved.length];
+    Arrays.fill(located, -1);
+    final GmlReader reader = new GmlReader();
+    final WKBWriter writer = new WKBWriter();
+    final IntList updated = new IntList();
+    final int sz = data.meta.size;
+    int inserted = 0;
+    for(int pre = 0; pre < sz;) {
+      final int id = data.id(pre);
+      if(id > from.lastId) {
+        // inserted nodes are stored in consecutive ranges
+        int end = pre + 1;
+        while(end < sz && data.id(end) > from.lastId) end++;
+        insert(data, pre, end, updated, reader, writer);
+        inserted += end - pre;
+        pre = end;
+      } else {
+        if(moved.length != 0) {
+          final int m = Arrays.binarySearch(moved, id);
+          if(m >= 0) located[m] = pre;
+        }
+        pre++;
+      }
+    }
+
+    // parse updated geometries again
+    final int[] ups = updated.toArray();
+    Arrays.sort(ups);
+    final IntList ids = new IntList(), repl = new IntList();
+    if(previous != null && previous.pres == null) {
+      for(final int id : previous.replaced) repl.add(id);
+    }
+    for(int u = 0; u < ups.length; u++) {
+      final int pre = ups[u];
+      if(u > 0 && ups[u - 1] == pre) continue;
+      final int id = data.id(pre);
+      // geometries that have been inserted themselves have already been parsed
+      if(id > from.lastId) continue;
+      ids.add(id);
+      final int p = tree.position(id, -1);
+      if(p != -1 && (base == null || base.pres[tree.sorted(p)] != -1)) repl.add(id);
+      add(data, pre, id, GeoIndexBuilder.hash(data, pre), reader, writer);
+    }
+    final int[] upd = ids.toArray();
+    Arrays.sort(upd);
+    replaced = unique(repl.toArray());
+
+    // adopt the added and skipped geometries of the previous state that still exist
+    if(previous != null) {
+      final GeoEntries prev = previous.added;
+      for(int a = 0; a < prev.size(); a++) {
+        final int id = prev.id(a);
+        if(Arrays.binarySearch(upd, id) >= 0) continue;
+        final int pre = locate(data, prev.pre(a), id, moved, located);
+        if(pre == -1) continue;
+        wkbs.add(previous.wkbs.get((int) prev.record(a)));
+        added.add(pre, id, prev.envelope(a), wkbs.size() - 1, prev.hash(a));
+      }
+      for(int s = 0; s < previous.skips * 3; s += 3) {
+        final int id = (int) previous.skipped[s];
+        if(Arrays.binarySearch(upd, id) >= 0) continue;
+        final int pre = locate(data, (int) previous.skipped[s + 2], id, moved, located);
+        if(pre != -1) skip(id, previous.skipped[s + 1], pre, previous.skipped[s] < 0);
+      }
+    }
+    // the pre values of the index are the starting points: count invalid geometries
+    // of the index
+    if(base == null) invalid += tree.invalid();
+
+    final int kept = tree.size() - (base == null ? 0 : base.deleted);
+    deleted = (base == null ? 0 : base.deleted) + replaced.length;
+    count = kept - replaced.length + added.size();
+    removed = (previous == null || previous.pres != null ? 0 : previous.removed) +
+        Math.max(0, from.size + inserted - stamp.size);
+    refs = refs();
+    overlay = pack();
+  }
+
+  /**
+   * Returns the delta for the current state of the specified database.
+   * @param data database
+   * @param tree index
+   * @param previous delta of a previous state of the database (may be {@code null})
+   * @return delta
+   * @throws IOException I/O exception
+   */
+  static GeoIndexDelta get(final Data data, final PackedRTree tree,
+      final GeoIndexDelta previous) throws IOException {
+    final GeoStamp from = previous == null ? tree.database() : previous.stamp;
+    final int size = data.meta.size, last = data.meta.lastid;
+    // values that have been replaced in place can only be found by comparing hashes
+    return from.time == GeoStamp.UNKNOWN || last < from.lastId ||
+      last == from.lastId && size == from.size ?
+      new GeoIndexDelta(data, tree, previous) :
+      new GeoIndexDelta(data, tree, previous, from);
+  }
+
+  /**
+   * Returns a verified version of this delta, in which the pre values of all entries
+   * are known.
+   * @param data database
+   * @return delta
+   * @throws IOException I/O exception
+   */
+  GeoIndexDelta verify(final Data data) throws IOException {
+    return pres != null ? this : new GeoIndexDelta(data, tree, this);
+  }
+
+  /**
+   * Checks if the delta belongs to the current state of the specified database.
+   * @param data database
+   * @return result of check
+   */
+  boolean valid(final Data data) {
+    return stamp.matches(data);
+  }
+
+  /**
+   * Returns the number of current geometries of the database. If the delta has not
+   * been verified, the number is an upper bound.
+   * @return number of geometries
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Returns the number of index entries of deleted or updated geometries. If the
+   * delta has not been verified, entries of deleted geometries are only counted if
+   * they were deleted before the last verification.
+   * @return number of entries
+   */
+  int deleted() {
+    return deleted;
+  }
+
+  /**
+   * Returns the number of nodes that have been deleted since the last verification.
+   * If this number is {@code 0}, the {@link #deleted()} entries are exact.
+   * @return number of nodes
+   */
+  int removed() {
+    return removed;
+  }
+
+  /**
+   * Returns the number of geometries that cannot be parsed and are not indexed.
+   * @return number of geometries
+   */
+  int invalid() {
+    return invalid;
+  }
+
+  /**
+   * Checks if the delta should be merged with the index.
+   * @param tree index
+   * @return result of check
+   */
+  boolean merge(final PackedRTree tree) {
+    return added.size() + deleted + removed >
+      Math.max(MERGE, Math.min(tree.size() >> 4, MAXMERGE));
+  }
+
+  /**
+   * Returns the current pre value of an index entry.
+   * @param data database
+   * @param e entry offset
+   * @return pre value, or {@code -1} if the geometry has been deleted or updated
+   */
+  int pre(final Data data, final int e) {
+    if(pres != null) return pres[e];
+    final int pre = base == null ? tree.pre(e) : base.pres[e];
+    if(pre == -1) return -1;
+    final int id = tree.id(e);
+    return Arrays.binarySearch(replaced, id) >= 0 ? -1 : locate(data, pre, id);
+  }
+
+  /**
+   * Visits the offsets of all added entries whose envelopes intersect the
+   * specified envelope.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  boolean query(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    return overlay.query(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int e) throws QueryException, IOException {
+        return visitor.visit((int) overlay.record(e));
+      }
+    });
+  }
+
+  /**
+   * Returns the overlay tree with the added entries. The records of the entries
+   * are the offsets of the added entries.
+   * @return tree
+   */
+  PackedRTree overlay() {
+    return overlay;
+  }
+
+  /**
+   * Returns the added entries.
+   * @return entries
+   */
+  GeoEntries entries() {
+    return added;
+  }
+
+  /**
+   * Returns the geometry of an added entry.
+   * @param a offset of the added entry
+   * @return geometry
+   * @throws IOException I/O exception
+   */
+  Geometry geometry(final int a) throws IOException {
+    return GeoStore.read(wkbs.get((int) added.record(a)), factory);
+  }
+
+  /**
+   * Merges the delta with the specified index and writes a new index file.
+   * The added geometries are appended to the geometry store of the index.
+   * The database is not accessed; the delta must have been verified
+   * (see {@link #verify(Data)}).
+   * @param tree index
+   * @param file index file
+   * @param store geometry store file
+   * @throws IOException I/O exception
+   */
+  void merge(final PackedRTree tree, final IOFile file, final IOFile store)
+      throws IOException {
+    final GeoIndexLoader entries = new GeoIndexLoader(file, tree.options());
+    final int sz = tree.size();
+    for(int e = 0; e < sz; e++) {
+      if(pres[e] != -1) {
+        entries.add(pres[e], tree.id(e), tree.envelope(e), tree.record(e), tree.hash(e));
+      }
+    }
+    final int st = tree.stamp();
+    final int as = added.size();
+    if(st != 0 && GeoStore.stamp(store) == st) {
+      final GeoStore.Output out = new GeoStore.Output(store);
+      try {
+        for(int a = 0; a < as; a++) {
+          entries.add(added.pre(a), added.id(a), added.envelope(a),
+              out.add(wkbs.get((int) added.record(a))), added.hash(a));
+        }
+      } finally {
+        out.close();
+      }
+    } else {
+      for(int a = 0; a < as; a++) {
+        entries.add(added.pre(a), added.id(a), added.envelope(a), -1, added.hash(a));
+      }
+    }
+    entries.write(stamp, st, invalid);
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Finds the geometries in a range of inserted nodes. Inserted geometries are
+   * parsed, and geometries that contain inserted nodes are collected.
+   * @param data database
+   * @param start pre value of the first inserted node
+   * @param end pre value after the last inserted node
+   * @param updated pre values of the geometries that contain inserted nodes
+   * @param reader GML reader
+   * @param writer WKB writer
+   */
+  private void insert(final Data data, final int start, final int end,
+      final IntList updated, final GmlReader reader, final WKBWriter writer) {
+    for(int pre = start; pre < end;) {
+      final int kind = data.kind(pre);
+      // inserted subtree: check if it belongs to a geometry
+      int geom = -1;
+      for(int par = data.parent(pre, kind); par != -1 && par < start;
+          par = data.parent(par, data.kind(par))) {
+        if(data.kind(par) == Data.ELEM && GeoIndexBuilder.geometry(data, par)) geom = par;
+      }
+      if(geom != -1) {
+        updated.add(geom);
+        pre += data.size(pre, kind);
+      } else if(kind == Data.ELEM && GeoIndexBuilder.geometry(data, pre)) {
+        add(data, pre, data.id(pre), GeoIndexBuilder.hash(data, pre), reader, writer);
+        pre += data.size(pre, kind);
+      } else {
+        pre += kind == Data.ELEM || kind == Data.DOC ? data.attSize(pre, kind) : 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the current pre value of a node.
+   * @param data database
+   * @param hint last known pre value of the node
+   * @param id id
+   * @return pre value, or {@code -1} if the node has been deleted
+   */
+  private static int locate(final Data data, final int hint, final int id) {
+    return hint < data.meta.size && data.id(hint) == id ? hint : data.pre(id);
+  }
+
+  /**
+   * Returns the current pre value of a node that has been found in a pass over the
+   * table.
+   * @param data database
+   * @param hint last known pre value of the node
+   * @param id id
+   * @param moved sorted ids of the nodes that are not found at their last known pre
+   *        values
+   * @param located pre values of the moved nodes ({@code -1} for deleted nodes)
+   * @return pre value, or {@code -1} if the node has been deleted
+   */
+  private static int locate(final Data data, final int hint, final int id,
+      final int[] moved, final int[] located) {
+    if(hint < data.meta.size && data.id(hint) == id) return hint;
+    final int m = Arrays.binarySearch(moved, id);
+    return m < 0 ? -1 : located[m];
+  }
+
+  /**
+   * Returns the ids of the added and skipped geometries whose nodes are not found
+   * at their pre values in the specified database.
+   * @param data database
+   * @return sorted ids
+   */
+  private int[] moved(final Data data) {
+    final IntList ids = new IntList();
+    final int sz = data.meta.size;
+    for(int a = 0; a < added.size(); a++) {
+      final int pre = added.pre(a), id = added.id(a);
+      if(pre >= sz || data.id(pre) != id) ids.add(id);
+    }
+    for(int s = 0; s < skips * 3; s += 3) {
+      final int pre = (int) skipped[s + 2], id = (int) skipped[s];
+      if(pre >= sz || data.id(pre) != id) ids.add(id);
+    }
+    return unique(ids.toArray());
+  }
+
+  /**
+   * Sorts the specified values and removes duplicates.
+   * @param values values
+   * @return unique values
+   */
+  private static int[] unique(final int[] values) {
+    Arrays.sort(values);
+    int u = 0;
+    for(int v = 0; v < values.length; v++) {
+      if(v == 0 || values[v] != values[v - 1]) values[u++] = values[v];
+    }
+    return Arrays.copyOf(values, u);
+  }
+
+  /**
+   * Returns the ids of the added and skipped geometries and their references.
+   * @return references
+   */
+  private long[] refs() {
+    final int as = added.size();
+    final long[] rfs = new long[as + skips];
+    for(int a = 0; a < as; a++) rfs[a] = (long) added.id(a) << 32 | a;
+    for(int s = 0; s < skips; s++) {
+      rfs[as + s] = (long) (int) skipped[s * 3] << 32 | (-s - 1 & 0xFFFFFFFFL);
+    }
+    Arrays.sort(rfs);
+    return rfs;
+  }
+
+  /**
+   * Packs the added entries into an overlay tree.
+   * @return overlay tree
+   */
+  private PackedRTree pack() {
+    final GeoEntries ents = new GeoEntries();
+    for(int a = 0; a < added.size(); a++) {
+      ents.add(added.pre(a), added.id(a), added.envelope(a), a, 0);
+    }
+    return PackedRTree.build(ents, tree.options());
+  }
+
+  /**
+   * Parses a geometry and adds it to this delta.
+   * @param data database
+   * @param pre pre value
+   * @param id id
+   * @param hash hash of the contents of the geometry
+   * @param reader GML reader
+   * @param writer WKB writer
+   */
+  private void add(final Data data, final int pre, final int id, final long hash,
+      final GmlReader reader, final WKBWriter writer) {
+    final Geometry geom;
+    try {
+      geom = reader.createGeometry(new DBNode(data, pre));
+    } catch(final QueryException ex) {
+      skip(id, hash, pre, true);
+      return;
+    }
+    final Envelope env = geom.getEnvelopeInternal();
+    if(env.isNull()) {
+      skip(id, hash, pre, false);
+    } else {
+      wkbs.add(writer.write(geom));
+      added.add(pre, id, env, wkbs.size() - 1, hash);
+    }
+  }
+
+  /**
+   * Adds a geometry of the specified delta to this delta if it has been
+   * processed for this delta, and if it has not been updated in the meantime.
+   * @param delta delta to which the geometry is added
+   * @param pre current pre value
+   * @param id id
+   * @param hash hash of the current contents of the geometry
+   * @return {@code true} if the geometry has been added
+   */
+  private boolean copy(final GeoIndexDelta delta, final int pre, final int id,
+      final long hash) {
+    final int i = Arrays.binarySearch(refs, (long) id << 32);
+    final int p = i < 0 ? -i - 1 : i;
+    if(p == refs.length || (int) (refs[p] >>> 32) != id) return false;
+    final int ref = (int) refs[p];
+    if(ref < 0) {
+      final int s = (-ref - 1) * 3;
+      if(skipped[s + 1] != hash) return false;
+      delta.skip(id, hash, pre, skipped[s] < 0);
+    } else {
+      if(added.hash(ref) != hash) return false;
+      delta.wkbs.add(wkbs.get((int) added.record(ref)));
+      delta.added.add(pre, id, added.envelope(ref), delta.wkbs.size() - 1, hash);
+    }
+    return true;
+  }
+
+  /**
+   * Skips a geometry.
+   * @param id id
+   * @param hash hash of the contents of the geometry
+   * @param pre pre value
+   * @param inv indicates if the geometry cannot be parsed
+   */
+  private void skip(final int id, final long hash, final int pre, final boolean inv) {
+    final int s = skips++ * 3;
+    if(s == skipped.length) skipped = Arrays.copyOf(skipped, s << 1);
+    skipped[s] = id & 0xFFFFFFFFL | (inv ? 1L << 63 : 0);
+    skipped[s + 1] = hash;
+    skipped[s + 2] = pre;
+    if(inv) invalid++;
+  }
+}
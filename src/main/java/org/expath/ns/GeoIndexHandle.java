@@ -0,0 +1,573 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.data.*;
+import org.basex.query.*;
+import org.basex.query.iter.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class binds a spatial index to the database it has been built from.
+ * Handles are immutable, and each index query works on its own handle, so that
+ * concurrent queries on different databases cannot mix up their pre values.
+ * If the database has been updated after it has been indexed, the index entries are
+ * combined with the changes of the database, and all results are current pre values.
+ *
+ * Index queries can also return candidates, which are references to index entries.
+ * The geometries of candidates are read from the geometry store, if available.
+ * If all indexed geometries are points and a point index has been built, window
+ * queries are answered by the point index instead of the tree.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexHandle {
+  /** Indexed database. */
+  public final Data data;
+  /** Index. */
+  public final PackedRTree tree;
+  /** Geometry store ({@code null} if geometries are not stored). */
+  final GeoStore store;
+  /** Changes since the index has been built ({@code null} if the index is up-to-date). */
+  final GeoIndexDelta delta;
+  /** Point index with all entries ({@code null} if it does not exist or is
+   * incomplete). */
+  private final GeoPointIndex points;
+
+  /**
+   * Constructor.
+   * @param d indexed database
+   * @param t index
+   * @param s geometry store (may be {@code null})
+   * @param dl changes since the index has been built (may be {@code null})
+   */
+  GeoIndexHandle(final Data d, final PackedRTree t, final GeoStore s,
+      final GeoIndexDelta dl) {
+    data = d;
+    tree = t;
+    store = s;
+    delta = dl;
+    final GeoPointIndex pi = t.points();
+    points = pi != null && pi.size() == t.size() ? pi : null;
+  }
+
+  /**
+   * Returns the database node with the specified pre value.
+   * @param pre pre value
+   * @return database node
+   */
+  public DBNode node(final int pre) {
+    return new DBNode(data, pre);
+  }
+
+  /**
+   * Visits the pre values of all geometries whose envelopes intersect the
+   * specified envelope.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public boolean query(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    return scan(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int e) throws QueryException, IOException {
+        final int pre = entry(e);
+        return pre == -1 || visitor.visit(pre);
+      }
+    }) && (delta == null || delta.query(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int a) throws QueryException, IOException {
+        return visitor.visit(delta.entries().pre(a));
+      }
+    }));
+  }
+
+  /**
+   * Returns the database nodes of all geometries whose envelopes intersect the
+   * specified envelope. The index is traversed lazily: each call of
+   * {@link Iter#next()} advances the traversal to the next result, so that no
+   * results are buffered. The nodes of indexed geometries are returned first,
+   * followed by the nodes of geometries that have been added after the index was
+   * built.
+   * @param env search envelope
+   * @return iterator
+   */
+  public Iter iter(final Envelope env) {
+    final GeoIndexCursor cursor = points != null ? points.cursor(env) :
+      tree.cursor(env);
+    final PackedRTree.Cursor added = delta == null ? null :
+      delta.overlay().cursor(env);
+    return new Iter() {
+      @Override
+      public Item next() {
+        for(int e; (e = cursor.next()) != -1;) {
+          final int pre = entry(e);
+          if(pre != -1) return node(pre);
+        }
+        final int e = added == null ? -1 : added.next();
+        return e == -1 ? null : node(delta.overlay().pre(e));
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator over the database nodes with the specified pre values.
+   * The nodes are created when they are requested.
+   * @param pres pre values
+   * @return iterator
+   */
+  public Iter nodes(final IntList pres) {
+    return new GeoNodeIter(data, pres);
+  }
+
+  /**
+   * Visits the candidates of all geometries whose envelopes intersect the specified
+   * envelope. Candidates are non-negative entry offsets of the index, or negative
+   * references to the entries that have been added after the index was built.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public boolean candidates(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    if(delta == null) return scan(env, visitor);
+    if(!scan(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int e) throws QueryException, IOException {
+        return entry(e) == -1 || visitor.visit(e);
+      }
+    })) return false;
+    return delta.query(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int a) throws QueryException, IOException {
+        return visitor.visit(-a - 1);
+      }
+    });
+  }
+
+  /**
+   * Visits the candidates of all geometries whose envelopes intersect the specified
+   * envelope, except for the geometries of index subtrees that are covered by one of
+   * the specified cells, which are counted instead (see {@link PackedRTree#cells}).
+   * Subtrees are only counted if no geometries have been deleted or updated after
+   * the index was built.
+   * @param env search envelope
+   * @param cells envelopes of the cells
+   * @param counts numbers of counted geometries of each cell
+   * @param sums weighted sums of the x and y coordinates of the centers of the counted
+   *   subtrees of each cell
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public boolean candidates(final Envelope env, final Envelope[] cells,
+      final int[] counts, final double[] sums, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    if(delta != null && (delta.deleted() != 0 || delta.removed() != 0)) {
+      return candidates(env, visitor);
+    }
+    if(!tree.cells(env, cells, counts, sums, visitor)) return false;
+    return delta == null || delta.query(env, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int a) throws QueryException, IOException {
+        return visitor.visit(-a - 1);
+      }
+    });
+  }
+
+  /**
+   * Returns a cursor over all pairs of candidates of this and the specified index
+   * whose envelopes are within the given distance. The indexes are joined by
+   * synchronous traversals of their trees and of the overlay trees with the entries
+   * that have been added after an index was built, and the pairs are returned in
+   * the order of the traversals.
+   * @param index other index
+   * @param dist maximum distance between envelopes
+   * @return cursor
+   */
+  public JoinCursor join(final GeoIndexHandle index, final double dist) {
+    return new JoinCursor(index, dist);
+  }
+
+  /**
+   * Returns the pre value of a candidate.
+   * @param cand candidate
+   * @return pre value
+   */
+  public int pre(final int cand) {
+    return cand < 0 ? delta.entries().pre(-cand - 1) : entry(cand);
+  }
+
+  /**
+   * Returns the envelope of a candidate.
+   * @param cand candidate
+   * @return envelope
+   */
+  Envelope envelope(final int cand) {
+    return cand < 0 ? delta.entries().envelope(-cand - 1) : tree.envelope(cand);
+  }
+
+  /**
+   * Returns the geometry of a candidate. The geometry is read from the geometry
+   * store, if available, or parsed from the database node.
+   * @param cand candidate
+   * @return geometry
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public Geometry geometry(final int cand) throws QueryException, IOException {
+    if(cand < 0) return delta.geometry(-cand - 1);
+    final long rec = store == null ? -1 : tree.record(cand);
+    return rec == -1 ? new GmlReader().createGeometry(node(pre(cand))) :
+      store.geometry(rec);
+  }
+
+  /**
+   * Checks if the geometry of a candidate is read from the geometry store.
+   * Stored geometries can be read by several threads at the same time, whereas
+   * all other geometries are parsed from the database.
+   * @param cand candidate
+   * @return result of check
+   */
+  public boolean stored(final int cand) {
+    return cand >= 0 && store != null && tree.record(cand) != -1;
+  }
+
+  /**
+   * Returns the number of geometries of the database. If nodes have been deleted
+   * since the changes were last verified, the number is an upper bound.
+   * @return number of geometries
+   */
+  public int size() {
+    return delta == null ? tree.size() : delta.size();
+  }
+
+  /**
+   * Returns statistics on the index structure, its memory footprint, the changes of
+   * the database since the index has been built, and the query counters.
+   * @return element with statistics
+   */
+  public FElem info() {
+    final FElem elem = new FElem(new QNm("index"));
+    GeoIndexStats.add(elem, "database", token(data.meta.name));
+    GeoIndexStats.add(elem, "entries", token(tree.size()));
+    GeoIndexStats.add(elem, "nodes", token(tree.nodes()));
+    GeoIndexStats.add(elem, "leaves", token(tree.leaves()));
+    GeoIndexStats.add(elem, "depth", token(tree.depth()));
+    GeoIndexStats.add(elem, "fanout", token(tree.fanout()));
+    final GeoIndexOptions opts = tree.options();
+    GeoIndexStats.add(elem, "capacity", token(opts.capacity));
+    GeoIndexStats.add(elem, "packing", token(opts.packing.name().toLowerCase(
+        Locale.ENGLISH)));
+    GeoIndexStats.add(elem, "dims", token(opts.dims));
+    final GeoPointIndex pi = tree.points();
+    GeoIndexStats.add(elem, "curve", token(opts.points == null ? "none" :
+      opts.points.name().toLowerCase(Locale.ENGLISH)));
+    GeoIndexStats.add(elem, "points", token(pi == null ? 0 : pi.size()));
+    GeoIndexStats.add(elem, "area", token(tree.area()));
+    GeoIndexStats.add(elem, "overlap", token(tree.overlap()));
+    GeoIndexStats.add(elem, "index-bytes", token(tree.bytes()));
+    GeoIndexStats.add(elem, "store-bytes", token(store == null ? 0 : store.size()));
+    GeoIndexStats.add(elem, "added", token(delta == null ? 0 : delta.entries().size()));
+    GeoIndexStats.add(elem, "deleted", token(delta == null ? 0 : delta.deleted()));
+    GeoIndexStats.add(elem, "invalid", token(delta == null ? tree.invalid() :
+      delta.invalid()));
+    tree.stats.add(elem);
+    return elem;
+  }
+
+  /**
+   * Estimates the number of geometries whose envelopes intersect the specified
+   * envelope. The estimate is computed from the index structure, and entries of
+   * geometries that have been deleted after the index was built are included.
+   * @param env search envelope
+   * @return estimated number of geometries
+   */
+  public int estimate(final Envelope env) {
+    return (points != null ? points.count(env) : tree.count(env)) +
+        (delta == null ? 0 : delta.overlay().count(env));
+  }
+
+  /**
+   * Computes the distance between a geometry and a candidate. The geometry of the
+   * candidate is only read if its envelope is not a point.
+   * @param query query geometry
+   * @param cand candidate
+   * @param crs reference system of the geometries
+   * @return distance
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  double distance(final Geometry query, final int cand, final GeoCrs crs)
+      throws QueryException, IOException {
+    final Envelope env = envelope(cand);
+    // a geometry whose envelope is a point is identical to this point
+    if(env.getWidth() == 0 && env.getHeight() == 0) {
+      return crs.distance(query, query.getFactory().createPoint(
+          new Coordinate(env.getMinX(), env.getMinY())));
+    }
+    return crs.distance(query, geometry(cand));
+  }
+
+  /**
+   * Finds the pre values of the {@code k} geometries that are nearest to the
+   * specified geometry, in ascending order of their distances. The indexed
+   * geometries are assumed to have the reference system of the query geometry,
+   * which defines the distances (see {@link GeoCrs}).
+   * @param query query geometry
+   * @param k number of geometries
+   * @param crs reference system of the query geometry
+   * @return pre values
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public IntList nearest(final Geometry query, final int k, final GeoCrs crs)
+      throws QueryException, IOException {
+    final Envelope env = query.getEnvelopeInternal();
+    final int n = Math.max(0, Math.min(k, tree.size()));
+    int[] cands = new int[n];
+    double[] dists = new double[n];
+    int c = tree.nearest(env, crs, new PackedRTree.Distance() {
+      @Override
+      public double distance(final int e) throws QueryException, IOException {
+        return entry(e) == -1 ? Double.POSITIVE_INFINITY :
+          GeoIndexHandle.this.distance(query, e, crs);
+      }
+    }, cands, dists);
+
+    if(delta != null && k > 0) {
+      // insert added geometries that are nearer than the current results
+      final GeoEntries entries = delta.entries();
+      final int sz = entries.size();
+      if(sz > 0) {
+        final int m = Math.min(k, n + sz);
+        cands = Arrays.copyOf(cands, m);
+        dists = Arrays.copyOf(dists, m);
+      }
+      for(int a = 0; a < sz; a++) {
+        final boolean full = c == cands.length;
+        final double max = full ? dists[c - 1] : Double.POSITIVE_INFINITY;
+        if(crs.bound(env, entries.envelope(a)) >= max) continue;
+        final double d = distance(query, -a - 1, crs);
+        if(d >= max) continue;
+        int i = full ? c - 1 : c++;
+        for(; i > 0 && dists[i - 1] > d; i--) {
+          cands[i] = cands[i - 1];
+          dists[i] = dists[i - 1];
+        }
+        cands[i] = -a - 1;
+        dists[i] = d;
+      }
+    }
+    final IntList pres = new IntList(c);
+    for(int i = 0; i < c; i++) pres.add(pre(cands[i]));
+    return pres;
+  }
+
+  /**
+   * Finds the pre values of the two geometries that are nearest to each other.
+   * @return pre values (empty if less than two geometries exist)
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public IntList closest() throws QueryException, IOException {
+    int best1 = 0, best2 = 0;
+    double min = Double.POSITIVE_INFINITY;
+    final int[] es = tree.closest(new PackedRTree.PairDistance() {
+      @Override
+      public double distance(final int e1, final int e2)
+          throws QueryException, IOException {
+        return entry(e1) == -1 || entry(e2) == -1 ? Double.POSITIVE_INFINITY :
+          GeoIndexHandle.this.distance(e1, e2);
+      }
+    });
+    if(es != null) {
+      best1 = es[0];
+      best2 = es[1];
+      min = distance(best1, best2);
+    }
+
+    if(delta != null) {
+      // pairs of added geometries
+      final PackedRTree added = delta.overlay();
+      final int[] as = added.closest(new PackedRTree.PairDistance() {
+        @Override
+        public double distance(final int e1, final int e2)
+            throws QueryException, IOException {
+          return GeoIndexHandle.this.distance(-(int) added.record(e1) - 1,
+              -(int) added.record(e2) - 1);
+        }
+      });
+      if(as != null) {
+        final int c1 = -(int) added.record(as[0]) - 1;
+        final int c2 = -(int) added.record(as[1]) - 1;
+        final double d = distance(c1, c2);
+        if(d < min) {
+          best1 = c1;
+          best2 = c2;
+          min = d;
+        }
+      }
+      // pairs of added and indexed geometries
+      final GeoEntries entries = delta.entries();
+      final int sz = entries.size();
+      final int[] cand = new int[1];
+      final double[] dst = new double[1];
+      for(int a = 0; a < sz; a++) {
+        final int c = -a - 1;
+        if(tree.nearest(entries.envelope(a), GeoCrs.PLANAR, new PackedRTree.Distance() {
+          @Override
+          public double distance(final int e) throws QueryException, IOException {
+            return entry(e) == -1 ? Double.POSITIVE_INFINITY :
+              GeoIndexHandle.this.distance(c, e);
+          }
+        }, cand, dst) == 1 && dst[0] < min) {
+          best1 = c;
+          best2 = cand[0];
+          min = dst[0];
+        }
+      }
+    }
+    final IntList pres = new IntList(2);
+    if(min != Double.POSITIVE_INFINITY) {
+      pres.add(pre(best1));
+      pres.add(pre(best2));
+    }
+    return pres;
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Returns the current pre value of an index entry.
+   * @param e entry offset
+   * @return pre value, or {@code -1} if the geometry has been deleted or updated
+   */
+  private int entry(final int e) {
+    return delta == null ? tree.pre(e) : delta.pre(data, e);
+  }
+
+  /**
+   * Visits the offsets of all index entries whose envelopes intersect the specified
+   * envelope. The point index is used if it contains all entries.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private boolean scan(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    return points != null ? points.query(env, visitor) : tree.query(env, visitor);
+  }
+
+  /**
+   * Computes the distance between the geometries of two candidates.
+   * @param cand1 first candidate
+   * @param cand2 second candidate
+   * @return distance
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private double distance(final int cand1, final int cand2)
+      throws QueryException, IOException {
+    return distance(geometry(cand1), cand2, GeoCrs.PLANAR);
+  }
+
+  /**
+   * Returns the candidate of an entry of the index or overlay tree.
+   * @param t index or overlay tree
+   * @param e entry offset
+   * @return candidate, or {@link Integer#MIN_VALUE} if the geometry has been deleted
+   */
+  private int candidate(final PackedRTree t, final int e) {
+    if(t != tree) return -(int) t.record(e) - 1;
+    return entry(e) == -1 ? Integer.MIN_VALUE : e;
+  }
+
+  /** Cursor over the pairs of candidates of a join. */
+  public final class JoinCursor {
+    /** Other index. */
+    private final GeoIndexHandle index;
+    /** Maximum distance between envelopes. */
+    private final double dist;
+    /** Pairs of trees of this and the other index that are joined one after another
+     * (index and overlay trees; {@code null} references are skipped). */
+    private final PackedRTree[] trees;
+    /** Offset of the next pair of trees. */
+    private int next;
+    /** Cursor over the current pair of trees ({@code null} if no pair is joined). */
+    private PackedRTree.JoinCursor cursor;
+    /** Candidate of this index of the current pair. */
+    private int cand1;
+    /** Candidate of the other index of the current pair. */
+    private int cand2;
+
+    /**
+     * Constructor.
+     * @param ix other index
+     * @param d maximum distance between envelopes
+     */
+    JoinCursor(final GeoIndexHandle ix, final double d) {
+      index = ix;
+      dist = d;
+      final PackedRTree added1 = delta == null ? null : delta.overlay();
+      final PackedRTree added2 = ix.delta == null ? null : ix.delta.overlay();
+      trees = new PackedRTree[] { tree, ix.tree, tree, added2, added1, ix.tree,
+          added1, added2 };
+    }
+
+    /**
+     * Advances the cursor to the next pair of candidates. Entries of deleted
+     * geometries are skipped.
+     * @return {@code false} if there are no more pairs
+     */
+    public boolean next() {
+      while(true) {
+        if(cursor == null) {
+          if(next == trees.length) return false;
+          next += 2;
+          if(trees[next - 2] == null || trees[next - 1] == null) continue;
+          cursor = trees[next - 2].join(trees[next - 1], dist);
+        }
+        if(cursor.next()) {
+          cand1 = candidate(trees[next - 2], cursor.first());
+          cand2 = index.candidate(trees[next - 1], cursor.second());
+          if(cand1 != Integer.MIN_VALUE && cand2 != Integer.MIN_VALUE) return true;
+        } else {
+          cursor = null;
+        }
+      }
+    }
+
+    /**
+     * Returns the candidate of this index of the current pair.
+     * @return candidate
+     */
+    public int first() {
+      return cand1;
+    }
+
+    /**
+     * Returns the candidate of the other index of the current pair.
+     * @return candidate
+     */
+    public int second() {
+      return cand2;
+    }
+  }
+}
@@ -1,72 +1,303 @@
 package org.expath.ns;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.basex.data.*;
 import org.basex.query.*;
-import org.basex.query.value.item.*;
-import org.basex.query.value.node.*;
-import org.basex.util.*;
+import org.basex.query.iter.*;
+import org.basex.util.list.*;
 
 import com.vividsolutions.jts.geom.*;
-import com.vividsolutions.jts.index.*;
+import com.vividsolutions.jts.geom.prep.*;
 
 /**
- * This Class implements the ItemVisitor interface
- * to apply different methods in a query process of index tree.
+ * This Class implements the GeoIndexVisitor interface
+ * to refine the candidates of an index query. A spatial predicate is evaluated
+ * for each candidate and the prepared query geometry.
+ *
+ * If the number of results is limited, the first results in document order are
+ * returned, independently of the order in which the candidates are visited. The
+ * results with the smallest pre values are kept in a bounded max-heap, and once the
+ * heap is full, candidates that follow its largest pre value are not refined.
+ *
+ * If the number of results is not limited, candidates whose geometries are read
+ * from the geometry store are collected and refined in parallel when the results
+ * are requested. All other candidates are refined by the querying thread, as
+ * databases must not be accessed by several threads. Prepared geometries of JTS
+ * are not thread-safe, so the parallel tests use the plain query geometry.
  *
  * @author BaseX Team 2005-13, BSD License
  * @author Masoumeh Seydi
  */
+public class GeoIndexItemVisitor implements GeoIndexVisitor {
+  /** Number of available processors. */
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+  /** Minimum number of candidates that are refined in parallel. */
+  private static final int PARALLEL = 1024;
+  /** Executor for refining candidates in parallel. */
+  private static final ExecutorService REFINERS = Executors.newFixedThreadPool(CORES,
+    new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "GeoIndexRefiner");
+        t.setDaemon(true);
+        return t;
+      }
+    });
 
-public class GeoIndexItemVisitor implements ItemVisitor{
-  /** QName. */
-  QNm qname;
-  /** Data. */
-  Data data;
-  /** Function. */
-  String function;
-  /** Geometry. */
-  Geometry geomtry;
-  /** BaseX Gml Reader. */
-  GmlReader gmlReader = new GmlReader();
-  /** Nodes. */
-  List<DBNode> nodes = new ArrayList<DBNode>();
-  long visit;
-  long test;
-  Performance p = new Performance();
+  /** Index handle. */
+  private final GeoIndexHandle index;
+  /** Predicate. */
+  private final GeoPredicate predicate;
+  /** Query geometry. */
+  private final Geometry geometry;
+  /** Prepared query geometry, used by the querying thread. */
+  private final PreparedGeometry query;
+  /** Maximum number of results. */
+  private final long limit;
+  /** Pre values of the results. */
+  private final IntList pres = new IntList();
+  /** Max-heap with the smallest pre values of the results, if their number is
+   * limited. */
+  private int[] heap;
+  /** Number of pre values in the heap. */
+  private int heaped;
+  /** Stored candidates that have not been refined yet. */
+  private final IntList stored = new IntList();
+  /** Number of refined candidates. */
+  private int candidates;
+  /** Time spent for refining candidates (nanoseconds). */
+  private long time;
 
   /**
    * Default constructor.
-   * @param d Data
+   * @param ix index handle
+   * @param pred predicate
+   * @param geo query geometry
+   * @param max maximum number of results
    */
-  public GeoIndexItemVisitor(final Data d, final String func, final Geometry geo) {
-    this.data = d;
-    this.function = func;
-    this.geomtry = geo;
+  public GeoIndexItemVisitor(final GeoIndexHandle ix, final GeoPredicate pred,
+      final Geometry geo, final long max) {
+    index = ix;
+    predicate = pred;
+    geometry = geo;
+    query = PreparedGeometryFactory.prepare(geo);
+    limit = max;
+    if(max != Long.MAX_VALUE) heap = new int[(int) Math.min(Math.max(max, 0), 16)];
   }
 
   /**
-   * Property to get the list of nodes.
+   * Returns the database nodes of the results in document order.
+   * The nodes are created when they are requested.
    * @return nodes
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
    */
-  public List<DBNode> getList() {
-    return nodes;
+  public Iter getList() throws QueryException, IOException {
+    return index.nodes(getPres());
+  }
+
+  /**
+   * Returns the pre values of the results in ascending order.
+   * @return pre values
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public IntList getPres() throws QueryException, IOException {
+    refine();
+    for(int h = 0; h < heaped; h++) pres.add(heap[h]);
+    heaped = 0;
+    pres.sort();
+    index.tree.stats.refined(candidates, pres.size(), time);
+    return pres;
   }
 
   @Override
-  public void visitItem(final Object item) {
-
-    DBNode dn = new DBNode(data, (Integer) item);
-//    Geometry tmp = null;
-//    try {
-//      tmp = gmlReader.createGeometry(dn);
-//    } catch(QueryException e) {
-//      // TODO Auto-generated catch block
-//      e.printStackTrace();
-//    }
-//    if (geomtry.contains(tmp))
-      nodes.add(dn);
+  public boolean visit(final int item) throws QueryException, IOException {
+    if(heap != null) {
+      if(limit < 1) return false;
+      // skip candidates that cannot be among the first results
+      final int pre = index.pre(item);
+      if(heaped == limit && pre > heap[0]) return true;
+      candidates++;
+      final long t = System.nanoTime();
+      if(predicate.test(query, index.geometry(item))) offer(pre);
+      time += System.nanoTime() - t;
+      return true;
+    }
+    candidates++;
+    if(CORES > 1 && index.stored(item)) {
+      stored.add(item);
+      return true;
+    }
+    final long t = System.nanoTime();
+    if(predicate.test(query, index.geometry(item))) pres.add(index.pre(item));
+    time += System.nanoTime() - t;
+    return true;
   }
 
+  /**
+   * Adds the pre value of a result to the heap. If the heap is full, the largest
+   * pre value is replaced.
+   * @param pre pre value
+   */
+  private void offer(final int pre) {
+    int h;
+    if(heaped < limit) {
+      if(heaped == heap.length) {
+        heap = Arrays.copyOf(heap, (int) Math.min(limit, (long) heaped << 1));
+      }
+      // sift up
+      for(h = heaped++; h > 0 && heap[h - 1 >>> 1] < pre; h = h - 1 >>> 1) {
+        heap[h] = heap[h - 1 >>> 1];
+      }
+    } else {
+      // sift down
+      h = 0;
+      for(int c; (c = (h << 1) + 1) < heaped; h = c) {
+        if(c + 1 < heaped && heap[c + 1] > heap[c]) c++;
+        if(heap[c] <= pre) break;
+        heap[h] = heap[c];
+      }
+    }
+    heap[h] = pre;
+  }
+
+  /**
+   * Refines the collected stored candidates. The candidates are split into chunks,
+   * which are tested in parallel, and the pre values of the matching candidates are
+   * added by the querying thread.
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private void refine() throws QueryException, IOException {
+    final int sz = stored.size();
+    if(sz == 0) return;
+    final long t = System.nanoTime();
+    final boolean[] matches = new boolean[sz];
+    if(sz < PARALLEL) {
+      test(0, sz, matches, query);
+    } else {
+      final int chunks = Math.min(CORES * 4, sz / (PARALLEL >>> 2));
+      final PreparedGeometry plain = new Plain(geometry);
+      final ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+      for(int c = 0; c < chunks; c++) {
+        final int s = (int) ((long) sz * c / chunks);
+        final int e = (int) ((long) sz * (c + 1) / chunks);
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() throws QueryException, IOException {
+            test(s, e, matches, plain);
+            return null;
+          }
+        });
+      }
+      try {
+        for(final Future<Void> f : REFINERS.invokeAll(tasks)) f.get();
+      } catch(final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch(final ExecutionException ex) {
+        final Throwable th = ex.getCause();
+        if(th instanceof QueryException) throw (QueryException) th;
+        if(th instanceof IOException) throw (IOException) th;
+        if(th instanceof RuntimeException) throw (RuntimeException) th;
+        throw new IOException(th);
+      }
+    }
+    for(int m = 0; m < sz; m++) {
+      if(matches[m]) pres.add(index.pre(stored.get(m)));
+    }
+    stored.reset();
+    time += System.nanoTime() - t;
+  }
+
+  /**
+   * Tests the stored candidates in the specified range.
+   * @param s first candidate
+   * @param e end of range
+   * @param matches array for the test results
+   * @param prep query geometry
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  void test(final int s, final int e, final boolean[] matches,
+      final PreparedGeometry prep) throws QueryException, IOException {
+    for(int c = s; c < e; c++) {
+      matches[c] = predicate.test(prep, index.geometry(stored.get(c)));
+    }
+  }
+
+  /**
+   * Query geometry that delegates all tests to the geometry. In contrast to the
+   * prepared geometries of JTS, it can be shared by several threads.
+   */
+  private static final class Plain implements PreparedGeometry {
+    /** Geometry. */
+    private final Geometry geom;
+
+    /**
+     * Constructor.
+     * @param g geometry
+     */
+    Plain(final Geometry g) {
+      geom = g;
+    }
+
+    @Override
+    public Geometry getGeometry() {
+      return geom;
+    }
+
+    @Override
+    public boolean contains(final Geometry g) {
+      return geom.contains(g);
+    }
+
+    @Override
+    public boolean containsProperly(final Geometry g) {
+      return geom.relate(g, "T**FF*FF*");
+    }
+
+    @Override
+    public boolean coveredBy(final Geometry g) {
+      return geom.coveredBy(g);
+    }
+
+    @Override
+    public boolean covers(final Geometry g) {
+      return geom.covers(g);
+    }
+
+    @Override
+    public boolean crosses(final Geometry g) {
+      return geom.crosses(g);
+    }
+
+    @Override
+    public boolean disjoint(final Geometry g) {
+      return geom.disjoint(g);
+    }
+
+    @Override
+    public boolean intersects(final Geometry g) {
+      return geom.intersects(g);
+    }
+
+    @Override
+    public boolean overlaps(final Geometry g) {
+      return geom.overlaps(g);
+    }
+
+    @Override
+    public boolean touches(final Geometry g) {
+      return geom.touches(g);
+    }
+
+    @Override
+    public boolean within(final Geometry g) {
+      return geom.within(g);
+    }
+  }
 }
@@ -0,0 +1,799 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.basex.io.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class collects the entries of a spatial index and writes the index file.
+ * As long as the number of entries does not exceed the buffer size of the index
+ * options, the entries are kept in main memory and packed by {@link GeoIndexPacker}.
+ * Otherwise, the entries are spilled to a temporary file, and the tree is loaded with
+ * a heap of bounded size:
+ * <ul>
+ *   <li> The entries are brought into the order of the leaves with {@link GeoSorter}.
+ *        With STR packing, the tree is tiled top-down: the entries of each subtree
+ *        are sorted by the x coordinates of their centers and split into vertical
+ *        slices, and the entries of each slice are sorted by the y coordinates of
+ *        their centers and split into the subtrees of the next level. Subtrees that
+ *        fit into the buffer are tiled in main memory, and their slices are cut along
+ *        the wider extent of their centers. With Hilbert packing, the
+ *        entries are sorted by the Hilbert values of their centers.</li>
+ *   <li> Leaves are formed by consecutive groups of entries, and the nodes of each
+ *        level by consecutive groups of nodes of the level below, so that the
+ *        children of all nodes can be computed from their offsets. The envelopes of
+ *        each level are written to a temporary file.</li>
+ *   <li> The sections of the index file are written in a few sequential passes over
+ *        the ordered entries.</li>
+ * </ul>
+ * Split packing needs all envelopes at once and is always done in main memory.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoIndexLoader {
+  /** Number of longs per entry: envelope, pre value and id, record, hash. */
+  private static final int WIDTH = 7;
+  /** Size of the file buffers. */
+  private static final int BUFFER = 1 << 16;
+  /** Size of an envelope. */
+  private static final int ENV = 32;
+
+  /** Index file. */
+  private final IOFile file;
+  /** Index options. */
+  private final GeoIndexOptions options;
+  /** Entries in main memory ({@code null} if the entries have been spilled). */
+  private GeoEntries entries = new GeoEntries();
+  /** Spilled entries ({@code null} if the entries are kept in main memory). */
+  private DataOutputStream spill;
+  /** Temporary files. */
+  private final ArrayList<IOFile> temps = new ArrayList<IOFile>();
+  /** Sorters. */
+  private final ArrayList<GeoSorter> sorters = new ArrayList<GeoSorter>();
+  /** Number of entries. */
+  private int size;
+
+  /**
+   * Constructor.
+   * @param f index file
+   * @param opts index options
+   */
+  GeoIndexLoader(final IOFile f, final GeoIndexOptions opts) {
+    file = f;
+    options = opts;
+  }
+
+  /**
+   * Adds an entry.
+   * @param pre pre value
+   * @param id id
+   * @param env envelope
+   * @param record offset of the record in the geometry store, or {@code -1}
+   * @param hash hash of the contents of the geometry
+   * @throws IOException I/O exception
+   */
+  void add(final int pre, final int id, final Envelope env, final long record,
+      final long hash) throws IOException {
+    if(spill == null) {
+      if(size < options.buffer || options.packing == GeoIndexOptions.Packing.SPLIT) {
+        entries.add(pre, id, env, record, hash);
+        size++;
+        return;
+      }
+      // move the buffered entries to a temporary file
+      spill = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temp("spill").file()), BUFFER));
+      final double[] envs = entries.envelopes();
+      for(int e = 0; e < size; e++) {
+        final int o = e << 2;
+        write(spill, envs[o], envs[o + 1], envs[o + 2], envs[o + 3], entries.pre(e),
+            entries.id(e), entries.record(e), entries.hash(e));
+      }
+      entries = null;
+    }
+    write(spill, env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), pre, id,
+        record, hash);
+    size++;
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return number of entries
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Packs the entries and writes them to the index file.
+   * The file is first written to a temporary file and then renamed,
+   * so that readers never see an incomplete index.
+   * @param db state of the database
+   * @param stamp stamp of the geometry store ({@code 0} if there is none)
+   * @param invalid number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  void write(final GeoStamp db, final int stamp, final int invalid) throws IOException {
+    if(spill == null) {
+      entries.write(file, db, stamp, options, invalid);
+      return;
+    }
+    final IOFile tmp = GeoEntries.tmp(file);
+    try {
+      spill.close();
+      load(temps.get(0), tmp, db, stamp, invalid);
+    } finally {
+      for(final GeoSorter sorter : sorters) sorter.delete();
+      for(final IOFile temp : temps) temp.delete();
+    }
+    GeoEntries.move(tmp, file);
+  }
+
+  /**
+   * Loads the spilled entries into a tree and writes it to the specified file.
+   * @param spilled spilled entries
+   * @param tmp file
+   * @param db state of the database
+   * @param stamp stamp of the geometry store
+   * @param invalid number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  private void load(final IOFile spilled, final IOFile tmp, final GeoStamp db,
+      final int stamp, final int invalid) throws IOException {
+    // bring the entries into the order of the leaves
+    final IOFile ordered = temp("order");
+    final DataOutputStream out = output(ordered);
+    try {
+      final Records in = records(spilled, size);
+      try {
+        if(options.packing == GeoIndexOptions.Packing.HILBERT) {
+          hilbert(spilled, in, out);
+        } else {
+          long c = 1;
+          while(c * options.capacity < size) c *= options.capacity;
+          str(in, size, c, out);
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      out.close();
+    }
+
+    // compute the envelopes of the nodes, level by level
+    final ArrayList<IOFile> levels = new ArrayList<IOFile>();
+    final IntList counts = new IntList();
+    int n = size;
+    do {
+      final Records below = levels.isEmpty() ? records(ordered, size) :
+        envelopes(levels.get(levels.size() - 1), n);
+      final IOFile level = temp("level" + levels.size());
+      levels.add(level);
+      n = level(below, n, level);
+      counts.add(n);
+    } while(n > 1);
+    int nodes = 0;
+    for(int l = 0; l < counts.size(); l++) nodes += counts.get(l);
+    final int leaves = counts.get(0);
+
+    final RandomAccessFile raf = new RandomAccessFile(tmp.file(), "rw");
+    try {
+      raf.setLength(0);
+      final FileChannel fc = raf.getChannel();
+      final ByteArrayOutputStream header = new ByteArrayOutputStream();
+      PackedRTree.header(new DataOutputStream(header), size, nodes, leaves, db, stamp,
+          options, invalid);
+      final Section hd = new Section(fc, 0);
+      hd.put(header.toByteArray());
+      hd.flush();
+
+      // node envelopes, bottom-up
+      final long hsize = header.size();
+      final Section envs = new Section(fc, hsize);
+      for(int l = 0; l < counts.size(); l++) {
+        final Records level = envelopes(levels.get(l), counts.get(l));
+        try {
+          for(long[] rec; (rec = level.next()) != null;) {
+            for(int d = 0; d < 4; d++) envs.putLong(rec[d]);
+          }
+        } finally {
+          level.close();
+        }
+      }
+      envs.flush();
+
+      // node children: children of a level are stored in the preceding level
+      final Section children = new Section(fc, hsize + (long) nodes * ENV);
+      int start = 0;
+      for(int l = 0; l < counts.size(); l++) {
+        if(l > 1) start += counts.get(l - 2);
+        final int below = l == 0 ? size : counts.get(l - 1), cap = options.capacity;
+        for(int c = 0; c < counts.get(l); c++) {
+          final long first = (long) c * cap;
+          children.putInt(start + (int) first);
+          children.putInt((int) Math.min(cap, below - first));
+        }
+      }
+      children.flush();
+
+      // entries, and the entry offsets in the order of their ids
+      final long entries = hsize + (long) nodes * (ENV + 8);
+      final long values = entries + (long) size * ENV, ids = values + size * 4L;
+      final long records = ids + size * 4L, hashes = records + size * 8L;
+      final long byId = hashes + size * 8L;
+      final Section ents = new Section(fc, entries), vals = new Section(fc, values);
+      final Section is = new Section(fc, ids), recs = new Section(fc, records);
+      final Section hs = new Section(fc, hashes);
+      final GeoSorter sorter = sorter(2, new GeoSorter.Key() {
+        @Override
+        public double key(final long[] r, final int o) {
+          return r[o];
+        }
+      });
+      final long[] pair = new long[2];
+      int points = 0;
+      double mnx = Double.POSITIVE_INFINITY, mny = Double.POSITIVE_INFINITY;
+      double mxx = Double.NEGATIVE_INFINITY, mxy = Double.NEGATIVE_INFINITY;
+      final Records all = records(ordered, size);
+      try {
+        int e = 0;
+        for(long[] rec; (rec = all.next()) != null; e++) {
+          for(int d = 0; d < 4; d++) ents.putLong(rec[d]);
+          vals.putInt((int) (rec[4] >>> 32));
+          is.putInt((int) rec[4]);
+          recs.putLong(rec[5]);
+          hs.putLong(rec[6]);
+          pair[0] = (int) rec[4];
+          pair[1] = e;
+          sorter.add(pair);
+          if(options.points != null && rec[0] == rec[2] && rec[1] == rec[3]) {
+            final double x = Double.longBitsToDouble(rec[0]);
+            final double y = Double.longBitsToDouble(rec[1]);
+            mnx = Math.min(mnx, x);
+            mny = Math.min(mny, y);
+            mxx = Math.max(mxx, x);
+            mxy = Math.max(mxy, y);
+            points++;
+          }
+        }
+      } finally {
+        all.close();
+      }
+      ents.flush();
+      vals.flush();
+      is.flush();
+      recs.flush();
+      hs.flush();
+      final Section order = new Section(fc, byId);
+      final GeoSorter.Cursor sorted = sorter.sort();
+      try {
+        for(long[] rec; (rec = sorted.next()) != null;) order.putInt((int) rec[1]);
+      } finally {
+        sorted.close();
+      }
+      order.flush();
+      if(options.points != null) {
+        points(fc, byId + size * 4L, ordered, points, mnx, mny, mxx, mxy);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes the point index (see {@link GeoPointIndex}).
+   * @param fc file channel
+   * @param off offset of the point index
+   * @param ordered ordered entries
+   * @param n number of points
+   * @param mnx minimum x coordinate
+   * @param mny minimum y coordinate
+   * @param mxx maximum x coordinate
+   * @param mxy maximum y coordinate
+   * @throws IOException I/O exception
+   */
+  private void points(final FileChannel fc, final long off, final IOFile ordered,
+      final int n, final double mnx, final double mny, final double mxx,
+      final double mxy) throws IOException {
+    final double scx = GeoPointIndex.scale(mnx, mxx), scy = GeoPointIndex.scale(mny, mxy);
+    final GeoSorter sorter = sorter(4, new GeoSorter.Key() {
+      @Override
+      public double key(final long[] r, final int o) {
+        return r[o];
+      }
+    });
+    final long[] point = new long[4];
+    final Records all = records(ordered, size);
+    try {
+      int e = 0;
+      for(long[] rec; (rec = all.next()) != null; e++) {
+        if(rec[0] != rec[2] || rec[1] != rec[3]) continue;
+        point[0] = GeoPointIndex.key(options.points, Double.longBitsToDouble(rec[0]),
+            Double.longBitsToDouble(rec[1]), mnx, mny, scx, scy);
+        point[1] = rec[0];
+        point[2] = rec[1];
+        point[3] = e;
+        sorter.add(point);
+      }
+    } finally {
+      all.close();
+    }
+    final Section header = new Section(fc, off);
+    header.putInt(n);
+    header.putInt(0);
+    header.putDouble(n == 0 ? 0 : mnx);
+    header.putDouble(n == 0 ? 0 : mny);
+    header.putDouble(scx);
+    header.putDouble(scy);
+    header.flush();
+    final long keys = off + GeoPointIndex.HEADER;
+    final Section ks = new Section(fc, keys), cs = new Section(fc, keys + n * 8L);
+    final Section es = new Section(fc, keys + n * 24L);
+    final GeoSorter.Cursor sorted = sorter.sort();
+    try {
+      for(long[] rec; (rec = sorted.next()) != null;) {
+        ks.putLong(rec[0]);
+        cs.putLong(rec[1]);
+        cs.putLong(rec[2]);
+        es.putInt((int) rec[3]);
+      }
+    } finally {
+      sorted.close();
+    }
+    ks.flush();
+    cs.flush();
+    es.flush();
+  }
+
+  /**
+   * Writes the entries in the order of the Hilbert values of their centers.
+   * @param spilled spilled entries
+   * @param in entries
+   * @param out output
+   * @throws IOException I/O exception
+   */
+  private void hilbert(final IOFile spilled, final Records in,
+      final DataOutputStream out) throws IOException {
+    // the grid covers the centers of all entries
+    final double[] bounds = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+        Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+    final Records first = records(spilled, size);
+    try {
+      for(long[] rec; (rec = first.next()) != null;) {
+        final double x = center(rec, 0, 0), y = center(rec, 0, 1);
+        bounds[0] = Math.min(bounds[0], x);
+        bounds[1] = Math.min(bounds[1], y);
+        bounds[2] = Math.max(bounds[2], x);
+        bounds[3] = Math.max(bounds[3], y);
+      }
+    } finally {
+      first.close();
+    }
+    final int grid = (1 << GeoIndexPacker.ORDER) - 1;
+    final double sx = bounds[2] > bounds[0] ? grid / (bounds[2] - bounds[0]) : 0;
+    final double sy = bounds[3] > bounds[1] ? grid / (bounds[3] - bounds[1]) : 0;
+    final GeoSorter sorter = sorter(WIDTH, new GeoSorter.Key() {
+      @Override
+      public double key(final long[] r, final int o) {
+        final int x = (int) ((center(r, o, 0) - bounds[0]) * sx);
+        final int y = (int) ((center(r, o, 1) - bounds[1]) * sy);
+        return GeoIndexOptions.Curve.HILBERT.key(x, y, GeoIndexPacker.ORDER);
+      }
+    });
+    for(long[] rec; (rec = in.next()) != null;) sorter.add(rec);
+    final GeoSorter.Cursor sorted = sorter.sort();
+    try {
+      for(long[] rec; (rec = sorted.next()) != null;) write(out, rec);
+    } finally {
+      sorted.close();
+    }
+  }
+
+  /**
+   * Writes the entries of a subtree in the order of sort-tile-recursive packing.
+   * @param in entries
+   * @param n number of entries of the subtree
+   * @param c maximum number of entries of the subtrees of the children
+   * @param out output
+   * @throws IOException I/O exception
+   */
+  private void str(final Records in, final long n, final long c,
+      final DataOutputStream out) throws IOException {
+    if(c == 1) {
+      // entries of a leaf
+      for(long i = 0; i < n; i++) write(out, in.next());
+    } else if(n <= c) {
+      str(in, n, c / options.capacity, out);
+    } else if(n <= options.buffer) {
+      // tile the subtree in main memory
+      final int s = (int) n;
+      final long[] recs = new long[s * WIDTH];
+      final double[] xs = new double[s], ys = new double[s];
+      final int[] order = new int[s];
+      for(int i = 0; i < s; i++) {
+        System.arraycopy(in.next(), 0, recs, i * WIDTH, WIDTH);
+        xs[i] = center(recs, i * WIDTH, 0);
+        ys[i] = center(recs, i * WIDTH, 1);
+        order[i] = i;
+      }
+      str(recs, xs, ys, order, 0, s, c, out);
+    } else {
+      final long groups = (n + c - 1) / c;
+      final long slices = (long) Math.ceil(Math.sqrt(groups));
+      final long slice = (groups + slices - 1) / slices * c;
+      final GeoSorter xs = sorter(WIDTH, new Center(0));
+      for(long i = 0; i < n; i++) xs.add(in.next());
+      final GeoSorter.Cursor sx = xs.sort();
+      try {
+        for(long s = 0; s < n; s += slice) {
+          final long m = Math.min(slice, n - s);
+          final GeoSorter ys = sorter(WIDTH, new Center(1));
+          for(long i = 0; i < m; i++) ys.add(sx.next());
+          final GeoSorter.Cursor sy = ys.sort();
+          try {
+            for(long t = 0; t < m; t += c) {
+              str(records(sy), Math.min(c, m - t), c / options.capacity, out);
+            }
+          } finally {
+            sy.close();
+          }
+        }
+      } finally {
+        sx.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the entries of a subtree in the order of sort-tile-recursive packing.
+   * @param recs entries
+   * @param xs x coordinates of the centers of the entries
+   * @param ys y coordinates of the centers of the entries
+   * @param order entries of all subtrees
+   * @param s first entry of the subtree
+   * @param e end of the entries of the subtree
+   * @param c maximum number of entries of the subtrees of the children
+   * @param out output
+   * @throws IOException I/O exception
+   */
+  private void str(final long[] recs, final double[] xs, final double[] ys,
+      final int[] order, final int s, final int e, final long c,
+      final DataOutputStream out) throws IOException {
+    final int n = e - s;
+    if(c == 1) {
+      for(int i = s; i < e; i++) {
+        for(int o = order[i] * WIDTH, w = o + WIDTH; o < w; o++) out.writeLong(recs[o]);
+      }
+    } else if(n <= c) {
+      str(recs, xs, ys, order, s, e, c / options.capacity, out);
+    } else {
+      final long groups = (n + c - 1) / c;
+      final long slices = (long) Math.ceil(Math.sqrt(groups));
+      final long slice = (groups + slices - 1) / slices * c;
+      // slices are cut along the wider extent of the centers
+      double mnx = Double.POSITIVE_INFINITY, mny = Double.POSITIVE_INFINITY;
+      double mxx = Double.NEGATIVE_INFINITY, mxy = Double.NEGATIVE_INFINITY;
+      for(int i = s; i < e; i++) {
+        final int o = order[i];
+        mnx = Math.min(mnx, xs[o]);
+        mxx = Math.max(mxx, xs[o]);
+        mny = Math.min(mny, ys[o]);
+        mxy = Math.max(mxy, ys[o]);
+      }
+      final boolean x = mxx - mnx >= mxy - mny;
+      GeoIndexPacker.sort(order, x ? xs : ys, s, e);
+      for(long sl = s; sl < e; sl += slice) {
+        final int se = (int) Math.min(e, sl + slice);
+        GeoIndexPacker.sort(order, x ? ys : xs, (int) sl, se);
+        for(long t = sl; t < se; t += c) {
+          str(recs, xs, ys, order, (int) t, (int) Math.min(se, t + c),
+              c / options.capacity, out);
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the envelopes of the nodes of a level and writes them to a file.
+   * @param in envelopes of the children
+   * @param n number of children
+   * @param level output file
+   * @return number of nodes
+   * @throws IOException I/O exception
+   */
+  private int level(final Records in, final int n, final IOFile level)
+      throws IOException {
+    final DataOutputStream out = output(level);
+    int nodes = 0;
+    try {
+      final double[] bounds = new double[4];
+      for(int c = 0; c < n; c++) {
+        final long[] rec = in.next();
+        final boolean first = c % options.capacity == 0;
+        for(int d = 0; d < 4; d++) {
+          final double v = Double.longBitsToDouble(rec[d]);
+          bounds[d] = first ? v : d < 2 ? Math.min(bounds[d], v) : Math.max(bounds[d], v);
+        }
+        if(c % options.capacity == options.capacity - 1 || c == n - 1) {
+          for(final double b : bounds) out.writeDouble(b);
+          nodes++;
+        }
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+    return nodes;
+  }
+
+  /**
+   * Creates a sorter.
+   * @param width number of longs per record
+   * @param key sort key
+   * @return sorter
+   */
+  private GeoSorter sorter(final int width, final GeoSorter.Key key) {
+    final GeoSorter sorter = new GeoSorter(file.path() + ".run" + sorters.size() + '.',
+        width, options.buffer, key);
+    sorters.add(sorter);
+    return sorter;
+  }
+
+  /**
+   * Registers a temporary file.
+   * @param name suffix of the file name
+   * @return file
+   */
+  private IOFile temp(final String name) {
+    final IOFile temp = new IOFile(file.path() + '.' + name);
+    temps.add(temp);
+    return temp;
+  }
+
+  /**
+   * Returns the coordinate of the center of an entry.
+   * @param recs entries
+   * @param o offset of the entry
+   * @param dim dimension ({@code 0}: x, {@code 1}: y)
+   * @return coordinate
+   */
+  static double center(final long[] recs, final int o, final int dim) {
+    return (Double.longBitsToDouble(recs[o + dim]) +
+        Double.longBitsToDouble(recs[o + dim + 2])) / 2;
+  }
+
+  /**
+   * Writes an entry.
+   * @param out output
+   * @param minx minimum x coordinate
+   * @param miny minimum y coordinate
+   * @param maxx maximum x coordinate
+   * @param maxy maximum y coordinate
+   * @param pre pre value
+   * @param id id
+   * @param record offset of the record in the geometry store
+   * @param hash hash of the contents of the geometry
+   * @throws IOException I/O exception
+   */
+  private static void write(final DataOutputStream out, final double minx,
+      final double miny, final double maxx, final double maxy, final int pre,
+      final int id, final long record, final long hash) throws IOException {
+    out.writeDouble(minx);
+    out.writeDouble(miny);
+    out.writeDouble(maxx);
+    out.writeDouble(maxy);
+    out.writeLong((long) pre << 32 | id & 0xFFFFFFFFL);
+    out.writeLong(record);
+    out.writeLong(hash);
+  }
+
+  /**
+   * Writes an entry.
+   * @param out output
+   * @param rec entry
+   * @throws IOException I/O exception
+   */
+  private static void write(final DataOutputStream out, final long[] rec)
+      throws IOException {
+    for(int w = 0; w < WIDTH; w++) out.writeLong(rec[w]);
+  }
+
+  /**
+   * Creates a buffered output stream for the specified file.
+   * @param f file
+   * @return output stream
+   * @throws IOException I/O exception
+   */
+  private static DataOutputStream output(final IOFile f) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(f.file()), BUFFER));
+  }
+
+  /**
+   * Returns the entries of a file.
+   * @param f file
+   * @param n number of entries
+   * @return entries
+   * @throws IOException I/O exception
+   */
+  private static Records records(final IOFile f, final long n) throws IOException {
+    return new FileRecords(f, n, WIDTH);
+  }
+
+  /**
+   * Returns the envelopes of a file.
+   * @param f file
+   * @param n number of envelopes
+   * @return envelopes
+   * @throws IOException I/O exception
+   */
+  private static Records envelopes(final IOFile f, final long n) throws IOException {
+    return new FileRecords(f, n, 4);
+  }
+
+  /**
+   * Returns the records of a cursor.
+   * @param cursor cursor
+   * @return records
+   */
+  private static Records records(final GeoSorter.Cursor cursor) {
+    return new Records() {
+      @Override
+      public long[] next() throws IOException {
+        return cursor.next();
+      }
+      @Override
+      public void close() { }
+    };
+  }
+
+  /** Sequence of records. */
+  private interface Records {
+    /**
+     * Returns the next record.
+     * @return record (the array may be reused by subsequent calls), or {@code null}
+     * @throws IOException I/O exception
+     */
+    long[] next() throws IOException;
+
+    /**
+     * Closes the sequence.
+     * @throws IOException I/O exception
+     */
+    void close() throws IOException;
+  }
+
+  /** Records of a file. */
+  private static final class FileRecords implements Records {
+    /** Input stream. */
+    private final DataInputStream in;
+    /** Current record. */
+    private final long[] rec;
+    /** Number of records that are left. */
+    private long left;
+
+    /**
+     * Constructor.
+     * @param f file
+     * @param n number of records
+     * @param w number of longs per record
+     * @throws IOException I/O exception
+     */
+    FileRecords(final IOFile f, final long n, final int w) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(f.file()), BUFFER));
+      rec = new long[w];
+      left = n;
+    }
+
+    @Override
+    public long[] next() throws IOException {
+      if(left == 0) return null;
+      for(int w = 0; w < rec.length; w++) rec[w] = in.readLong();
+      left--;
+      return rec;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Sort key: coordinate of the center of an entry. */
+  private static final class Center implements GeoSorter.Key {
+    /** Dimension. */
+    private final int dim;
+
+    /**
+     * Constructor.
+     * @param d dimension ({@code 0}: x, {@code 1}: y)
+     */
+    Center(final int d) {
+      dim = d;
+    }
+
+    @Override
+    public double key(final long[] recs, final int off) {
+      return center(recs, off, dim);
+    }
+  }
+
+  /** Buffered output to a section of a file. */
+  private static final class Section {
+    /** File channel. */
+    private final FileChannel channel;
+    /** Buffer. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+    /** File offset of the buffer. */
+    private long pos;
+
+    /**
+     * Constructor.
+     * @param fc file channel
+     * @param off offset of the section
+     */
+    Section(final FileChannel fc, final long off) {
+      channel = fc;
+      pos = off;
+    }
+
+    /**
+     * Writes an integer.
+     * @param v value
+     * @throws IOException I/O exception
+     */
+    void putInt(final int v) throws IOException {
+      if(buffer.remaining() < 4) flush();
+      buffer.putInt(v);
+    }
+
+    /**
+     * Writes a long.
+     * @param v value
+     * @throws IOException I/O exception
+     */
+    void putLong(final long v) throws IOException {
+      if(buffer.remaining() < 8) flush();
+      buffer.putLong(v);
+    }
+
+    /**
+     * Writes a double.
+     * @param v value
+     * @throws IOException I/O exception
+     */
+    void putDouble(final double v) throws IOException {
+      putLong(Double.doubleToRawLongBits(v));
+    }
+
+    /**
+     * Writes bytes.
+     * @param bytes bytes
+     * @throws IOException I/O exception
+     */
+    void put(final byte[] bytes) throws IOException {
+      for(final byte b : bytes) {
+        if(!buffer.hasRemaining()) flush();
+        buffer.put(b);
+      }
+    }
+
+    /**
+     * Writes the buffer to the file.
+     * @throws IOException I/O exception
+     */
+    void flush() throws IOException {
+      buffer.flip();
+      while(buffer.hasRemaining()) pos += channel.write(buffer, pos);
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package org.expath.ns;
+
+import java.io.*;
+
+import org.basex.data.*;
+import org.basex.query.*;
+import org.basex.query.iter.*;
+import org.basex.query.value.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class contains the functions that are shared by all modules of the
+ * spatial index ({@link GeoIndex}, {@link ProGeoIndex} and {@link SimpleGeoIndex}).
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public abstract class GeoIndexModule extends QueryModule {
+  /** Basex custom GML Reader. */
+  final GmlReader bxGmlReader = new GmlReader();
+
+  /**
+   * Returns a handle to the spatial index of a database.
+   * @param db database name
+   * @return index handle
+   * @throws Exception exception
+   */
+  GeoIndexHandle index(final String db) throws Exception {
+    final Data data = context.resource.data(db, null);
+    try {
+      return GeoIndexes.get(data);
+    } catch(final IOException ex) {
+      throw GeoErrors.indexIO(ex);
+    }
+  }
+
+  /**
+   * Creates the spatial index of a database. All GML geometries of the database
+   * are indexed, and the index file is written to the database directory.
+   * @param db database name
+   * @return number of indexed geometries
+   * @throws Exception exception
+   */
+  @Requires(Permission.WRITE)
+  public Int createIndex(final String db) throws Exception {
+    return build(new GeoIndexBuilder(context.resource.data(db, null)));
+  }
+
+  /**
+   * Finds the two nearest neighbor in the spatial index.
+   * @param db Database file name
+   * @return Two nearest neighbor
+   * @throws Exception exception
+   */
+  public Iter nearestNeighbour(final String db) throws Exception {
+    final GeoIndexHandle index = index(db);
+    return index.nodes(index.closest());
+  }
+
+  /**
+   * Finds the item in the spatial index which is the nearest to the given object.
+   * @param db Database file name
+   * @param obj Object
+   * @return The nearest item to the Object
+   * @throws Exception exception
+   */
+  public Iter nearestNeighbour(final String db, final ANode obj) throws Exception {
+    return nearest(db, obj, 1);
+  }
+
+  /**
+   * Finds the items in index tree which are the nearest to the given object,
+   * in ascending order of their distances. If the object has a geographic
+   * {@code srsName}, geodesic distances are used.
+   * @param db Database file name
+   * @param obj Object
+   * @param k number of items
+   * @return The nearest items to the Object
+   * @throws Exception exception
+   */
+  public Iter nearest(final String db, final ANode obj, final long k)
+      throws Exception {
+    final GeoIndexHandle index = index(db);
+    final IntList pres = index.nearest(bxGmlReader.createGeometry(obj),
+        (int) Math.min(k, Integer.MAX_VALUE), GeoCrs.get(obj));
+    return index.nodes(pres);
+  }
+
+  /**
+   * Finds the items whose bound intersect with the given envelope.
+   * @param db Database file name.
+   * @param obj Object that its envelope is checked to find the others
+   * @return items, which are returned while the index is traversed
+   * @throws Exception exception
+   */
+  public Iter query(final String db, final ANode obj) throws Exception {
+    final GeoIndexHandle index = index(db);
+    return index.iter(bxGmlReader.createGeometry(obj).getEnvelopeInternal());
+  }
+
+  /**
+   * Returns all geometries of a database that are within the specified distance of
+   * the given geometry, in document order. The index is queried with the envelope
+   * of the geometry expanded by the distance, and the candidates are refined with
+   * the exact distance. If all indexed geometries are points and a point index has
+   * been created, the candidates are found by range scans of the point index.
+   * If the query geometry has a geographic {@code srsName}, the distance is given
+   * in meters, and the indexed geometries are assumed to have the same system.
+   * @param db database name
+   * @param geo query geometry
+   * @param distance distance
+   * @return geometries
+   * @throws Exception exception
+   */
+  public Iter dwithin(final String db, final ANode geo, final double distance)
+      throws Exception {
+    return refine(db, geo, GeoPredicate.dwithin(distance, GeoCrs.get(geo)),
+        Long.MAX_VALUE);
+  }
+
+  /**
+   * Joins the geometries of two databases and returns all pairs of geometries for
+   * which the specified predicate is true. The spatial indexes of both databases are
+   * traversed synchronously while the results are requested, and the two nodes of
+   * each pair are returned one after another, in the order of the traversal.
+   * The {@code disjoint} predicate is rejected.
+   * @param db1 first database
+   * @param db2 second database
+   * @param predicate name of the predicate (e.g. {@code intersects})
+   * @return pairs of geometries
+   * @throws Exception exception
+   */
+  public Iter join(final String db1, final String db2, final String predicate)
+      throws Exception {
+    return new GeoJoinIter(index(db1), index(db2), GeoPredicate.get(predicate));
+  }
+
+  /**
+   * Returns all nodes for which the specified predicate is true, i.e., the result of
+   * {@code $nodes[geo:pred(., $geo)]}, in their input order. The spatial index of
+   * a database is used if the database is indexed and if the index is estimated
+   * to be selective; otherwise, the predicate is tested for each node of the
+   * database. Nodes that are no GML geometries are ignored. The nodes are filtered
+   * while the results are requested.
+   * @param nodes nodes
+   * @param geo query geometry
+   * @param predicate name of the predicate (e.g. {@code intersects}), or an
+   *        intersection matrix pattern (e.g. {@code T*F**F***})
+   * @return matching nodes
+   * @throws Exception exception
+   */
+  public Iter select(final Value nodes, final ANode geo, final String predicate)
+      throws Exception {
+    return GeoPlanner.select(nodes, bxGmlReader.createGeometry(geo),
+        GeoPredicate.get(predicate));
+  }
+
+  /**
+   * Estimates the number of geometries of a database whose envelopes intersect the
+   * envelope of the specified geometry. The estimate is computed from the index.
+   * @param db database name
+   * @param geo query geometry
+   * @return estimated number of geometries
+   * @throws Exception exception
+   */
+  public Int estimate(final String db, final ANode geo) throws Exception {
+    return Int.get(index(db).estimate(
+        bxGmlReader.createGeometry(geo).getEnvelopeInternal()));
+  }
+
+  /**
+   * Estimates the fraction of the geometries of a database for which the specified
+   * predicate may be true. The estimate is computed from the index.
+   * @param db database name
+   * @param geo query geometry
+   * @param predicate name of the predicate (e.g. {@code intersects})
+   * @return selectivity, between {@code 0} and {@code 1}
+   * @throws Exception exception
+   */
+  public Dbl selectivity(final String db, final ANode geo, final String predicate)
+      throws Exception {
+    return Dbl.get(GeoPlanner.selectivity(index(db), bxGmlReader.createGeometry(geo),
+        GeoPredicate.get(predicate).converse()));
+  }
+
+  /**
+   * Returns statistics on the spatial index of a database: the structure of the
+   * tree (entries, nodes, leaves, depth, node capacity, total and overlapping node
+   * area), the sizes of the index and geometry store files, the numbers of added,
+   * updated or deleted geometries that have not been merged into the index yet and
+   * of geometries that cannot be parsed, and the counters of the queries since the
+   * index has been opened (queries, visited tree nodes, refined candidates, hits,
+   * refinement time, and failed merges of the index with the changes, along with
+   * the error of the last failed merge).
+   * @param db database name
+   * @return element with statistics
+   * @throws Exception exception
+   */
+  public FElem indexInfo(final String db) throws Exception {
+    return index(db).info();
+  }
+
+  /**
+   * Returns a tile of a web map with the geometries of a database. Tiles are
+   * addressed as in common web map clients: each tile covers 256 x 256 pixels of the
+   * Web Mercator projection, and tile {@code 0/0/0} covers the whole world. Small
+   * geometries are grouped into clusters, and large geometries are simplified and
+   * clipped to the tile (see {@link GeoTiles}). The geometries of the database are
+   * assumed to have geographic coordinates in the order longitude, latitude.
+   * @param db database name
+   * @param z zoom level
+   * @param x column of the tile
+   * @param y row of the tile
+   * @return tile
+   * @throws Exception exception
+   */
+  public FElem tile(final String db, final long z, final long x, final long y)
+      throws Exception {
+    return tile(db, z, x, y, "EPSG:4326");
+  }
+
+  /**
+   * Returns a tile of a web map with the geometries of a database, which have the
+   * specified reference system.
+   * @param db database name
+   * @param z zoom level
+   * @param x column of the tile
+   * @param y row of the tile
+   * @param srsName name of the reference system of the database
+   * @return tile
+   * @throws Exception exception
+   */
+  public FElem tile(final String db, final long z, final long x, final long y,
+      final String srsName) throws Exception {
+    return GeoTiles.get(index(db), z, x, y, srsName);
+  }
+
+  /**
+   * Creates the spatial index of a database with the specified builder.
+   * @param builder index builder
+   * @return number of indexed geometries
+   * @throws Exception exception
+   */
+  final Int build(final GeoIndexBuilder builder) throws Exception {
+    return Int.get(builder.build());
+  }
+
+  /**
+   * Returns all geometries of a database for which the specified predicate is true.
+   * The candidates found by the index are refined with the prepared query geometry.
+   * If the number of results is limited, the first results in document order are
+   * returned.
+   * @param db database name
+   * @param obj query geometry
+   * @param pred predicate
+   * @param limit maximum number of results
+   * @return geometries, in document order
+   * @throws Exception exception
+   */
+  Iter refine(final String db, final ANode obj, final GeoPredicate pred,
+      final long limit) throws Exception {
+    final GeoIndexHandle index = index(db);
+    final Geometry geo = bxGmlReader.createGeometry(obj);
+    final GeoIndexItemVisitor visitor = new GeoIndexItemVisitor(index, pred, geo, limit);
+    if(limit > 0) index.candidates(pred.envelope(geo), visitor);
+    return visitor.getList();
+  }
+}
@@ -0,0 +1,175 @@
+package org.expath.ns;
+
+import java.util.*;
+
+import org.basex.query.*;
+
+/**
+ * This class contains the options for building a spatial index. The options are
+ * stored in the header of the index file, so that merged indexes are packed in the
+ * same way as the original index. Options are specified as comma-separated list of
+ * key/value pairs, such as {@code capacity=32,packing=hilbert}:
+ * <ul>
+ *   <li> {@code capacity}: maximum number of children of a tree node
+ *        (default: {@code 10})</li>
+ *   <li> {@code packing}: bulk-loading strategy: {@code str} (sort-tile-recursive),
+ *        {@code hilbert} (nodes are filled in the order of the Hilbert values of
+ *        the envelope centers), or {@code split} (entries are recursively split
+ *        in the style of R*-trees; default: {@code str})</li>
+ *   <li> {@code dims}: number of indexed dimensions (default: {@code 2})</li>
+ *   <li> {@code points}: space-filling curve of the point index: {@code zorder},
+ *        {@code hilbert}, or {@code none} (default). If a curve is specified, the
+ *        keys of all point geometries on this curve are stored in a sorted array,
+ *        and if all indexed geometries are points, window and radius queries are
+ *        answered by range scans of this array instead of tree traversals.</li>
+ *   <li> {@code buffer}: maximum number of entries that are kept in main memory
+ *        while the index is built (default: {@code 262144}). If more geometries are
+ *        found, the entries are sorted in runs on disk. This option only affects
+ *        the building of an index and is not stored in the index file.</li>
+ * </ul>
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexOptions {
+  /** Bulk-loading strategies. */
+  public enum Packing {
+    /** Sort-tile-recursive packing. */
+    STR,
+    /** Hilbert-sorted packing. */
+    HILBERT,
+    /** Recursive split packing. */
+    SPLIT
+  }
+
+  /** Space-filling curves of the point index. */
+  public enum Curve {
+    /** Z-order (Morton) curve: the bits of the coordinates are interleaved. */
+    ZORDER {
+      @Override
+      long key(final int x, final int y, final int order) {
+        long k = 0;
+        for(int b = order - 1; b >= 0; b--) {
+          k = k << 2 | (x >>> b & 1) << 1 | y >>> b & 1;
+        }
+        return k;
+      }
+    },
+    /** Hilbert curve: neighboring keys always belong to adjacent cells. */
+    HILBERT {
+      @Override
+      long key(final int x, final int y, final int order) {
+        final int max = (1 << order) - 1;
+        long d = 0;
+        int hx = x, hy = y;
+        for(int s = 1 << order - 1; s > 0; s >>>= 1) {
+          final int rx = (hx & s) > 0 ? 1 : 0, ry = (hy & s) > 0 ? 1 : 0;
+          d += (long) s * s * (3 * rx ^ ry);
+          // rotate the quadrant
+          if(ry == 0) {
+            if(rx == 1) {
+              hx = max - hx;
+              hy = max - hy;
+            }
+            final int t = hx;
+            hx = hy;
+            hy = t;
+          }
+        }
+        return d;
+      }
+    };
+
+    /**
+     * Computes the key of a grid cell. The cells of each aligned square with a side
+     * length of {@code 2^k} have contiguous keys, which differ in the lowest
+     * {@code 2k} bits.
+     * @param x x coordinate of the cell
+     * @param y y coordinate of the cell
+     * @param order number of bits per coordinate
+     * @return key
+     */
+    abstract long key(int x, int y, int order);
+  }
+
+  /** Default options. */
+  public static final GeoIndexOptions DEFAULT =
+      new GeoIndexOptions(10, Packing.STR, 2, null, 1 << 18);
+  /** Maximum node capacity. */
+  private static final int MAX = 1 << 16;
+
+  /** Maximum number of children of a tree node. */
+  public final int capacity;
+  /** Bulk-loading strategy. */
+  public final Packing packing;
+  /** Number of indexed dimensions. */
+  public final int dims;
+  /** Curve of the point index ({@code null} if no point index is created). */
+  public final Curve points;
+  /** Maximum number of entries that are kept in main memory while the index is built. */
+  public final int buffer;
+
+  /**
+   * Constructor.
+   * @param c node capacity
+   * @param p bulk-loading strategy
+   * @param d number of dimensions
+   * @param pt curve of the point index (may be {@code null})
+   * @param b maximum number of entries in main memory
+   */
+  GeoIndexOptions(final int c, final Packing p, final int d, final Curve pt,
+      final int b) {
+    capacity = c;
+    packing = p;
+    dims = d;
+    points = pt;
+    buffer = b;
+  }
+
+  /**
+   * Parses options.
+   * @param options comma-separated list of options (may be {@code null} or empty)
+   * @return options
+   * @throws QueryException query exception
+   */
+  public static GeoIndexOptions parse(final String options) throws QueryException {
+    if(options == null || options.trim().isEmpty()) return DEFAULT;
+    int c = DEFAULT.capacity, d = DEFAULT.dims, b = DEFAULT.buffer;
+    Packing p = DEFAULT.packing;
+    Curve pt = DEFAULT.points;
+    for(final String option : options.split(",")) {
+      final String[] kv = option.split("=", 2);
+      final String key = kv[0].trim(), value = kv.length == 2 ? kv[1].trim() : "";
+      try {
+        if(key.equals("capacity")) {
+          c = Integer.parseInt(value);
+          if(c < 2 || c > MAX) throw GeoErrors.indexOption(option.trim());
+        } else if(key.equals("packing")) {
+          p = Packing.valueOf(value.toUpperCase(Locale.ENGLISH));
+        } else if(key.equals("points")) {
+          pt = value.equalsIgnoreCase("none") ? null :
+            Curve.valueOf(value.toUpperCase(Locale.ENGLISH));
+        } else if(key.equals("dims")) {
+          // envelopes are two-dimensional; z coordinates are not indexed
+          d = Integer.parseInt(value);
+          if(d != 2) throw GeoErrors.indexOption(option.trim());
+        } else if(key.equals("buffer")) {
+          b = Integer.parseInt(value);
+          if(b < 1) throw GeoErrors.indexOption(option.trim());
+        } else {
+          throw GeoErrors.indexOption(option.trim());
+        }
+      } catch(final IllegalArgumentException ex) {
+        throw GeoErrors.indexOption(option.trim());
+      }
+    }
+    return new GeoIndexOptions(c, p, d, pt, b);
+  }
+
+  @Override
+  public String toString() {
+    return "capacity=" + capacity + ",packing=" +
+        packing.name().toLowerCase(Locale.ENGLISH) + ",dims=" + dims + ",points=" +
+        (points == null ? "none" : points.name().toLowerCase(Locale.ENGLISH));
+  }
+}
@@ -0,0 +1,329 @@
+package org.expath.ns;
+
+import java.util.*;
+
+/**
+ * This class bulk-loads the envelopes of index entries into a tree. The tree is
+ * built bottom-up, level by level: the items of a level (entries or nodes) are
+ * grouped according to the packing strategy, and each group becomes a node of the
+ * next level, until a single root node is left. All leaf nodes have the same depth.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoIndexPacker {
+  /** Number of bits per dimension of the Hilbert grid. */
+  static final int ORDER = 15;
+  /** Minimum fraction of the groups in each part of a split. */
+  private static final double FILL = 0.3;
+  /** Maximum number of items that are sorted by insertion sort. */
+  private static final int INSERTION = 16;
+
+  /** Children of the nodes of each level, bottom-up. Children of leaf nodes are
+   * entry offsets, and children of other nodes are node offsets of the level below. */
+  final ArrayList<int[][]> children = new ArrayList<int[][]>();
+  /** Envelopes of the nodes of each level (min x, min y, max x, max y), bottom-up. */
+  final ArrayList<double[]> envelopes = new ArrayList<double[]>();
+
+  /** Options. */
+  private final GeoIndexOptions options;
+
+  /**
+   * Constructor.
+   * @param opts options
+   */
+  GeoIndexPacker(final GeoIndexOptions opts) {
+    options = opts;
+  }
+
+  /**
+   * Packs the specified envelopes.
+   * @param envs envelopes (min x, min y, max x, max y)
+   * @param size number of envelopes
+   */
+  void pack(final double[] envs, final int size) {
+    if(size == 0) return;
+    double[] items = envs;
+    int n = size;
+    do {
+      final int[] order = new int[n];
+      for(int i = 0; i < n; i++) order[i] = i;
+      final double[][] keys = { keys(items, n, 0), keys(items, n, 1) };
+      final ArrayList<int[]> groups = new ArrayList<int[]>();
+      switch(options.packing) {
+        case HILBERT: hilbert(keys, order, groups); break;
+        case SPLIT:   split(items, keys, order, 0, n, groups); break;
+        default:      str(keys, order, groups); break;
+      }
+      final int[][] level = groups.toArray(new int[groups.size()][]);
+      final double[] bounds = new double[level.length << 2];
+      for(int g = 0; g < level.length; g++) {
+        final int b = g << 2;
+        bounds[b] = bounds[b + 1] = Double.POSITIVE_INFINITY;
+        bounds[b + 2] = bounds[b + 3] = Double.NEGATIVE_INFINITY;
+        for(final int i : level[g]) include(bounds, b, items, i << 2);
+      }
+      children.add(level);
+      envelopes.add(bounds);
+      items = bounds;
+      n = level.length;
+    } while(n > 1);
+  }
+
+  /**
+   * Sort-tile-recursive packing: the items are sorted by the x coordinates of their
+   * centers and split into vertical slices, and the items of each slice are sorted
+   * by the y coordinates of their centers and split into groups.
+   * @param keys center coordinates of the items
+   * @param order items
+   * @param groups groups
+   */
+  private void str(final double[][] keys, final int[] order,
+      final ArrayList<int[]> groups) {
+    final int n = order.length, cap = options.capacity;
+    final int slices = (int) Math.ceil(Math.sqrt(Math.ceil((double) n / cap)));
+    final int slice = (int) Math.ceil((double) n / slices / cap) * cap;
+    sort(order, keys[0], 0, n);
+    for(int s = 0; s < n; s += slice) {
+      final int e = Math.min(n, s + slice);
+      sort(order, keys[1], s, e);
+      chunk(order, s, e, groups);
+    }
+  }
+
+  /**
+   * Hilbert packing: the items are sorted by the Hilbert values of their centers and
+   * split into groups.
+   * @param keys center coordinates of the items
+   * @param order items
+   * @param groups groups
+   */
+  private void hilbert(final double[][] keys, final int[] order,
+      final ArrayList<int[]> groups) {
+    final int n = order.length;
+    double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+    double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+    final double[] xs = keys[0], ys = keys[1];
+    for(int i = 0; i < n; i++) {
+      minx = Math.min(minx, xs[i]);
+      maxx = Math.max(maxx, xs[i]);
+      miny = Math.min(miny, ys[i]);
+      maxy = Math.max(maxy, ys[i]);
+    }
+    final int grid = (1 << ORDER) - 1;
+    final double sx = maxx > minx ? grid / (maxx - minx) : 0;
+    final double sy = maxy > miny ? grid / (maxy - miny) : 0;
+    final long[] hs = new long[n];
+    for(int i = 0; i < n; i++) {
+      final int x = (int) ((xs[i] - minx) * sx), y = (int) ((ys[i] - miny) * sy);
+      hs[i] = GeoIndexOptions.Curve.HILBERT.key(x, y, ORDER) << 32 | i;
+    }
+    Arrays.sort(hs);
+    for(int i = 0; i < n; i++) order[i] = (int) hs[i];
+    chunk(order, 0, n, groups);
+  }
+
+  /**
+   * Split packing: the items are recursively split in two parts. As in R*-trees,
+   * the split axis is chosen by the minimum sum of the perimeters of all candidate
+   * splits, and the split position along this axis by the minimum overlap and area
+   * of the two parts. Split positions are multiples of the node capacity, so that
+   * all groups except for one are full, and each part gets a minimum share of the
+   * groups, so that the recursion depth is logarithmic.
+   * @param envs envelopes
+   * @param keys center coordinates of the items
+   * @param order items
+   * @param s first item
+   * @param e end of items
+   * @param groups groups
+   */
+  private void split(final double[] envs, final double[][] keys, final int[] order,
+      final int s, final int e, final ArrayList<int[]> groups) {
+    final int n = e - s, cap = options.capacity;
+    if(n <= cap) {
+      groups.add(Arrays.copyOfRange(order, s, e));
+      return;
+    }
+    // candidate splits: k groups in the first part
+    final int parts = (n + cap - 1) / cap;
+    final int min = Math.max(1, (int) Math.ceil(parts * FILL));
+    final int max = Math.max(min, Math.min(parts - 1, parts - min));
+    final double[] lower = new double[n << 2], upper = new double[n << 2];
+    int axis = 0;
+    double best = Double.POSITIVE_INFINITY;
+    for(int a = 0; a < 2; a++) {
+      sort(order, keys[a], s, e);
+      bounds(envs, order, s, e, lower, upper);
+      double margin = 0;
+      for(int k = min; k <= max; k++) {
+        final int i = k * cap;
+        margin += perimeter(lower, i - 1 << 2) + perimeter(upper, i << 2);
+      }
+      if(margin < best) {
+        best = margin;
+        axis = a;
+      }
+    }
+    if(axis == 0) {
+      sort(order, keys[0], s, e);
+      bounds(envs, order, s, e, lower, upper);
+    }
+    int split = min * cap;
+    double overlap = Double.POSITIVE_INFINITY, area = Double.POSITIVE_INFINITY;
+    for(int k = min; k <= max; k++) {
+      final int i = k * cap, l = i - 1 << 2, u = i << 2;
+      final double w = Math.min(lower[l + 2], upper[u + 2]) -
+          Math.max(lower[l], upper[u]);
+      final double h = Math.min(lower[l + 3], upper[u + 3]) -
+          Math.max(lower[l + 1], upper[u + 1]);
+      final double o = w > 0 && h > 0 ? w * h : 0;
+      final double ar = area(lower, l) + area(upper, u);
+      if(o < overlap || o == overlap && ar < area) {
+        overlap = o;
+        area = ar;
+        split = i;
+      }
+    }
+    split(envs, keys, order, s, s + split, groups);
+    split(envs, keys, order, s + split, e, groups);
+  }
+
+  /**
+   * Computes the envelopes of all prefixes and suffixes of the specified items.
+   * @param envs envelopes
+   * @param order items
+   * @param s first item
+   * @param e end of items
+   * @param lower envelopes of the prefixes ending at each item
+   * @param upper envelopes of the suffixes starting at each item
+   */
+  private static void bounds(final double[] envs, final int[] order, final int s,
+      final int e, final double[] lower, final double[] upper) {
+    final int n = e - s;
+    for(int i = 0; i < n; i++) {
+      final int b = i << 2;
+      if(i == 0) {
+        System.arraycopy(envs, order[s] << 2, lower, 0, 4);
+      } else {
+        System.arraycopy(lower, b - 4, lower, b, 4);
+        include(lower, b, envs, order[s + i] << 2);
+      }
+    }
+    for(int i = n - 1; i >= 0; i--) {
+      final int b = i << 2;
+      if(i == n - 1) {
+        System.arraycopy(envs, order[e - 1] << 2, upper, b, 4);
+      } else {
+        System.arraycopy(upper, b + 4, upper, b, 4);
+        include(upper, b, envs, order[s + i] << 2);
+      }
+    }
+  }
+
+  /**
+   * Splits the specified items into groups of the node capacity.
+   * @param order items
+   * @param s first item
+   * @param e end of items
+   * @param groups groups
+   */
+  private void chunk(final int[] order, final int s, final int e,
+      final ArrayList<int[]> groups) {
+    for(int i = s; i < e; i += options.capacity) {
+      groups.add(Arrays.copyOfRange(order, i, Math.min(e, i + options.capacity)));
+    }
+  }
+
+  /**
+   * Returns the center coordinates of all items in the specified dimension.
+   * @param envs envelopes
+   * @param n number of items
+   * @param dim dimension ({@code 0}: x, {@code 1}: y)
+   * @return coordinates, indexed by item
+   */
+  private static double[] keys(final double[] envs, final int n, final int dim) {
+    final double[] keys = new double[n];
+    for(int i = 0; i < keys.length; i++) {
+      keys[i] = (envs[(i << 2) + dim] + envs[(i << 2) + dim + 2]) / 2;
+    }
+    return keys;
+  }
+
+  /**
+   * Extends an envelope to include another envelope.
+   * @param bounds array with the envelope to be extended
+   * @param b offset of the envelope to be extended
+   * @param envs array with the envelope to be included
+   * @param e offset of the envelope to be included
+   */
+  private static void include(final double[] bounds, final int b, final double[] envs,
+      final int e) {
+    bounds[b] = Math.min(bounds[b], envs[e]);
+    bounds[b + 1] = Math.min(bounds[b + 1], envs[e + 1]);
+    bounds[b + 2] = Math.max(bounds[b + 2], envs[e + 2]);
+    bounds[b + 3] = Math.max(bounds[b + 3], envs[e + 3]);
+  }
+
+  /**
+   * Returns the perimeter of an envelope.
+   * @param envs envelopes
+   * @param e offset of the envelope
+   * @return perimeter
+   */
+  private static double perimeter(final double[] envs, final int e) {
+    return 2 * (envs[e + 2] - envs[e] + envs[e + 3] - envs[e + 1]);
+  }
+
+  /**
+   * Returns the area of an envelope.
+   * @param envs envelopes
+   * @param e offset of the envelope
+   * @return area
+   */
+  private static double area(final double[] envs, final int e) {
+    return (envs[e + 2] - envs[e]) * (envs[e + 3] - envs[e + 1]);
+  }
+
+  /**
+   * Sorts a range of items by their keys.
+   * @param order items
+   * @param keys keys, indexed by item
+   * @param s first item
+   * @param e end of items
+   */
+  static void sort(final int[] order, final double[] keys, final int s,
+      final int e) {
+    int lo = s, hi = e;
+    while(hi - lo > INSERTION) {
+      // median of three
+      final int m = lo + hi - 1 >>> 1;
+      final double a = keys[order[lo]], b = keys[order[m]], c = keys[order[hi - 1]];
+      final double pivot = a < b ? b < c ? b : a < c ? c : a : a < c ? a : b < c ? c : b;
+      int i = lo, j = hi - 1;
+      while(i <= j) {
+        while(keys[order[i]] < pivot) i++;
+        while(keys[order[j]] > pivot) j--;
+        if(i <= j) {
+          final int t = order[i];
+          order[i++] = order[j];
+          order[j--] = t;
+        }
+      }
+      // recurse into the smaller part
+      if(j + 1 - lo < hi - i) {
+        sort(order, keys, lo, j + 1);
+        lo = i;
+      } else {
+        sort(order, keys, i, hi);
+        hi = j + 1;
+      }
+    }
+    for(int i = lo + 1; i < hi; i++) {
+      final int t = order[i];
+      final double k = keys[t];
+      int j = i - 1;
+      for(; j >= lo && keys[order[j]] > k; j--) order[j + 1] = order[j];
+      order[j + 1] = t;
+    }
+  }
+}
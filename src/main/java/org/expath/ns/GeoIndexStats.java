@@ -0,0 +1,98 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+
+/**
+ * This class contains the query counters of a spatial index. The counters are
+ * shared by all queries on the same index file and are updated once per query.
+ * Failed merges of the index with the changes of its database are counted as well.
+ * The counters are reset if the index is rebuilt or evicted from memory.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoIndexStats {
+  /** Number of refined queries. */
+  private final AtomicLong queries = new AtomicLong();
+  /** Number of visited tree nodes. */
+  private final AtomicLong nodes = new AtomicLong();
+  /** Number of refined candidates. */
+  private final AtomicLong candidates = new AtomicLong();
+  /** Number of candidates for which the predicate was true. */
+  private final AtomicLong hits = new AtomicLong();
+  /** Time spent for refining candidates (nanoseconds). */
+  private final AtomicLong time = new AtomicLong();
+  /** Number of failed merges. */
+  private final AtomicInteger failures = new AtomicInteger();
+  /** Error of the last failed merge ({@code null} if no merge has failed). */
+  private volatile String error;
+
+  /**
+   * Registers the number of tree nodes that have been visited by a query.
+   * @param n number of nodes
+   */
+  void visited(final int n) {
+    nodes.addAndGet(n);
+  }
+
+  /**
+   * Registers the refinement of a query.
+   * @param cands number of refined candidates
+   * @param hts number of candidates for which the predicate was true
+   * @param nano refinement time (nanoseconds)
+   */
+  void refined(final long cands, final long hts, final long nano) {
+    queries.incrementAndGet();
+    candidates.addAndGet(cands);
+    hits.addAndGet(hts);
+    time.addAndGet(nano);
+  }
+
+  /**
+   * Registers a failed merge.
+   * @param ex exception
+   */
+  void failed(final IOException ex) {
+    error = ex.toString();
+    failures.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of failed merges.
+   * @return number of failed merges
+   */
+  int failures() {
+    return failures.get();
+  }
+
+  /**
+   * Adds the counters to the specified element.
+   * @param elem element
+   */
+  void add(final FElem elem) {
+    add(elem, "queries", token(queries.get()));
+    add(elem, "visited", token(nodes.get()));
+    add(elem, "candidates", token(candidates.get()));
+    add(elem, "hits", token(hits.get()));
+    add(elem, "refine-ms", token(time.get() / 1000000));
+    add(elem, "merge-failures", token(failures.get()));
+    final String err = error;
+    if(err != null) add(elem, "merge-error", token(err));
+  }
+
+  /**
+   * Adds a child element with the specified name and value.
+   * @param elem element
+   * @param name name of the child
+   * @param value value of the child
+   */
+  static void add(final FElem elem, final String name, final byte[] value) {
+    elem.add(new FElem(new QNm(name)).add(value));
+  }
+}
@@ -0,0 +1,24 @@
+package org.expath.ns;
+
+import java.io.*;
+
+import org.basex.query.*;
+
+/**
+ * This interface is implemented by visitors of spatial index queries.
+ * In contrast to the JTS item visitors, the items are integers, and a query
+ * is stopped as soon as a visitor returns {@code false}.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public interface GeoIndexVisitor {
+  /**
+   * Visits an item.
+   * @param item item
+   * @return {@code false} if the query is to be stopped
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  boolean visit(int item) throws QueryException, IOException;
+}
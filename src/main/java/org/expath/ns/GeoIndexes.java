@@ -0,0 +1,270 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.query.*;
+
+/**
+ * This class contains the spatial indexes that are shared by all index modules.
+ * Indexes are opened once per database: if several threads request the same index,
+ * one thread opens it, and the others wait for the result. The least recently used
+ * indexes are evicted if the total size of all opened indexes exceeds a limit.
+ * Indexes are discarded if their database has been dropped or re-indexed.
+ * If a database has been updated after it has been indexed, its changes are
+ * collected in a {@link GeoIndexDelta}, which is merged into a new index file
+ * in the background once it has grown too large. Failed merges are registered in
+ * the statistics of the index, and no more merges are scheduled for an index after
+ * {@link #MAXFAILURES} merges have failed.
+ * The index files of a database are only written by one thread at a time: builds
+ * and merges are serialized by a lock per database (see {@link #writer(String)}).
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexes {
+  /** Maximum total size of all opened indexes (can be set via system property). */
+  private static final long MAX = Long.getLong("org.basex.geo.cachesize", 1L << 30);
+  /** Opened indexes, in the order of their last access. */
+  private static final LinkedHashMap<String, Entry> INDEXES =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  /** Total size of all opened indexes. */
+  private static long total;
+  /** Locks for writing the index files of each database. */
+  private static final HashMap<String, Object> WRITERS = new HashMap<String, Object>();
+  /** Number of failed merges after which no more merges are scheduled. */
+  private static final int MAXFAILURES = 3;
+  /** Executor for merging deltas into index files. */
+  private static final ExecutorService MERGER = Executors.newSingleThreadExecutor(
+    new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "GeoIndexMerger");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  /** Private constructor, preventing instantiation. */
+  private GeoIndexes() { }
+
+  /**
+   * Returns a handle to the spatial index of the specified database.
+   * @param data data reference
+   * @return index handle
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public static GeoIndexHandle get(final Data data) throws QueryException, IOException {
+    final String name = data.meta.name;
+    Entry entry;
+    synchronized(INDEXES) {
+      entry = INDEXES.get(name);
+      if(entry == null || !entry.valid(data)) {
+        if(entry != null) remove(name);
+        entry = new Entry(data);
+        INDEXES.put(name, entry);
+      }
+    }
+    final PackedRTree tree = entry.open(name);
+    return new GeoIndexHandle(data, tree, entry.store, entry.delta(data, tree));
+  }
+
+  /**
+   * Discards the index of the specified database.
+   * Must be called if the index has been rebuilt or the database has been dropped.
+   * @param name name of database
+   */
+  public static void drop(final String name) {
+    synchronized(INDEXES) {
+      remove(name);
+    }
+  }
+
+  /**
+   * Returns the lock for writing the index files of the specified database. Index
+   * files must only be built or replaced while the lock is held.
+   * @param name name of database
+   * @return lock
+   */
+  static Object writer(final String name) {
+    synchronized(WRITERS) {
+      Object writer = WRITERS.get(name);
+      if(writer == null) {
+        writer = new Object();
+        WRITERS.put(name, writer);
+      }
+      return writer;
+    }
+  }
+
+  /**
+   * Checks if the specified entry is the current entry of a database.
+   * @param name name of database
+   * @param entry index entry
+   * @return result of check
+   */
+  private static boolean current(final String name, final Entry entry) {
+    synchronized(INDEXES) {
+      return INDEXES.get(name) == entry;
+    }
+  }
+
+  /**
+   * Removes an index entry. Must be called in a synchronized block.
+   * @param name name of database
+   */
+  private static void remove(final String name) {
+    final Entry entry = INDEXES.remove(name);
+    if(entry != null) total -= entry.size;
+  }
+
+  /**
+   * Registers the size of an opened index and evicts obsolete indexes and, if the
+   * maximum size is exceeded, the least recently used indexes.
+   * @param name name of the database whose index has been opened
+   * @param entry index entry
+   * @param size size of the index
+   */
+  private static void opened(final String name, final Entry entry, final long size) {
+    synchronized(INDEXES) {
+      // skip entries that have been replaced or removed in the meantime
+      if(INDEXES.get(name) != entry) return;
+      entry.size = size;
+      total += size;
+      final Iterator<Entry> it = INDEXES.values().iterator();
+      while(it.hasNext()) {
+        final Entry e = it.next();
+        if(e != entry && (e.data.get() == null || total > MAX && e.tree != null)) {
+          it.remove();
+          total -= e.size;
+        }
+      }
+    }
+  }
+
+  /** Index entry. */
+  private static final class Entry {
+    /** Data reference (will be garbage-collected if the database is closed). */
+    final WeakReference<Data> data;
+    /** Index file. */
+    final IOFile file;
+    /** Geometry store file. */
+    final IOFile storeFile;
+    /** Timestamp of the index file. */
+    final long time;
+    /** Index ({@code null} if it has not been opened yet). */
+    volatile PackedRTree tree;
+    /** Geometry store ({@code null} if it has not been opened yet, or if it does
+     * not exist). */
+    GeoStore store;
+    /** Size of the index file (accessed in synchronized blocks). */
+    long size;
+    /** Changes of the database ({@code null} if there are none). */
+    private GeoIndexDelta delta;
+    /** Indicates if a merge has been scheduled. */
+    private boolean merging;
+
+    /**
+     * Constructor.
+     * @param d data reference
+     */
+    Entry(final Data d) {
+      data = new WeakReference<Data>(d);
+      file = GeoIndexBuilder.file(d);
+      storeFile = GeoIndexBuilder.storeFile(d);
+      time = file.timeStamp();
+    }
+
+    /**
+     * Checks if the entry is still valid for the specified data reference.
+     * @param d data reference
+     * @return result of check
+     */
+    boolean valid(final Data d) {
+      return data.get() == d && time == file.timeStamp();
+    }
+
+    /**
+     * Opens the index and its geometry store, or waits until they have been opened
+     * by another thread.
+     * @param name name of database
+     * @return index
+     * @throws QueryException query exception
+     * @throws IOException I/O exception
+     */
+    synchronized PackedRTree open(final String name) throws QueryException, IOException {
+      if(tree == null) {
+        if(!file.exists()) {
+          // wait until the index has been written, or complete an interrupted switch
+          synchronized(writer(name)) {
+            GeoEntries.recover(file);
+          }
+          if(!file.exists()) throw GeoErrors.noIndex(name);
+        }
+        final PackedRTree t = PackedRTree.open(file);
+        if(t.stamp() != 0 && !storeFile.exists()) {
+          synchronized(writer(name)) {
+            GeoEntries.recover(storeFile);
+          }
+        }
+        store = t.stamp() == 0 ? null : GeoStore.open(storeFile, t.stamp());
+        tree = t;
+        opened(name, this, file.length() + (store == null ? 0 : store.size()));
+      }
+      return tree;
+    }
+
+    /**
+     * Returns the changes of the database since the index has been built.
+     * The changes are derived from the changes of the previous state.
+     * A merge is scheduled if the changes have grown too large; the changes are
+     * verified before, as the current pre values of all entries are required.
+     * The merge is skipped if the index has been rebuilt in the meantime, and this
+     * entry is dropped after the new index file has been written. Failed merges are
+     * registered, and no merge is scheduled once too many merges have failed.
+     * @param d data reference
+     * @param t index
+     * @return changes, or {@code null} if the index is up-to-date
+     * @throws IOException I/O exception
+     */
+    synchronized GeoIndexDelta delta(final Data d, final PackedRTree t)
+        throws IOException {
+      if(t.upToDate(d)) return null;
+      if(delta == null || !delta.valid(d)) delta = GeoIndexDelta.get(d, t, delta);
+      final boolean merge = !merging && t.stats.failures() < MAXFAILURES;
+      if(merge && delta.merge(t)) delta = delta.verify(d);
+      if(merge && delta.merge(t)) {
+        merging = true;
+        final GeoIndexDelta dl = delta;
+        final String name = d.meta.name;
+        MERGER.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              synchronized(writer(name)) {
+                if(current(name, Entry.this)) {
+                  dl.merge(t, file, storeFile);
+                  drop(name);
+                }
+              }
+            } catch(final IOException ex) {
+              // the index will be merged again with the next update, unless too many
+              // merges have failed
+              t.stats.failed(ex);
+            } finally {
+              synchronized(Entry.this) {
+                merging = false;
+              }
+            }
+          }
+        });
+      }
+      return delta;
+    }
+  }
+}
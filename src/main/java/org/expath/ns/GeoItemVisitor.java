@@ -2,27 +2,24 @@ package org.expath.ns;
 
 import org.basex.data.*;
 import org.basex.query.iter.*;
-import org.basex.query.value.*;
 import org.basex.query.value.item.*;
-import org.basex.query.value.node.*;
-
-import com.vividsolutions.jts.index.*;
+import org.basex.util.list.*;
 
 /**
- * This Class implements the ItemVisitor interface
+ * This Class implements the GeoIndexVisitor interface
  * to apply different methods in a query process of index tree.
  *
  * @author BaseX Team 2005-13, BSD License
  * @author Masoumeh Seydi
  */
 
-public class GeoItemVisitor implements ItemVisitor{
+public class GeoItemVisitor implements GeoIndexVisitor {
   /** QName. */
   QNm qname;
   /** Data. */
   Data data;
-  /** Nodes. */
-  ValueBuilder nodes = new ValueBuilder();
+  /** Pre values of the nodes. */
+  final IntList pres = new IntList();
   /**
    * Default constructor.
    * @param d Data
@@ -32,17 +29,17 @@ public class GeoItemVisitor implements ItemVisitor{
   }
 
   /**
-   * Property to get the list of nodes.
+   * Property to get the list of nodes. The nodes are created when they are requested.
    * @return nodes
    */
-  public Value getList() {
-    return nodes.value();
+  public Iter getList() {
+    return new GeoNodeIter(data, pres);
   }
 
   @Override
-  public void visitItem(final Object item) {
-    DBNode dn = new DBNode(data, (Integer) item);
-    nodes.add(dn);
+  public boolean visit(final int item) {
+    pres.add(item);
+    return true;
   }
 
 }
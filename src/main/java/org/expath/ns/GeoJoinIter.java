@@ -0,0 +1,124 @@
+package org.expath.ns;
+
+import java.io.*;
+
+import org.basex.query.*;
+import org.basex.query.iter.*;
+import org.basex.query.value.item.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.*;
+
+/**
+ * This class iterates over the results of a spatial index join. The pairs of
+ * candidates are requested from a {@link GeoIndexHandle.JoinCursor} while the
+ * results are consumed, and a spatial predicate is evaluated for the prepared
+ * geometry of the first candidate and the geometry of the second candidate. The two
+ * database nodes of each matching pair are returned one after another, in the order
+ * in which the trees are traversed, so that no results are buffered. As the pairs
+ * are visited leaf by leaf, the geometries of recently visited candidates are kept
+ * in small direct-mapped caches.
+ *
+ * Predicates whose envelopes need not be close to each other (such as
+ * {@code disjoint}) would match almost all pairs of geometries and are rejected.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoJoinIter extends Iter {
+  /** Size of the geometry caches (must be a power of two). */
+  private static final int CACHE = 256;
+  /** First index handle. */
+  private final GeoIndexHandle index1;
+  /** Second index handle. */
+  private final GeoIndexHandle index2;
+  /** Predicate. */
+  private final GeoPredicate predicate;
+  /** Pairs of candidates. */
+  private final GeoIndexHandle.JoinCursor pairs;
+  /** Cached candidates of the first index. */
+  private final int[] cands1 = new int[CACHE];
+  /** Cached prepared geometries of the first index. */
+  private final PreparedGeometry[] geoms1 = new PreparedGeometry[CACHE];
+  /** Cached candidates of the second index. */
+  private final int[] cands2 = new int[CACHE];
+  /** Cached geometries of the second index. */
+  private final Geometry[] geoms2 = new Geometry[CACHE];
+  /** Pre value of the second node of the current result ({@code -1} if the next
+   * result has not been found yet). */
+  private int second = -1;
+  /** Number of refined pairs of candidates. */
+  private long candidates;
+  /** Number of results. */
+  private long results;
+  /** Time spent for refining candidates (nanoseconds). */
+  private long time;
+
+  /**
+   * Constructor.
+   * @param ix1 first index handle
+   * @param ix2 second index handle
+   * @param pred predicate
+   * @throws QueryException query exception
+   */
+  public GeoJoinIter(final GeoIndexHandle ix1, final GeoIndexHandle ix2,
+      final GeoPredicate pred) throws QueryException {
+    if(Double.isInfinite(pred.distance)) throw GeoErrors.joinPredicate(pred.desc);
+    index1 = ix1;
+    index2 = ix2;
+    predicate = pred;
+    pairs = ix1.join(ix2, pred.distance);
+  }
+
+  @Override
+  public Item next() throws QueryException {
+    if(second != -1) {
+      final int pre = second;
+      second = -1;
+      return index2.node(pre);
+    }
+    try {
+      while(pairs.next()) {
+        final int item1 = pairs.first(), item2 = pairs.second();
+        if(refine(item1, item2)) {
+          results++;
+          second = index2.pre(item2);
+          return index1.node(index1.pre(item1));
+        }
+      }
+    } catch(final IOException ex) {
+      throw GeoErrors.indexIO(ex);
+    }
+    if(candidates != 0) {
+      index1.tree.stats.refined(candidates, results, time);
+      candidates = 0;
+    }
+    return null;
+  }
+
+  /**
+   * Tests the predicate for a pair of candidates.
+   * @param item1 candidate of the first index
+   * @param item2 candidate of the second index
+   * @return result of check
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private boolean refine(final int item1, final int item2)
+      throws QueryException, IOException {
+    final long t = System.nanoTime();
+    candidates++;
+    final int h1 = item1 & CACHE - 1, h2 = item2 & CACHE - 1;
+    if(geoms1[h1] == null || cands1[h1] != item1) {
+      geoms1[h1] = PreparedGeometryFactory.prepare(index1.geometry(item1));
+      cands1[h1] = item1;
+    }
+    if(geoms2[h2] == null || cands2[h2] != item2) {
+      geoms2[h2] = index2.geometry(item2);
+      cands2[h2] = item2;
+    }
+    final boolean match = predicate.test(geoms1[h1], geoms2[h2]);
+    time += System.nanoTime() - t;
+    return match;
+  }
+}
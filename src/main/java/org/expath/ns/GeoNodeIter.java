@@ -0,0 +1,49 @@
+package org.expath.ns;
+
+import org.basex.data.*;
+import org.basex.query.iter.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.util.list.*;
+
+/**
+ * This class iterates over the database nodes with the specified pre values.
+ * The pre values are kept in a primitive list, and nodes are only created when they
+ * are requested.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoNodeIter extends Iter {
+  /** Database. */
+  private final Data data;
+  /** Pre values. */
+  private final IntList pres;
+  /** Current position. */
+  private int pos;
+
+  /**
+   * Constructor.
+   * @param d database
+   * @param p pre values
+   */
+  GeoNodeIter(final Data d, final IntList p) {
+    data = d;
+    pres = p;
+  }
+
+  @Override
+  public Item next() {
+    return pos < pres.size() ? new DBNode(data, pres.get(pos++)) : null;
+  }
+
+  @Override
+  public Item get(final long i) {
+    return new DBNode(data, pres.get((int) i));
+  }
+
+  @Override
+  public long size() {
+    return pres.size();
+  }
+}
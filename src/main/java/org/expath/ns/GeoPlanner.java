@@ -0,0 +1,217 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.data.*;
+import org.basex.query.*;
+import org.basex.query.iter.*;
+import org.basex.query.util.*;
+import org.basex.query.value.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.query.value.type.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.*;
+
+/**
+ * This class decides how spatial filters are evaluated. A filter of the form
+ * {@code $nodes[geo:intersects(., $geom)]}, which is written as
+ * {@code idx:select($nodes, $geom, 'intersects')}, is evaluated by the spatial index
+ * of a database if the database has been indexed, and if the number of candidates
+ * estimated from the index is small compared to the number of nodes. Otherwise, the
+ * predicate is tested for each node. The decision is made once for each database
+ * of the nodes. Filters are not rewritten by the query compiler: the index is only
+ * used if the filter is written with the select function.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoPlanner {
+  /** Maximum ratio of estimated candidates to filtered nodes for which the index is
+   * used (can be set via system property). */
+  private static final double RATIO = Double.parseDouble(
+      System.getProperty("org.basex.geo.selectivity", "0.5"));
+
+  /** Private constructor, preventing instantiation. */
+  private GeoPlanner() { }
+
+  /**
+   * Returns the spatial index of a database, or {@code null} if it has not been
+   * indexed.
+   * @param data database
+   * @return index handle, or {@code null}
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public static GeoIndexHandle index(final Data data) throws QueryException, IOException {
+    return GeoIndexBuilder.file(data).exists() ? GeoIndexes.get(data) : null;
+  }
+
+  /**
+   * Estimates the fraction of the geometries of an index for which the predicate
+   * may be true. The estimate is based on the number of entries whose envelopes
+   * intersect the search envelope of the predicate.
+   * @param index index handle
+   * @param geo query geometry
+   * @param pred predicate
+   * @return selectivity, between {@code 0} and {@code 1}
+   */
+  public static double selectivity(final GeoIndexHandle index, final Geometry geo,
+      final GeoPredicate pred) {
+    final int size = index.size();
+    if(size == 0) return 0;
+    return Math.min(1, (double) index.estimate(pred.envelope(geo)) / size);
+  }
+
+  /**
+   * Returns all nodes for which the specified predicate is true, i.e., for which
+   * {@code geo:pred($node, $geo)} returns {@code true}, in their input order.
+   * Nodes that are no GML geometries are ignored. The nodes are filtered while the
+   * results are requested (see {@link Select}).
+   * @param nodes nodes
+   * @param geo query geometry
+   * @param pred predicate
+   * @return iterator over the matching nodes
+   */
+  public static Iter select(final Value nodes, final Geometry geo,
+      final GeoPredicate pred) {
+    return new Select(nodes, geo, pred);
+  }
+
+  /**
+   * Tests the predicate for the query geometry and the geometry of a node.
+   * @param query prepared query geometry
+   * @param node node
+   * @param pred predicate
+   * @param reader GML reader
+   * @return {@code false} if the predicate is false or the node is no GML geometry
+   * @throws QueryException query exception
+   */
+  private static boolean test(final PreparedGeometry query, final ANode node,
+      final GeoPredicate pred, final GmlReader reader) throws QueryException {
+    if(node.type != NodeType.ELM || !GmlReader.isGeometry(node.qname())) return false;
+    Geometry geom = GeoCache.get(node);
+    if(geom == null) {
+      geom = reader.createGeometry(node);
+      GeoCache.put(node, geom);
+    }
+    return pred.test(query, geom);
+  }
+
+  /**
+   * Iterator over the nodes that match a spatial filter. The input is iterated once,
+   * without being buffered. The index of a database is queried when the first node
+   * of the database is reached: the predicate is tested for all candidates, and the
+   * pre values of the matches are kept in a sorted array, in which the following
+   * nodes of the database are looked up. Nested geometries are not indexed and are
+   * tested one by one. The decision is made once per database; nodes of databases
+   * without (selective) index and main-memory nodes are tested one by one.
+   */
+  private static final class Select extends Iter {
+    /** Input nodes. */
+    private final Iter nodes;
+    /** Number of input nodes. */
+    private final long size;
+    /** Predicate, with the query geometry as first argument. */
+    private final GeoPredicate pred;
+    /** Query geometry. */
+    private final Geometry geo;
+    /** Prepared query geometry. */
+    private final PreparedGeometry query;
+    /** GML reader. */
+    private final GmlReader reader = new GmlReader();
+    /** Sorted pre values of the matches of each database ({@code null} if the
+     * nodes of a database are tested one by one). */
+    private final IdentityHashMap<Data, int[]> matches =
+        new IdentityHashMap<Data, int[]>();
+    /** Database of the last node that has been checked for nesting. */
+    private Data data;
+    /** Pre value of the parent of the last node that has been checked for nesting. */
+    private int parent = -1;
+    /** Indicates if the last node that has been checked for nesting is nested. */
+    private boolean nested;
+
+    /**
+     * Constructor.
+     * @param nds input nodes
+     * @param g query geometry
+     * @param p predicate
+     */
+    Select(final Value nds, final Geometry g, final GeoPredicate p) {
+      nodes = nds.iter();
+      size = nds.size();
+      // index queries test the query geometry against the geometries of the nodes
+      pred = p.converse();
+      geo = g;
+      query = PreparedGeometryFactory.prepare(g);
+    }
+
+    @Override
+    public Item next() throws QueryException {
+      for(Item it; (it = nodes.next()) != null;) {
+        if(!(it instanceof ANode)) Err.FUNCMP.thrw(null, "select", NodeType.ELM, it.type);
+        final ANode node = (ANode) it;
+        if(node.type != NodeType.ELM || !GmlReader.isGeometry(node.qname())) continue;
+        final int[] pres = node instanceof DBNode ? matches(((DBNode) node).data) : null;
+        if(pres == null) {
+          if(test(query, node, pred, reader)) return node;
+        } else {
+          final DBNode dbnode = (DBNode) node;
+          if(Arrays.binarySearch(pres, dbnode.pre) >= 0 ||
+              nested(dbnode.data, dbnode.pre) && test(query, node, pred, reader)) {
+            return node;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the matches of the specified database, and queries its index when the
+     * database is reached for the first time.
+     * @param d database
+     * @return sorted pre values, or {@code null} if the index is not used
+     * @throws QueryException query exception
+     */
+    private int[] matches(final Data d) throws QueryException {
+      if(matches.containsKey(d)) return matches.get(d);
+      int[] pres = null;
+      try {
+        final GeoIndexHandle index = index(d);
+        if(index != null && pred.distance != Double.POSITIVE_INFINITY &&
+            index.estimate(pred.envelope(geo)) <= RATIO * size) {
+          final GeoIndexItemVisitor visitor = new GeoIndexItemVisitor(index, pred, geo,
+              Long.MAX_VALUE);
+          index.candidates(pred.envelope(geo), visitor);
+          pres = visitor.getPres().toArray();
+        }
+      } catch(final IOException ex) {
+        throw GeoErrors.indexIO(ex);
+      }
+      matches.put(d, pres);
+      return pres;
+    }
+
+    /**
+     * Checks if a database node is nested in a GML geometry. Siblings share their
+     * ancestors, so the result for the parent of the last checked node is reused.
+     * @param d database
+     * @param pre pre value of the node
+     * @return result of check
+     */
+    private boolean nested(final Data d, final int pre) {
+      final int par = d.parent(pre, Data.ELEM);
+      if(d != data || par != parent) {
+        data = d;
+        parent = par;
+        nested = false;
+        for(int p = par; p != -1 && !nested; p = d.parent(p, d.kind(p))) {
+          nested = d.kind(p) == Data.ELEM && GeoIndexBuilder.geometry(d, p);
+        }
+      }
+      return nested;
+    }
+  }
+}
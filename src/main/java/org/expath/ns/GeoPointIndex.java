@@ -0,0 +1,391 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.query.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class contains a read-only index for point geometries. The points are mapped
+ * to the cells of a grid, and the keys of the cells on a space-filling curve are
+ * stored in a sorted array, together with the coordinates of the points and the
+ * offsets of their entries in the {@link PackedRTree}. The index is stored in the
+ * same file as the tree:
+ * <ul>
+ *   <li> header: number of points ({@code size}), a reserved integer, and the
+ *        minimum x and y coordinates and the scales of the grid as doubles</li>
+ *   <li> keys: {@code size} curve keys as longs, in ascending order</li>
+ *   <li> coordinates: {@code size} times (x, y) as doubles</li>
+ *   <li> entries: {@code size} entry offsets as integers</li>
+ * </ul>
+ * A window query is decomposed into the cells of a quadtree. As the cells of each
+ * aligned square have contiguous keys on both the Z-order and the Hilbert curve,
+ * each quadtree cell is a key range, which is found by binary search and scanned.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoPointIndex {
+  /** Number of bits per grid coordinate. */
+  private static final int ORDER = 16;
+  /** Largest grid coordinate. */
+  private static final int MAX = (1 << ORDER) - 1;
+  /** Size of the header. */
+  static final int HEADER = 40;
+
+  /** Buffer of the index file. */
+  private final GeoBuffer buffer;
+  /** Curve. */
+  private final GeoIndexOptions.Curve curve;
+  /** Number of points. */
+  private final int size;
+  /** Minimum x coordinate. */
+  private final double minx;
+  /** Minimum y coordinate. */
+  private final double miny;
+  /** Scale of the x coordinates. */
+  private final double sx;
+  /** Scale of the y coordinates. */
+  private final double sy;
+  /** Offset of the keys. */
+  private final long keys;
+  /** Offset of the coordinates. */
+  private final long coords;
+  /** Offset of the entry offsets. */
+  private final long entries;
+
+  /**
+   * Constructor.
+   * @param bb buffer of the index file
+   * @param off offset of the point index
+   * @param c curve
+   */
+  GeoPointIndex(final GeoBuffer bb, final long off, final GeoIndexOptions.Curve c) {
+    buffer = bb;
+    curve = c;
+    size = bb.getInt(off);
+    minx = bb.getDouble(off + 8);
+    miny = bb.getDouble(off + 16);
+    sx = bb.getDouble(off + 24);
+    sy = bb.getDouble(off + 32);
+    keys = off + HEADER;
+    coords = keys + size * 8L;
+    entries = coords + size * 16L;
+  }
+
+  /**
+   * Checks if the header of the point index is consistent with the length of the
+   * index file.
+   * @param length length of the index file
+   * @return result of check
+   */
+  boolean valid(final long length) {
+    return size >= 0 && entries + size * 4L <= length;
+  }
+
+  /**
+   * Writes the point index for the specified entries.
+   * @param out output stream
+   * @param envs envelopes of the entries (min x, min y, max x, max y)
+   * @param items entries, in the order of the tree
+   * @param c curve
+   * @throws IOException I/O exception
+   */
+  static void write(final DataOutputStream out, final double[] envs, final int[] items,
+      final GeoIndexOptions.Curve c) throws IOException {
+    // collect the points and their bounds
+    final int[] points = new int[items.length];
+    int n = 0;
+    double mnx = Double.POSITIVE_INFINITY, mny = Double.POSITIVE_INFINITY;
+    double mxx = Double.NEGATIVE_INFINITY, mxy = Double.NEGATIVE_INFINITY;
+    for(int i = 0; i < items.length; i++) {
+      final int e = items[i] << 2;
+      if(envs[e] != envs[e + 2] || envs[e + 1] != envs[e + 3]) continue;
+      points[n++] = i;
+      mnx = Math.min(mnx, envs[e]);
+      mny = Math.min(mny, envs[e + 1]);
+      mxx = Math.max(mxx, envs[e]);
+      mxy = Math.max(mxy, envs[e + 1]);
+    }
+    final double scx = scale(mnx, mxx), scy = scale(mny, mxy);
+
+    // sort the points by their keys (key in the upper bits, point in the lower bits)
+    final long[] sorted = new long[n];
+    for(int p = 0; p < n; p++) {
+      final int e = items[points[p]] << 2;
+      sorted[p] = key(c, envs[e], envs[e + 1], mnx, mny, scx, scy) << 31 | p;
+    }
+    Arrays.sort(sorted);
+
+    out.writeInt(n);
+    out.writeInt(0);
+    out.writeDouble(n == 0 ? 0 : mnx);
+    out.writeDouble(n == 0 ? 0 : mny);
+    out.writeDouble(scx);
+    out.writeDouble(scy);
+    for(final long s : sorted) out.writeLong(s >>> 31);
+    for(final long s : sorted) {
+      final int e = items[points[(int) (s & Integer.MAX_VALUE)]] << 2;
+      out.writeDouble(envs[e]);
+      out.writeDouble(envs[e + 1]);
+    }
+    for(final long s : sorted) out.writeInt(points[(int) (s & Integer.MAX_VALUE)]);
+  }
+
+  /**
+   * Returns the number of points.
+   * @return number of points
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the curve of the index.
+   * @return curve
+   */
+  GeoIndexOptions.Curve curve() {
+    return curve;
+  }
+
+  /**
+   * Visits the entry offsets of all points within the specified envelope.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  boolean query(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    final Cursor cursor = new Cursor(env);
+    for(int e; (e = cursor.next()) != -1;) {
+      if(!visitor.visit(e)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a cursor over the entry offsets of all points within the specified
+   * envelope.
+   * @param env search envelope
+   * @return cursor
+   */
+  Cursor cursor(final Envelope env) {
+    return new Cursor(env);
+  }
+
+  /**
+   * Counts the points in the cells of the grid that intersect the specified
+   * envelope. The count is an upper bound for the number of points within the
+   * envelope, and is computed without scanning the points.
+   * @param env search envelope
+   * @return number of points
+   */
+  int count(final Envelope env) {
+    final long[] ranges = ranges(env);
+    int c = 0;
+    for(int r = 0; r < ranges.length; r += 2) {
+      c += search(ranges[r + 1]) - search(ranges[r]);
+    }
+    return c;
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Computes the key ranges of the quadtree cells that intersect the specified
+   * envelope. The ranges are sorted, and adjacent ranges are merged.
+   * @param env search envelope
+   * @return ranges (start and end of each range)
+   */
+  private long[] ranges(final Envelope env) {
+    final Ranges ranges = new Ranges();
+    if(size == 0 || env.isNull()) return ranges.finish();
+    // the upper bounds are checked in grid units, with a tolerance of one cell
+    if(env.getMaxX() < minx || env.getMaxY() < miny ||
+        (env.getMinX() - minx) * sx > MAX + 1 || (env.getMinY() - miny) * sy > MAX + 1)
+      return ranges.finish();
+
+    final int x0 = cell(env.getMinX(), minx, sx), x1 = cell(env.getMaxX(), minx, sx);
+    final int y0 = cell(env.getMinY(), miny, sy), y1 = cell(env.getMaxY(), miny, sy);
+    // cells that are smaller than a quarter of the window are not split further
+    final int side = Math.max(x1 - x0, y1 - y0) + 1;
+    final int min = Math.max(0, 32 - Integer.numberOfLeadingZeros(side) - 2);
+    ranges(0, 0, ORDER, min, x0, y0, x1, y1, ranges);
+    return ranges.finish();
+  }
+
+  /**
+   * Adds the key ranges of the quadtree cells within the specified cell that
+   * intersect the given window. The children of a cell are visited in the order of
+   * their keys, so that the ranges are added in ascending order.
+   * @param cx minimum x coordinate of the cell
+   * @param cy minimum y coordinate of the cell
+   * @param level level of the cell (side length: {@code 2^level})
+   * @param min minimum level of the cells that are split
+   * @param x0 minimum x coordinate of the window
+   * @param y0 minimum y coordinate of the window
+   * @param x1 maximum x coordinate of the window
+   * @param y1 maximum y coordinate of the window
+   * @param ranges ranges
+   */
+  private void ranges(final int cx, final int cy, final int level, final int min,
+      final int x0, final int y0, final int x1, final int y1, final Ranges ranges) {
+    final int ex = cx + (1 << level) - 1, ey = cy + (1 << level) - 1;
+    if(ex < x0 || cx > x1 || ey < y0 || cy > y1) return;
+    if(level <= min || cx >= x0 && ex <= x1 && cy >= y0 && ey <= y1) {
+      final long length = 1L << 2 * level;
+      final long start = curve.key(cx, cy, ORDER) & -length;
+      ranges.add(start, start + length);
+      return;
+    }
+    // sort the children by their keys
+    final int half = 1 << level - 1;
+    final long[] children = new long[4];
+    for(int c = 0; c < 4; c++) {
+      final long key = curve.key(cx + (c >>> 1) * half, cy + (c & 1) * half, ORDER);
+      int i = c;
+      for(; i > 0 && children[i - 1] >>> 2 > key; i--) children[i] = children[i - 1];
+      children[i] = key << 2 | c;
+    }
+    for(final long child : children) {
+      final int c = (int) child & 3;
+      ranges(cx + (c >>> 1) * half, cy + (c & 1) * half, level - 1, min,
+          x0, y0, x1, y1, ranges);
+    }
+  }
+
+  /**
+   * Returns the position of the first key that is equal to or greater than the
+   * specified key.
+   * @param key key
+   * @return position
+   */
+  private int search(final long key) {
+    int lo = 0, hi = size;
+    while(lo < hi) {
+      final int m = lo + hi >>> 1;
+      if(buffer.getLong(keys + m * 8L) < key) lo = m + 1;
+      else hi = m;
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the scale of the grid for the specified range of coordinates.
+   * @param mn minimum coordinate
+   * @param mx maximum coordinate
+   * @return scale
+   */
+  static double scale(final double mn, final double mx) {
+    return mx > mn ? MAX / (mx - mn) : 0;
+  }
+
+  /**
+   * Returns the key of a point on the specified curve.
+   * @param c curve
+   * @param x x coordinate
+   * @param y y coordinate
+   * @param mnx minimum x coordinate of the grid
+   * @param mny minimum y coordinate of the grid
+   * @param scx scale of the x coordinates
+   * @param scy scale of the y coordinates
+   * @return key
+   */
+  static long key(final GeoIndexOptions.Curve c, final double x, final double y,
+      final double mnx, final double mny, final double scx, final double scy) {
+    return c.key(cell(x, mnx, scx), cell(y, mny, scy), ORDER);
+  }
+
+  /**
+   * Returns the grid coordinate of a coordinate.
+   * @param c coordinate
+   * @param mn minimum coordinate of the grid
+   * @param sc scale of the grid
+   * @return grid coordinate
+   */
+  private static int cell(final double c, final double mn, final double sc) {
+    final double g = (c - mn) * sc;
+    return g <= 0 ? 0 : g >= MAX ? MAX : (int) g;
+  }
+
+  /** Sorted key ranges. */
+  private static final class Ranges {
+    /** Ranges (start and end of each range). */
+    private long[] list = new long[16];
+    /** Number of values. */
+    private int size;
+
+    /**
+     * Adds a range. The range is merged with the last range if they are adjacent.
+     * @param start start of the range
+     * @param end end of the range
+     */
+    void add(final long start, final long end) {
+      if(size > 0 && list[size - 1] == start) {
+        list[size - 1] = end;
+      } else {
+        if(size == list.length) list = Arrays.copyOf(list, size << 1);
+        list[size++] = start;
+        list[size++] = end;
+      }
+    }
+
+    /**
+     * Returns the ranges.
+     * @return ranges
+     */
+    long[] finish() {
+      return Arrays.copyOf(list, size);
+    }
+  }
+
+  /**
+   * Cursor over the points of a window query. The key ranges of the window are
+   * scanned one after another, so that no results are buffered.
+   */
+  final class Cursor implements GeoIndexCursor {
+    /** Search envelope. */
+    private final double qminx, qminy, qmaxx, qmaxy;
+    /** Key ranges (start and end of each range). */
+    private final long[] ranges;
+    /** Current range. */
+    private int range;
+    /** Current position. */
+    private int pos;
+    /** End of the current range. */
+    private long end = Long.MIN_VALUE;
+
+    /**
+     * Constructor.
+     * @param env search envelope
+     */
+    Cursor(final Envelope env) {
+      qminx = env.getMinX();
+      qminy = env.getMinY();
+      qmaxx = env.getMaxX();
+      qmaxy = env.getMaxY();
+      ranges = ranges(env);
+    }
+
+    @Override
+    public int next() {
+      while(true) {
+        while(pos < size && buffer.getLong(keys + pos * 8L) < end) {
+          final int p = pos++;
+          final long c = coords + p * 16L;
+          final double x = buffer.getDouble(c), y = buffer.getDouble(c + 8);
+          if(x >= qminx && x <= qmaxx && y >= qminy && y <= qmaxy)
+            return buffer.getInt(entries + p * 4L);
+        }
+        if(range == ranges.length) return -1;
+        pos = search(ranges[range]);
+        end = ranges[range + 1];
+        range += 2;
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package org.expath.ns;
+
+import org.basex.query.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.*;
+
+/**
+ * Spatial predicates that can be evaluated by index queries. A predicate is
+ * evaluated for a prepared query geometry and a candidate geometry of the index,
+ * i.e., {@code contains} finds all candidates that are contained in the query
+ * geometry. Each predicate defines the maximum distance between the envelopes of
+ * matching geometries, which determines the envelope in which candidates are searched.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public abstract class GeoPredicate {
+  /** Equals. */
+  public static final GeoPredicate EQUALS = new GeoPredicate("equals") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.getGeometry().equalsTopo(geom);
+    }
+  };
+  /** Disjoint. */
+  public static final GeoPredicate DISJOINT = new GeoPredicate("disjoint",
+      Double.POSITIVE_INFINITY) {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.disjoint(geom);
+    }
+  };
+  /** Intersects. */
+  public static final GeoPredicate INTERSECTS = new GeoPredicate("intersects") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.intersects(geom);
+    }
+  };
+  /** Touches. */
+  public static final GeoPredicate TOUCHES = new GeoPredicate("touches") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.touches(geom);
+    }
+  };
+  /** Crosses. */
+  public static final GeoPredicate CROSSES = new GeoPredicate("crosses") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.crosses(geom);
+    }
+  };
+  /** Within. */
+  public static final GeoPredicate WITHIN = new GeoPredicate("within") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.within(geom);
+    }
+    @Override
+    GeoPredicate converse() {
+      return CONTAINS;
+    }
+  };
+  /** Contains. */
+  public static final GeoPredicate CONTAINS = new GeoPredicate("contains") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.contains(geom);
+    }
+    @Override
+    GeoPredicate converse() {
+      return WITHIN;
+    }
+  };
+  /** Overlaps. */
+  public static final GeoPredicate OVERLAPS = new GeoPredicate("overlaps") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.overlaps(geom);
+    }
+  };
+  /** Covers. */
+  public static final GeoPredicate COVERS = new GeoPredicate("covers") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.covers(geom);
+    }
+    @Override
+    GeoPredicate converse() {
+      return COVEREDBY;
+    }
+  };
+  /** Covered by. */
+  public static final GeoPredicate COVEREDBY = new GeoPredicate("coveredBy") {
+    @Override
+    boolean test(final PreparedGeometry query, final Geometry geom) {
+      return query.coveredBy(geom);
+    }
+    @Override
+    GeoPredicate converse() {
+      return COVERS;
+    }
+  };
+
+  /** Predicates that can be referenced by their name. */
+  private static final GeoPredicate[] PREDICATES = { EQUALS, DISJOINT, INTERSECTS,
+    TOUCHES, CROSSES, WITHIN, CONTAINS, OVERLAPS, COVERS, COVEREDBY };
+
+  /** Intersection matrix patterns. */
+  private static final String PATTERN = "[TF*012]{9}";
+
+  /** Envelope that includes all geometries. */
+  static final Envelope ALL = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE,
+      -Double.MAX_VALUE, Double.MAX_VALUE);
+
+  /** Description. */
+  public final String desc;
+  /** Maximum distance between the envelopes of matching geometries. */
+  final double distance;
+
+  /**
+   * Constructor for predicates that require intersecting envelopes.
+   * @param d description
+   */
+  GeoPredicate(final String d) {
+    this(d, 0);
+  }
+
+  /**
+   * Constructor.
+   * @param d description
+   * @param dist maximum distance between the envelopes of matching geometries
+   */
+  GeoPredicate(final String d, final double dist) {
+    desc = d;
+    distance = dist;
+  }
+
+  /**
+   * Returns the predicate with the specified name. An intersection matrix pattern
+   * (e.g. {@code T*F**F***}) is accepted as name of a {@code relate} predicate.
+   * @param name name of the predicate
+   * @return predicate
+   * @throws QueryException query exception
+   */
+  public static GeoPredicate get(final String name) throws QueryException {
+    for(final GeoPredicate pred : PREDICATES) {
+      if(pred.desc.equals(name)) return pred;
+    }
+    if(name.matches(PATTERN)) return matrix(name);
+    throw GeoErrors.unknownPredicate(name);
+  }
+
+  /**
+   * Returns a predicate that tests if the intersection matrix of the query geometry
+   * and a candidate matches the specified pattern.
+   * @param pattern intersection matrix pattern
+   * @return predicate
+   * @throws QueryException query exception
+   */
+  public static GeoPredicate relate(final String pattern) throws QueryException {
+    if(!pattern.matches(PATTERN)) throw GeoErrors.matrixPattern(pattern);
+    return matrix(pattern);
+  }
+
+  /**
+   * Returns a predicate that tests if the intersection matrix of the query geometry
+   * and a candidate matches the specified valid pattern.
+   * @param pattern intersection matrix pattern
+   * @return predicate
+   */
+  private static GeoPredicate matrix(final String pattern) {
+    // the interiors or boundaries must intersect if one of their cells is non-empty
+    boolean inter = false;
+    for(final int c : new int[] { 0, 1, 3, 4 }) {
+      inter |= "T012".indexOf(pattern.charAt(c)) != -1;
+    }
+    return new GeoPredicate("relate", inter ? 0 : Double.POSITIVE_INFINITY) {
+      @Override
+      boolean test(final PreparedGeometry query, final Geometry geom) {
+        return query.getGeometry().relate(geom, pattern);
+      }
+      @Override
+      GeoPredicate converse() {
+        // transpose the matrix
+        final StringBuilder sb = new StringBuilder();
+        for(final int c : new int[] { 0, 3, 6, 1, 4, 7, 2, 5, 8 }) {
+          sb.append(pattern.charAt(c));
+        }
+        return matrix(sb.toString());
+      }
+    };
+  }
+
+  /**
+   * Returns a predicate that tests if a candidate is within the specified distance
+   * of the query geometry.
+   * @param dist distance
+   * @return predicate
+   */
+  public static GeoPredicate dwithin(final double dist) {
+    return new GeoPredicate("dwithin", dist) {
+      @Override
+      boolean test(final PreparedGeometry query, final Geometry geom) {
+        return query.getGeometry().isWithinDistance(geom, distance);
+      }
+    };
+  }
+
+  /**
+   * Returns a predicate that tests if a candidate is within the specified distance
+   * of the query geometry in the given reference system. In geographic systems,
+   * the distance is the geodesic distance in meters, and candidates are searched in
+   * an envelope that is expanded by the corresponding latitudes and longitudes.
+   * @param dist distance
+   * @param crs reference system of the query geometry
+   * @return predicate
+   */
+  static GeoPredicate dwithin(final double dist, final GeoCrs crs) {
+    if(!crs.geographic()) return dwithin(dist);
+    return new GeoPredicate("dwithin", dist) {
+      @Override
+      boolean test(final PreparedGeometry query, final Geometry geom) {
+        return crs.within(query.getGeometry(), geom, distance);
+      }
+      @Override
+      Envelope envelope(final Geometry query) {
+        return crs.expand(query.getEnvelopeInternal(), distance);
+      }
+    };
+  }
+
+  /**
+   * Returns the converse predicate, which is true if this predicate is true for the
+   * swapped geometries (e.g. {@code contains} for {@code within}).
+   * @return converse predicate
+   */
+  GeoPredicate converse() {
+    return this;
+  }
+
+  /**
+   * Returns the envelope in which candidates are searched.
+   * @param query query geometry
+   * @return envelope
+   */
+  Envelope envelope(final Geometry query) {
+    return expand(query.getEnvelopeInternal(), distance);
+  }
+
+  /**
+   * Returns an envelope that includes all envelopes within the specified distance
+   * of the given envelope.
+   * @param env envelope
+   * @param dist distance
+   * @return envelope
+   */
+  static Envelope expand(final Envelope env, final double dist) {
+    if(dist == Double.POSITIVE_INFINITY) return ALL;
+    if(dist == 0) return env;
+    final Envelope exp = new Envelope(env);
+    exp.expandBy(dist);
+    return exp;
+  }
+
+  /**
+   * Tests the predicate.
+   * @param query prepared query geometry
+   * @param geom candidate geometry
+   * @return result of check
+   */
+  abstract boolean test(final PreparedGeometry query, final Geometry geom);
+
+  @Override
+  public String toString() {
+    return desc;
+  }
+}
@@ -0,0 +1,337 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.io.*;
+
+/**
+ * This class sorts records that may not fit into main memory. A record consists of
+ * a fixed number of longs. The records are collected in a buffer of limited size,
+ * and full buffers are sorted and written to temporary files (runs), which are merged
+ * while the sorted records are read. If all records fit into the buffer, no files are
+ * written. At most {@link #FANIN} runs are opened at the same time: if there are more
+ * runs, groups of runs are merged into larger runs before, in as many passes as
+ * required.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoSorter {
+  /** Sort key of a record. */
+  interface Key {
+    /**
+     * Returns the sort key of a record.
+     * @param recs records
+     * @param off offset of the record
+     * @return key
+     */
+    double key(long[] recs, int off);
+  }
+
+  /** Size of the file buffers. */
+  private static final int BUFFER = 1 << 16;
+  /** Maximum number of runs that are merged at once. */
+  private static final int FANIN = 64;
+
+  /** Prefix of the names of the temporary files. */
+  private final String prefix;
+  /** Number of longs per record. */
+  private final int width;
+  /** Maximum number of records in the buffer. */
+  private final int buffer;
+  /** Sort key. */
+  private final Key key;
+  /** Runs, including the runs that have already been merged into larger runs. */
+  private final ArrayList<IOFile> runs = new ArrayList<IOFile>();
+  /** Number of records of each run. */
+  private final ArrayList<Long> sizes = new ArrayList<Long>();
+  /** Offset of the first run that has not been merged yet. */
+  private int first;
+  /** Buffered records. */
+  private long[] recs;
+  /** Number of buffered records. */
+  private int size;
+  /** Total number of records. */
+  private long count;
+
+  /**
+   * Constructor.
+   * @param pr prefix of the names of the temporary files
+   * @param w number of longs per record
+   * @param b maximum number of records in the buffer
+   * @param k sort key
+   */
+  GeoSorter(final String pr, final int w, final int b, final Key k) {
+    prefix = pr;
+    width = w;
+    buffer = Math.max(1, b);
+    key = k;
+    recs = new long[Math.min(buffer, 64) * w];
+  }
+
+  /**
+   * Adds a record.
+   * @param rec record (only the first longs of the record width are read)
+   * @throws IOException I/O exception
+   */
+  void add(final long[] rec) throws IOException {
+    if(size == buffer) spill();
+    final int o = size * width;
+    if(o == recs.length) recs = Arrays.copyOf(recs, (int) Math.min(
+        (long) buffer * width, (long) recs.length << 1));
+    System.arraycopy(rec, 0, recs, o, width);
+    size++;
+    count++;
+  }
+
+  /**
+   * Returns the number of records.
+   * @return number of records
+   */
+  long size() {
+    return count;
+  }
+
+  /**
+   * Returns a cursor over the records in the order of their keys. The cursor must be
+   * closed in order to delete the temporary files.
+   * @return cursor
+   * @throws IOException I/O exception
+   */
+  Cursor sort() throws IOException {
+    if(runs.isEmpty()) return new Cursor(order(), null);
+    try {
+      if(size != 0) spill();
+      recs = null;
+      while(runs.size() - first > FANIN) pass();
+      return new Cursor(null, open(first, runs.size()));
+    } catch(final IOException ex) {
+      delete();
+      throw ex;
+    }
+  }
+
+  /**
+   * Merges groups of the current runs into larger runs, and deletes the merged runs.
+   * @throws IOException I/O exception
+   */
+  private void pass() throws IOException {
+    final int end = runs.size();
+    for(int s = first; s < end; s += FANIN) {
+      final int e = Math.min(s + FANIN, end);
+      final IOFile run = new IOFile(prefix + runs.size());
+      runs.add(run);
+      final PriorityQueue<Run> queue = open(s, e);
+      long n = 0;
+      try {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(run.file()), BUFFER));
+        try {
+          for(Run r; (r = queue.poll()) != null; n++) {
+            for(final long v : r.rec) out.writeLong(v);
+            if(r.next()) queue.add(r);
+            else r.close();
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        close(queue);
+      }
+      sizes.add(n);
+      for(int r = s; r < e; r++) runs.get(r).delete();
+    }
+    first = end;
+  }
+
+  /**
+   * Opens the specified runs and reads their first records. If a run cannot be
+   * opened, all runs that have already been opened are closed.
+   * @param s offset of the first run
+   * @param e offset after the last run
+   * @return runs that are not empty, ordered by the keys of their first records
+   * @throws IOException I/O exception
+   */
+  private PriorityQueue<Run> open(final int s, final int e) throws IOException {
+    final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+    final ArrayList<Run> opened = new ArrayList<Run>();
+    try {
+      for(int r = s; r < e; r++) {
+        final Run run = new Run(runs.get(r), r, sizes.get(r));
+        opened.add(run);
+        if(run.next()) queue.add(run);
+        else run.close();
+      }
+    } catch(final IOException ex) {
+      close(opened);
+      throw ex;
+    }
+    return queue;
+  }
+
+  /**
+   * Closes the specified runs.
+   * @param rs runs
+   */
+  private static void close(final Collection<Run> rs) {
+    for(final Run run : rs) {
+      try {
+        run.close();
+      } catch(final IOException ex) {
+        // the file is deleted anyway
+      }
+    }
+    rs.clear();
+  }
+
+  /**
+   * Sorts the buffered records and writes them to a new run.
+   * @throws IOException I/O exception
+   */
+  private void spill() throws IOException {
+    final IOFile run = new IOFile(prefix + runs.size());
+    runs.add(run);
+    sizes.add((long) size);
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(run.file()), BUFFER));
+    try {
+      for(final int r : order()) {
+        for(int o = r * width, e = o + width; o < e; o++) out.writeLong(recs[o]);
+      }
+    } finally {
+      out.close();
+    }
+    size = 0;
+  }
+
+  /**
+   * Returns the buffered records in the order of their keys.
+   * @return record offsets
+   */
+  private int[] order() {
+    final int[] order = new int[size];
+    final double[] keys = new double[size];
+    for(int r = 0; r < size; r++) {
+      order[r] = r;
+      keys[r] = key.key(recs, r * width);
+    }
+    GeoIndexPacker.sort(order, keys, 0, size);
+    return order;
+  }
+
+  /**
+   * Deletes all runs.
+   */
+  void delete() {
+    for(final IOFile run : runs) run.delete();
+    runs.clear();
+    sizes.clear();
+    first = 0;
+  }
+
+  /** Run that is read while the runs are merged. */
+  private final class Run implements Comparable<Run> {
+    /** Input stream. */
+    private final DataInputStream in;
+    /** Number of the run, which decides between equal keys. */
+    private final int number;
+    /** Current record. */
+    private final long[] rec = new long[width];
+    /** Key of the current record. */
+    private double current;
+    /** Number of records that are left. */
+    private long left;
+
+    /**
+     * Constructor.
+     * @param file file
+     * @param n number of the run
+     * @param s number of records
+     * @throws IOException I/O exception
+     */
+    Run(final IOFile file, final int n, final long s) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file.file()), BUFFER));
+      number = n;
+      left = s;
+    }
+
+    /**
+     * Reads the next record.
+     * @return {@code true} if a record was read
+     * @throws IOException I/O exception
+     */
+    boolean next() throws IOException {
+      if(left == 0) return false;
+      for(int w = 0; w < width; w++) rec[w] = in.readLong();
+      current = key.key(rec, 0);
+      left--;
+      return true;
+    }
+
+    /**
+     * Closes the input stream.
+     * @throws IOException I/O exception
+     */
+    void close() throws IOException {
+      in.close();
+    }
+
+    @Override
+    public int compareTo(final Run r) {
+      final int c = Double.compare(current, r.current);
+      return c != 0 ? c : number - r.number;
+    }
+  }
+
+  /** Cursor over the sorted records. */
+  final class Cursor {
+    /** Current record. */
+    private final long[] rec = new long[width];
+    /** Buffered records in sort order ({@code null} if the runs are merged). */
+    private final int[] order;
+    /** Runs ({@code null} if all records have been buffered). */
+    private final PriorityQueue<Run> queue;
+    /** Position of the next buffered record. */
+    private int pos;
+
+    /**
+     * Constructor.
+     * @param o buffered records in sort order
+     * @param q runs
+     */
+    Cursor(final int[] o, final PriorityQueue<Run> q) {
+      order = o;
+      queue = q;
+    }
+
+    /**
+     * Returns the next record.
+     * @return record (the array is reused by subsequent calls), or {@code null}
+     * @throws IOException I/O exception
+     */
+    long[] next() throws IOException {
+      if(queue == null) {
+        if(pos == order.length) return null;
+        System.arraycopy(recs, order[pos++] * width, rec, 0, width);
+        return rec;
+      }
+      final Run run = queue.poll();
+      if(run == null) return null;
+      System.arraycopy(run.rec, 0, rec, 0, width);
+      if(run.next()) queue.add(run);
+      else run.close();
+      return rec;
+    }
+
+    /**
+     * Closes the cursor and deletes the temporary files.
+     */
+    void close() {
+      if(queue != null) GeoSorter.close(queue);
+      recs = null;
+      delete();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package org.expath.ns;
+
+import org.basex.data.*;
+
+/**
+ * This class identifies a state of a database by its number of nodes, its last node
+ * id and the timestamp of its last update. The number of nodes and the last id
+ * change with structural updates, and the timestamp is refreshed by all updates,
+ * including the replacement of text and attribute values, which leave the other
+ * values unchanged.
+ *
+ * The timestamp has a resolution of milliseconds. A state that is captured in the
+ * millisecond of its last update could not be told apart from further updates in the
+ * same millisecond; it is therefore unknown, and matches no state at all.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+final class GeoStamp {
+  /** Timestamp of unknown states. */
+  static final long UNKNOWN = Long.MIN_VALUE;
+
+  /** Number of database nodes. */
+  final int size;
+  /** Last database id. */
+  final int lastId;
+  /** Timestamp of the last update ({@link #UNKNOWN} if the state is unknown). */
+  final long time;
+
+  /**
+   * Constructor.
+   * @param s number of database nodes
+   * @param l last database id
+   * @param t timestamp of the last update
+   */
+  GeoStamp(final int s, final int l, final long t) {
+    size = s;
+    lastId = l;
+    time = t;
+  }
+
+  /**
+   * Captures the current state of a database.
+   * @param data database
+   */
+  GeoStamp(final Data data) {
+    this(data.meta.size, data.meta.lastid,
+        System.currentTimeMillis() > data.meta.time ? data.meta.time : UNKNOWN);
+  }
+
+  /**
+   * Checks if this is the current state of the specified database.
+   * @param data database
+   * @return result of check
+   */
+  boolean matches(final Data data) {
+    return time != UNKNOWN && time == data.meta.time && size == data.meta.size &&
+        lastId == data.meta.lastid;
+  }
+
+  /**
+   * Checks if this is the same state as the specified state.
+   * @param stamp state
+   * @return result of check
+   */
+  boolean matches(final GeoStamp stamp) {
+    return time != UNKNOWN && time == stamp.time && size == stamp.size &&
+        lastId == stamp.lastId;
+  }
+}
@@ -0,0 +1,188 @@
+package org.expath.ns;
+
+import java.io.*;
+
+import org.basex.io.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.io.*;
+
+/**
+ * This class contains the geometry store of a spatial index. The indexed geometries
+ * are stored as WKB records in a side file, which is read via memory-mapped buffers
+ * (see {@link GeoBuffer}), so that candidates of an index query can be refined
+ * without parsing GML.
+ *
+ * The file starts with a header (magic number, version, stamp, unused slot),
+ * followed by the records (length of the WKB, WKB). Records are addressed by
+ * their file offsets, which are stored in the index as longs. The stamp must match the
+ * stamp of the index; otherwise, the store belongs to another index and is ignored.
+ * Records are only appended, so that opened stores remain valid if an index is merged.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoStore {
+  /** Name of the store file. */
+  public static final String FILE = "geowkb";
+  /** Magic number ("GEOW"). */
+  private static final int MAGIC = 0x47454F57;
+  /** Version of the file format. */
+  private static final int VERSION = 1;
+  /** Size of the header. */
+  private static final int HEADER = 16;
+
+  /** Mapped buffer. */
+  private final GeoBuffer buffer;
+  /** Geometry factory. */
+  private final GeometryFactory factory = new GeometryFactory();
+
+  /**
+   * Constructor.
+   * @param bb mapped buffer
+   */
+  private GeoStore(final GeoBuffer bb) {
+    buffer = bb;
+  }
+
+  /**
+   * Opens the specified store file.
+   * @param file store file
+   * @param stamp stamp of the index
+   * @return store, or {@code null} if the file does not exist or belongs to
+   *   another index
+   * @throws IOException I/O exception
+   */
+  public static GeoStore open(final IOFile file, final int stamp) throws IOException {
+    return open(file, stamp, GeoBuffer.SEGMENT);
+  }
+
+  /**
+   * Opens the specified store file, which is mapped in segments of the specified size.
+   * @param file store file
+   * @param stamp stamp of the index
+   * @param segment number of bits of the segment size (between {@code 3} and
+   *   {@code 30})
+   * @return store, or {@code null} if the file does not exist or belongs to
+   *   another index
+   * @throws IOException I/O exception
+   */
+  public static GeoStore open(final IOFile file, final int stamp, final int segment)
+      throws IOException {
+    if(!file.exists()) return null;
+    final GeoBuffer bb = GeoBuffer.map(file, segment);
+    return bb.size() < HEADER || bb.getInt(0) != MAGIC ||
+        bb.getInt(4) != VERSION || bb.getInt(8) != stamp ? null : new GeoStore(bb);
+  }
+
+  /**
+   * Returns the stamp of the specified store file.
+   * @param file store file
+   * @return stamp, or {@code 0} if the file does not exist or has an unknown format
+   * @throws IOException I/O exception
+   */
+  static int stamp(final IOFile file) throws IOException {
+    if(!file.exists()) return 0;
+    final DataInputStream in = new DataInputStream(new FileInputStream(file.file()));
+    try {
+      return in.readInt() == MAGIC && in.readInt() == VERSION ? in.readInt() : 0;
+    } catch(final EOFException ex) {
+      return 0;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the size of the store.
+   * @return size in bytes
+   */
+  public long size() {
+    return buffer.size();
+  }
+
+  /**
+   * Reads the geometry at the specified offset.
+   * @param off offset of the record
+   * @return geometry
+   * @throws IOException I/O exception
+   */
+  public Geometry geometry(final long off) throws IOException {
+    final byte[] wkb = new byte[buffer.getInt(off)];
+    buffer.get(off + 4, wkb);
+    return read(wkb, factory);
+  }
+
+  /**
+   * Converts WKB to a geometry.
+   * @param wkb WKB
+   * @param factory geometry factory
+   * @return geometry
+   * @throws IOException I/O exception
+   */
+  static Geometry read(final byte[] wkb, final GeometryFactory factory)
+      throws IOException {
+    try {
+      return new WKBReader(factory).read(wkb);
+    } catch(final ParseException ex) {
+      throw new IOException(ex.getMessage());
+    }
+  }
+
+  /** Output stream for appending records to a store file. */
+  static final class Output {
+    /** Output stream. */
+    private final DataOutputStream out;
+    /** Offset of the next record. */
+    private long off;
+
+    /**
+     * Creates a new store file.
+     * @param file store file
+     * @param stamp stamp of the index
+     * @throws IOException I/O exception
+     */
+    Output(final IOFile file, final int stamp) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file.file())));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(stamp);
+      out.writeInt(0);
+      off = HEADER;
+    }
+
+    /**
+     * Opens an existing store file for appending records.
+     * @param file store file
+     * @throws IOException I/O exception
+     */
+    Output(final IOFile file) throws IOException {
+      off = file.length();
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file.file(), true)));
+    }
+
+    /**
+     * Appends a record.
+     * @param wkb WKB of a geometry
+     * @return offset of the record
+     * @throws IOException I/O exception
+     */
+    long add(final byte[] wkb) throws IOException {
+      final long o = off;
+      out.writeInt(wkb.length);
+      out.write(wkb);
+      off += 4 + wkb.length;
+      return o;
+    }
+
+    /**
+     * Closes the stream.
+     * @throws IOException I/O exception
+     */
+    void close() throws IOException {
+      out.close();
+    }
+  }
+}
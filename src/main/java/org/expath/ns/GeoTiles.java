@@ -0,0 +1,365 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+import org.basex.query.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.query.value.type.*;
+import org.basex.util.list.*;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.simplify.*;
+
+/**
+ * This class creates the tiles of web maps from the spatial index of a database.
+ * Tiles are addressed by zoom level and column and row numbers, as in common web map
+ * clients: each tile covers 256 x 256 pixels of the Web Mercator projection, and
+ * tile {@code 0/0/0} covers the whole world. The geometries of a tile are found by
+ * an index query for the envelope of the tile, which is transformed to the reference
+ * system of the database (see {@link GeoCrs}):
+ * <ul>
+ *   <li> Geometries that are smaller than a cell of 64 x 64 pixels are assigned to
+ *        the cell that contains their center, and only belong to a single tile.
+ *        Cells with one geometry return this geometry, and cells with several
+ *        geometries return a cluster with the number of geometries and the mean of
+ *        their centers. Subtrees of the index that lie within a cell are counted
+ *        without visiting their geometries, and contribute the centers of their
+ *        node envelopes, so that tiles of low zoom levels are created without
+ *        scanning the whole index.</li>
+ *   <li> Larger geometries are returned by all tiles they intersect. They are
+ *        simplified with a tolerance of one pixel and clipped to the tile.</li>
+ * </ul>
+ * Tiles are cached by their key, so that panning and zooming does not query the
+ * index again. The cached elements are never returned: each caller receives a copy,
+ * which it may modify or insert into other nodes. Cached tiles are discarded if the
+ * database or its index has been updated (see {@link GeoStamp}), and the least
+ * recently used tiles are evicted if the maximum number of tiles or the maximum
+ * total size of their texts is exceeded.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoTiles {
+  /** Size of a tile in pixels. */
+  private static final int PIXELS = 256;
+  /** Size of a cell in pixels. */
+  private static final int CELL = 64;
+  /** Number of cells per row of a tile. */
+  private static final int CELLS = PIXELS / CELL;
+  /** Margin of clipped geometries in pixels. */
+  private static final int MARGIN = 4;
+  /** Maximum zoom level. */
+  private static final int MAXZOOM = 30;
+  /** Circumference of the Web Mercator projection in meters. */
+  private static final double WORLD = 2 * Math.PI * 6378137;
+  /** Maximum number of cached tiles (can be set via system property). */
+  private static final int MAX = Integer.getInteger("org.basex.geo.tiles", 1000);
+  /** Maximum total size of the cached tiles in bytes (can be set via system
+   * property). */
+  private static final long MAXBYTES = Long.getLong("org.basex.geo.tilebytes", 1L << 26);
+
+  /** QName tile. */
+  private static final QNm Q_TILE = new QNm("tile");
+  /** QName cluster. */
+  private static final QNm Q_CLUSTER = new QNm("cluster");
+  /** QName feature. */
+  private static final QNm Q_FEATURE = new QNm("feature");
+  /** QName z. */
+  private static final QNm Q_Z = new QNm("z");
+  /** QName x. */
+  private static final QNm Q_X = new QNm("x");
+  /** QName y. */
+  private static final QNm Q_Y = new QNm("y");
+  /** QName count. */
+  private static final QNm Q_COUNT = new QNm("count");
+  /** QName features. */
+  private static final QNm Q_FEATURES = new QNm("features");
+  /** QName pre. */
+  private static final QNm Q_PRE = new QNm("pre");
+
+  /** Cached tiles, in the order of their last access. */
+  private static final LinkedHashMap<String, Tile> CACHE =
+      new LinkedHashMap<String, Tile>(16, 0.75f, true);
+  /** Total size of the cached tiles in bytes. */
+  private static long bytes;
+  /** Number of cache hits. */
+  private static long hits;
+  /** Number of cache misses. */
+  private static long misses;
+
+  /** Private constructor, preventing instantiation. */
+  private GeoTiles() { }
+
+  /**
+   * Returns a tile of the specified index.
+   * @param index index handle
+   * @param z zoom level
+   * @param x column of the tile
+   * @param y row of the tile
+   * @param srs name of the reference system of the database
+   * @return new tile element
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public static FElem get(final GeoIndexHandle index, final long z, final long x,
+      final long y, final String srs) throws QueryException, IOException {
+    if(z < 0 || z > MAXZOOM || x < 0 || y < 0 || x >= 1L << z || y >= 1L << z)
+      throw GeoErrors.invalidTile(z + "/" + x + '/' + y);
+    final GeoCrs crs = GeoCrs.get(srs);
+    if(crs == GeoCrs.PLANAR) throw GeoErrors.tileCrs(srs);
+
+    final String key = index.data.meta.name + '/' + z + '/' + x + '/' + y + '/' + crs;
+    final GeoStamp stamp = new GeoStamp(index.data);
+    synchronized(CACHE) {
+      final Tile tile = CACHE.get(key);
+      if(tile != null && tile.tree.get() == index.tree &&
+          tile.stamp.matches(index.data)) {
+        hits++;
+        return tile.elem.copy();
+      }
+      misses++;
+    }
+    final FElem elem = create(index, (int) z, (int) x, (int) y, crs);
+    final long size = bytes(elem);
+    synchronized(CACHE) {
+      final Tile old = CACHE.remove(key);
+      if(old != null) bytes -= old.bytes;
+      if(size <= MAXBYTES) {
+        CACHE.put(key, new Tile(index.tree, stamp, elem, size));
+        bytes += size;
+        // evict the least recently used tiles
+        final Iterator<Tile> it = CACHE.values().iterator();
+        while(CACHE.size() > MAX || bytes > MAXBYTES) {
+          bytes -= it.next().bytes;
+          it.remove();
+        }
+      }
+    }
+    return elem.copy();
+  }
+
+  /**
+   * Returns the number of cache hits.
+   * @return number of hits
+   */
+  public static long hits() {
+    synchronized(CACHE) {
+      return hits;
+    }
+  }
+
+  /**
+   * Returns the number of cache misses.
+   * @return number of misses
+   */
+  public static long misses() {
+    synchronized(CACHE) {
+      return misses;
+    }
+  }
+
+  /**
+   * Discards all tiles and resets the counters.
+   */
+  public static void clear() {
+    synchronized(CACHE) {
+      CACHE.clear();
+      bytes = 0;
+      hits = 0;
+      misses = 0;
+    }
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Estimates the size of a node in bytes from the lengths of its names, texts and
+   * attribute values.
+   * @param node node
+   * @return size
+   */
+  private static long bytes(final ANode node) {
+    if(node.type != NodeType.ELM) return node.string().length;
+    long b = node.qname().string().length;
+    for(final ANode att : node.attributes()) {
+      b += att.qname().string().length + att.string().length;
+    }
+    for(final ANode ch : node.children()) b += bytes(ch);
+    return b;
+  }
+
+  /**
+   * Creates a tile.
+   * @param index index handle
+   * @param z zoom level
+   * @param x column of the tile
+   * @param y row of the tile
+   * @param crs reference system of the database
+   * @return tile element
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private static FElem create(final GeoIndexHandle index, final int z, final int x,
+      final int y, final GeoCrs crs) throws QueryException, IOException {
+    // bounds of the tile in the Web Mercator projection
+    final double size = WORLD / (1L << z), pixel = size / PIXELS;
+    final double minx = -WORLD / 2 + x * size, maxy = WORLD / 2 - y * size;
+    final GeoCrs.Transform toData = GeoCrs.MERCATOR.transformation(crs);
+    final GeoCrs.Transform toMercator = crs.transformation(GeoCrs.MERCATOR);
+    final double m = MARGIN * pixel;
+    final Envelope search = envelope(minx - m, maxy - size - m, minx + size + m,
+        maxy + m, toData);
+
+    // assign small geometries to cells; subtrees of the index that lie within a cell
+    // are counted without visiting their geometries
+    final double cell = CELL * pixel;
+    final Envelope[] cells = new Envelope[CELLS * CELLS];
+    for(int c = 0; c < cells.length; c++) {
+      final double cx = minx + c % CELLS * cell, cy = maxy - c / CELLS * cell;
+      cells[c] = envelope(cx, cy - cell, cx + cell, cy, toData);
+    }
+    final int[] counts = new int[CELLS * CELLS], firsts = new int[CELLS * CELLS];
+    final double[] sums = new double[CELLS * CELLS << 1];
+    final IntList large = new IntList();
+    final double[] min = new double[2], max = new double[2];
+    index.candidates(search, cells, counts, sums, new GeoIndexVisitor() {
+      @Override
+      public boolean visit(final int cand) {
+        final Envelope env = index.envelope(cand);
+        min[0] = env.getMinX();
+        min[1] = env.getMinY();
+        max[0] = env.getMaxX();
+        max[1] = env.getMaxY();
+        if(toMercator != null) {
+          toMercator.transform(min);
+          toMercator.transform(max);
+        }
+        if(Math.max(Math.abs(max[0] - min[0]), Math.abs(max[1] - min[1])) > cell) {
+          large.add(cand);
+          return true;
+        }
+        // geometries whose centers are outside the tile belong to other tiles
+        final double px = ((min[0] + max[0]) / 2 - minx) / pixel;
+        final double py = (maxy - (min[1] + max[1]) / 2) / pixel;
+        if(px < 0 || px >= PIXELS || py < 0 || py >= PIXELS) return true;
+        final int c = (int) py / CELL * CELLS + (int) px / CELL;
+        if(counts[c]++ == 0) firsts[c] = cand;
+        sums[c << 1] += env.centre().x;
+        sums[(c << 1) + 1] += env.centre().y;
+        return true;
+      }
+    });
+
+    // create the clusters and features
+    final FElem tile = new FElem(Q_TILE).add(Q_Z, token(z)).add(Q_X, token(x)).
+        add(Q_Y, token(y));
+    final GmlWriter writer = new GmlWriter();
+    final GeometryFactory factory = new GeometryFactory();
+    final double tolerance = Math.min(search.getWidth(), search.getHeight()) /
+        (PIXELS + 2 * MARGIN);
+    int features = large.size();
+    for(int c = 0; c < counts.length; c++) {
+      final int n = counts[c];
+      if(n == 0) continue;
+      features += n;
+      if(n == 1) {
+        tile.add(feature(index, firsts[c], tolerance, null, writer));
+      } else {
+        final Point center = factory.createPoint(new Coordinate(sums[c << 1] / n,
+            sums[(c << 1) + 1] / n));
+        tile.add(new FElem(Q_CLUSTER).add(Q_COUNT, token(n)).add(
+            writer.createElement(center)));
+      }
+    }
+    final Geometry clip = factory.toGeometry(search);
+    for(int l = 0; l < large.size(); l++) {
+      final FElem feature = feature(index, large.get(l), tolerance, clip, writer);
+      if(feature != null) tile.add(feature);
+      else features--;
+    }
+    return tile.add(Q_FEATURES, token(features));
+  }
+
+  /**
+   * Creates the element of a geometry.
+   * @param index index handle
+   * @param cand candidate
+   * @param tolerance tolerance of the simplification
+   * @param clip envelope to which the geometry is clipped (may be {@code null})
+   * @param writer GML writer
+   * @return element, or {@code null} if the clipped geometry is empty
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  private static FElem feature(final GeoIndexHandle index, final int cand,
+      final double tolerance, final Geometry clip, final GmlWriter writer)
+      throws QueryException, IOException {
+    Geometry geo = index.geometry(cand);
+    if(!(geo instanceof Point)) {
+      geo = TopologyPreservingSimplifier.simplify(geo, tolerance);
+    }
+    // heterogeneous collections cannot be clipped
+    if(clip != null && geo.getClass() != GeometryCollection.class) {
+      try {
+        geo = geo.intersection(clip);
+      } catch(final TopologyException ex) {
+        // return the unclipped geometry
+      }
+      if(geo.isEmpty()) return null;
+    }
+    return new FElem(Q_FEATURE).add(Q_PRE, token(index.pre(cand))).add(
+        writer.createElement(geo));
+  }
+
+  /**
+   * Returns the envelope of the specified Web Mercator bounds in the reference system
+   * of the database.
+   * @param minx minimum x coordinate
+   * @param miny minimum y coordinate
+   * @param maxx maximum x coordinate
+   * @param maxy maximum y coordinate
+   * @param toData transformation to the reference system of the database
+   *   ({@code null} if the database uses the Web Mercator projection)
+   * @return envelope
+   */
+  private static Envelope envelope(final double minx, final double miny,
+      final double maxx, final double maxy, final GeoCrs.Transform toData) {
+    final double[] min = { minx, miny }, max = { maxx, maxy };
+    if(toData != null) {
+      toData.transform(min);
+      toData.transform(max);
+    }
+    return new Envelope(min[0], max[0], min[1], max[1]);
+  }
+
+  /** Cached tile. */
+  private static final class Tile {
+    /** Index from which the tile has been created. */
+    final WeakReference<PackedRTree> tree;
+    /** State of the database at caching time. */
+    final GeoStamp stamp;
+    /** Tile element (copied before it is returned). */
+    final FElem elem;
+    /** Estimated size of the tile element in bytes. */
+    final long bytes;
+
+    /**
+     * Constructor.
+     * @param t index
+     * @param s state of the database
+     * @param e tile element
+     * @param b estimated size of the tile element in bytes
+     */
+    Tile(final PackedRTree t, final GeoStamp s, final FElem e, final long b) {
+      tree = new WeakReference<PackedRTree>(t);
+      stamp = s;
+      elem = e;
+      bytes = b;
+    }
+  }
+}
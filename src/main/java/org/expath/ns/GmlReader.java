@@ -8,9 +8,9 @@ import org.basex.query.*;
 import org.basex.query.value.item.*;
 import org.basex.query.value.node.*;
 import org.basex.query.value.type.*;
-import org.basex.util.*;
 
 import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.impl.*;
 
 /**
  * This class contains functions to read gml elements.
@@ -21,6 +21,8 @@ import com.vividsolutions.jts.geom.*;
 public final class GmlReader {
   /** GML URI. */
   private static final byte[] GMLURI = token("http://www.opengis.net/gml");
+  /** GML 3.2 URI. */
+  private static final byte[] GML32URI = token("http://www.opengis.net/gml/3.2");
 
   /** Prefix: "gml:". */
   private static final String GML = "gml:";
@@ -50,14 +52,56 @@ public final class GmlReader {
   private static final QNm Q_GML_MULTIGEOMETRY = new QNm(GML + "MultiGeometry", GMLURI);
   /** QName gml:geometryMember. */
   private static final QNm Q_GML_GEOMETRYMEMBER = new QNm(GML + "geometryMember", GMLURI);
+  /** QName gml:MultiSurface. */
+  private static final QNm Q_GML_MULTISURFACE = new QNm(GML + "MultiSurface", GMLURI);
+  /** QName gml:surfaceMember. */
+  private static final QNm Q_GML_SURFACEMEMBER = new QNm(GML + "surfaceMember", GMLURI);
+  /** QName gml:surfaceMembers. */
+  private static final QNm Q_GML_SURFACEMEMBERS =
+      new QNm(GML + "surfaceMembers", GMLURI);
+  /** QName gml:MultiCurve. */
+  private static final QNm Q_GML_MULTICURVE = new QNm(GML + "MultiCurve", GMLURI);
+  /** QName gml:curveMember. */
+  private static final QNm Q_GML_CURVEMEMBER = new QNm(GML + "curveMember", GMLURI);
+  /** QName gml:curveMembers. */
+  private static final QNm Q_GML_CURVEMEMBERS = new QNm(GML + "curveMembers", GMLURI);
+  /** QName gml:Surface. */
+  private static final QNm Q_GML_SURFACE = new QNm(GML + "Surface", GMLURI);
+  /** QName gml:patches. */
+  private static final QNm Q_GML_PATCHES = new QNm(GML + "patches", GMLURI);
+  /** QName gml:PolygonPatch. */
+  private static final QNm Q_GML_POLYGONPATCH = new QNm(GML + "PolygonPatch", GMLURI);
+  /** QName gml:Curve. */
+  private static final QNm Q_GML_CURVE = new QNm(GML + "Curve", GMLURI);
+  /** QName gml:segments. */
+  private static final QNm Q_GML_SEGMENTS = new QNm(GML + "segments", GMLURI);
+  /** QName gml:LineStringSegment. */
+  private static final QNm Q_GML_LINESTRINGSEGMENT =
+      new QNm(GML + "LineStringSegment", GMLURI);
   /** QName gml:outerBoundaryIs. */
   private static final QNm Q_GML_OUTERBOUNDARY = new QNm(GML + "outerBoundaryIs", GMLURI);
   /** QName gml:innerBoundaryIs. */
   private static final QNm Q_GML_INNERBOUNDARY = new QNm(GML + "innerBoundaryIs", GMLURI);
+  /** QName gml:exterior. */
+  private static final QNm Q_GML_EXTERIOR = new QNm(GML + "exterior", GMLURI);
+  /** QName gml:interior. */
+  private static final QNm Q_GML_INTERIOR = new QNm(GML + "interior", GMLURI);
   /** QName gml:coordinates. */
   private static final QNm Q_GML_COORDINATES = new QNm(GML + "coordinates", GMLURI);
   /** QName coord. */
   private static final QNm Q_GML_COORD = new QNm(GML + "coord", GMLURI);
+  /** QName gml:pos. */
+  private static final QNm Q_GML_POS = new QNm(GML + "pos", GMLURI);
+  /** QName gml:posList. */
+  private static final QNm Q_GML_POSLIST = new QNm(GML + "posList", GMLURI);
+  /** QName srsDimension. */
+  private static final QNm Q_SRSDIMENSION = new QNm("srsDimension");
+  /** QName cs. */
+  private static final QNm Q_CS = new QNm("cs");
+  /** QName ts. */
+  private static final QNm Q_TS = new QNm("ts");
+  /** QName decimal. */
+  private static final QNm Q_DECIMAL = new QNm("decimal");
   /** QName X. */
   private static final QNm Q_GML_X = new QNm(GML + "X", GMLURI);
   /** QName Y. */
@@ -66,7 +110,20 @@ public final class GmlReader {
   private static final QNm Q_GML_Z = new QNm(GML + "Z", GMLURI);
 
   /** Array containing single geometries' QName. */
-  private static final QNm[] QNAMES = { Q_GML_POINT, Q_GML_LINESTRING, Q_GML_POLYGON };
+  private static final QNm[] QNAMES = { Q_GML_POINT, Q_GML_LINESTRING, Q_GML_POLYGON,
+    Q_GML_CURVE, Q_GML_SURFACE };
+  /** Array containing the QNames of all geometries. */
+  private static final QNm[] GEOMETRIES = { Q_GML_POINT, Q_GML_LINESTRING,
+    Q_GML_LINEARRING, Q_GML_POLYGON, Q_GML_MULTIPOINT, Q_GML_MULTILINESTRING,
+    Q_GML_MULTIPOLYGON, Q_GML_MULTIGEOMETRY, Q_GML_CURVE, Q_GML_SURFACE,
+    Q_GML_MULTICURVE, Q_GML_MULTISURFACE };
+  /** Exactly representable powers of ten. */
+  private static final double[] POWERS = new double[23];
+
+  static {
+    POWERS[0] = 1;
+    for(int p = 1; p < POWERS.length; p++) POWERS[p] = POWERS[p - 1] * 10;
+  }
 
   /** JTS GeometryFactory. */
   private final GeometryFactory gFactory = new GeometryFactory();
@@ -77,87 +134,70 @@ public final class GmlReader {
   // PUBLIC METHODS =====================================================================
 
   /**
-   * Creates a coordinate array out of a <gml:coordinates> element.
-   * @param pattern coordinate string of the text value in <gml:coordinates> element
-   * @return coordinates of the points included in <gml:coordinates> element
+   * Creates a coordinate sequence out of the text of a <gml:coordinates> element.
+   * The text is scanned once, and the coordinates are parsed in place into a
+   * packed array. All tuples must have the same number of coordinates (at most three);
+   * the y coordinate of one-dimensional tuples is {@code 0}. Whitespace around
+   * separators is ignored; if the tuple separator is a whitespace, all whitespaces
+   * separate tuples.
+   * @param text text of the <gml:coordinates> element
+   * @param cs coordinate separator
+   * @param ts tuple separator
+   * @param dec decimal separator
+   * @return coordinate sequence
    * @throws QueryException query exception
    */
-  public Coordinate[] createCoordinate(final byte[] pattern) throws QueryException {
-    final List<Coordinate> coord = new ArrayList<Coordinate>();
-//    Scanner scan = new Scanner(source)
-    //byte[] temp = new byte[150];
-    byte[] x = new byte[100];
-    byte[] y = new byte[100];
-    //byte[] z = new byte[100];
-    int comma = 0;
-    //int length = pattern.length;
-    int j = 0;
-    for (byte b : pattern) {
-      if (b == 44) {
-        j = 0;
-        comma++;
-        continue;
+  public static CoordinateSequence createCoordinates(final byte[] text, final int cs,
+      final int ts, final int dec) throws QueryException {
+
+    final int l = text.length;
+    final Ordinates ords = new Ordinates(l >>> 2);
+    int i = 0, dim = 0, n = 0;
+    while(i < l && ws(text[i])) i++;
+    while(i < l) {
+      // find the end of the number and parse it
+      int e = i;
+      while(e < l && numeric(text[e], dec)) e++;
+      ords.add(parseDouble(text, i, e, dec));
+      n++;
+
+      // find the next separator; whitespaces are only separators if no other
+      // separator is found
+      int c = 0, t = 0, w = 0;
+      boolean wc = false, wt = false;
+      for(i = e; i < l; i++) {
+        final byte b = text[i];
+        if(ws(b)) {
+          wc |= b == cs;
+          wt |= b == ts;
+          w++;
+        } else if(b == cs) {
+          c++;
+        } else if(b == ts) {
+          t++;
+        } else {
+          break;
+        }
+      }
+      final boolean coord;
+      if(c + t > 1) throw GeoErrors.invalidCoordErr();
+      if(c + t == 1 || i == l) {
+        coord = c == 1;
+      } else {
+        if(w == 0 || !ws(cs) && !ws(ts)) throw GeoErrors.invalidCoordErr();
+        coord = ws(cs) && (!ws(ts) || wc && !wt);
       }
-      else if (b == 32 || b == 13 || b == 10) {
-        //if (x != null && y != null && z != null)
-          coord.add(new Coordinate(toDouble(x), toDouble(y)));
-        comma = 0;
-        j = 0;
-        x = new byte[100];
-        y = new byte[100];
-     //   z = new byte[100];
+      if(coord) {
+        if(i == l) throw GeoErrors.invalidCoordErr();
         continue;
       }
-      // if (pattern[i] >= 48 &&  pattern[i] <= 57 || pattern[i] == 43 || pattern[i] == 45 || pattern[i] == 46) {
-      else if (comma == 0)
-          x[j] = b;
-      else if (comma == 1) y[j] = b;
-   //   else z[j] = pattern[i];
-      j++;
-//      if (pattern)
-//        coord.add(new Coordinate(toDouble(x), toDouble(y)));
-//      }
-
-
-//
-//      if (pattern[i] == 32 || pattern[i] == 13 || pattern[i] == 10 || i + 1 == length) {
-//        int w = 0;
-//        byte[] p = new byte[j];
-//        for (int k = 0; k < j; k++) {
-//           if (temp[k] != 44) {
-//             p[w] = temp[k];
-//             w++;
-//           }
-//           if (temp[k] == 44 || k + 1 == j) {
-//             w = 0;
-//             point[countX][countY] = toDouble(p);
-//             p = new byte[j];
-//             for (int t = k + 1; t < temp.length && temp[t] != 0; t++) {
-//               p[w] = temp[t];
-//               w++;
-//             }
-//             point[countX][1] = toDouble(p);
-//             countY++;
-  //           p = new byte[temp.length];
-           }
-    coord.add(new Coordinate(toDouble(x), toDouble(y)));
-//        }
-//        j = 0;
-      //  System.out.println("Point: " + point[countX][countY]);
-//        coord.add(new Coordinate(point[countX][0], point[countX][1], Double.NaN));
-//        countX++;
-//        countY = 0;
-//        temp = new byte[150];
-//      }
-//    }
-//    for(final byte[] coords : split(norm(pattern), ' ')) {
-//      final byte[][] xy = split(coords, ',');
-      //if(xy.length != 2) throw GeoErrors.invalidCoordErr();
-//    for(int i = 0; i < countX; i++) {
-//      coord.add(new Coordinate(point[i][0], point[i][1], Double.NaN));
-//    }
-    if(!coord.isEmpty()) return coord.toArray(new Coordinate[coord.size()]);
-    throw GeoErrors.invalidCoordErr();
+
+      // end of tuple
+      if(dim == 0) dim = n;
+      if(n != dim || dim > 3) throw GeoErrors.invalidCoordErr();
+      n = 0;
+    }
+    return ords.sequence(dim);
   }
 
   /**
@@ -168,50 +208,28 @@ public final class GmlReader {
    */
   public Polygon createPolygon(final ANode node) throws QueryException {
     LinearRing shell = null;
-    long time1 = 0;
-    long time2 = 0;
-    long time3 = 0;
-    long time4 = 0;
-    long time5 = 0;
-    long time6 = 0;
-    Performance p = new Performance();
     final ArrayList<LinearRing> ir = new ArrayList<LinearRing>();
     for(final ANode ch : node.children()) {
-      time1 += p.time();
-      //System.out.println(" time1:" + Performance.getTime(time1, 1));
-      if(ch.type != NodeType.ELM) { time2 += p.time(); continue; }
-      final QNm name = ch.qname();
-      time3 += p.time();
+      if(ch.type != NodeType.ELM) continue;
 
-      if(name.eq(Q_GML_OUTERBOUNDARY)) {
-        final ANode c = ch.children().next();
-        if(c == null || !c.qname().eq(Q_GML_LINEARRING)) throw GeoErrors.geoAssrErr(node);
+      final QNm name = ch.qname();
+      final boolean outer = is(name, Q_GML_OUTERBOUNDARY) || is(name, Q_GML_EXTERIOR);
+      if(!outer && !is(name, Q_GML_INNERBOUNDARY) && !is(name, Q_GML_INTERIOR))
+        throw GeoErrors.geoAssrErr(node);
+      final ANode c = ch.children().next();
+      if(c == null || !is(c.qname(), Q_GML_LINEARRING)) throw GeoErrors.geoAssrErr(node);
+      if(outer) {
         if(shell != null) throw GeoErrors.outRingErr(node);
         shell = createRing(c);
-        time4 += p.time();
-//        System.out.println(" create outer:" + Performance.getTime(time4, 1));
-      } else if(name.eq(Q_GML_INNERBOUNDARY)) {
-        final ANode c = ch.children().next();
-        if(c == null || !c.qname().eq(Q_GML_LINEARRING)) throw GeoErrors.geoAssrErr(node);
-        LinearRing ring = createRing(c);
-        time5 += p.time();
-//        System.out.println(" create inner:" + Performance.getTime(time5, 1));
-        ir.add(ring);
-        //time6 += p.time();
       } else {
-        throw GeoErrors.geoAssrErr(node);
+        ir.add(createRing(c));
       }
     }
     if(!ir.isEmpty() && shell == null) throw GeoErrors.outRingErr(node);
-//    System.out.println(" time1:" + Performance.getTime(time1, 1));
-//    System.out.println(" time2:" + Performance.getTime(time2, 1));
-//    System.out.println(" time3:" + Performance.getTime(time3, 1));
-
-
-    //System.out.println(" time6:" + Performance.getTime(time6, 1));
     return new Polygon(shell, ir.toArray(new LinearRing[ir.size()]), gFactory);
   }
 
+
   /**
    * Reads a <gml:LineString> element and returns a LineString geometry.
    * @param node Geometry element node
@@ -220,7 +238,7 @@ public final class GmlReader {
    */
   public LineString createLineString(final ANode node) throws QueryException {
     try {
-      return new LineString(csFactory.create(createCoordSeq(node)), gFactory);
+      return new LineString(createCoordSeq(node), gFactory);
     } catch(final RuntimeException ex) {
       // catches IllegalAccessExceptions and AssertionFailedException
       throw GeoErrors.jtsConstruction(ex);
@@ -235,13 +253,92 @@ public final class GmlReader {
    */
   public Point createPoint(final ANode node) throws QueryException {
     try {
-      return new Point(csFactory.create(createCoordSeq(node)), gFactory);
+      return new Point(createCoordSeq(node), gFactory);
+    } catch(final RuntimeException ex) {
+      // catches IllegalAccessExceptions and AssertionFailedException
+      throw GeoErrors.jtsConstruction(ex);
+    }
+  }
+
+  /**
+   * Reads a <gml:Curve> element, whose segments must be <gml:LineStringSegment>
+   * elements, and returns a LineString geometry. Consecutive segments are joined
+   * at their shared end points.
+   * @param node Geometry element node
+   * @return LineString geometry out of the node element
+   * @throws QueryException query exception
+   */
+  public LineString createCurve(final ANode node) throws QueryException {
+    final ArrayList<Coordinate> coords = new ArrayList<Coordinate>();
+    for(final ANode ch : node.children()) {
+      if(ch.type != NodeType.ELM) continue;
+      if(!is(ch.qname(), Q_GML_SEGMENTS)) throw GeoErrors.geoAssrErr(node);
+      for(final ANode seg : ch.children()) {
+        if(seg.type != NodeType.ELM) continue;
+        if(!is(seg.qname(), Q_GML_LINESTRINGSEGMENT)) throw GeoErrors.geoAssrErr(node);
+        final Coordinate[] cs = createCoordSeq(seg).toCoordinateArray();
+        final int s = cs.length != 0 && !coords.isEmpty() &&
+            coords.get(coords.size() - 1).equals3D(cs[0]) ? 1 : 0;
+        for(int c = s; c < cs.length; c++) coords.add(cs[c]);
+      }
+    }
+    try {
+      return gFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
     } catch(final RuntimeException ex) {
       // catches IllegalAccessExceptions and AssertionFailedException
       throw GeoErrors.jtsConstruction(ex);
     }
   }
 
+  /**
+   * Reads a <gml:Surface> element, whose patches must be <gml:PolygonPatch>
+   * elements, and returns a Polygon geometry, or a MultiPolygon geometry if the
+   * surface has several patches.
+   * @param node Geometry element node
+   * @return Polygon or MultiPolygon geometry out of the node element
+   * @throws QueryException query exception
+   */
+  public Geometry createSurface(final ANode node) throws QueryException {
+    final ArrayList<Polygon> polys = new ArrayList<Polygon>();
+    for(final ANode ch : node.children()) {
+      if(ch.type != NodeType.ELM) continue;
+      if(!is(ch.qname(), Q_GML_PATCHES)) throw GeoErrors.geoAssrErr(node);
+      for(final ANode patch : ch.children()) {
+        if(patch.type != NodeType.ELM) continue;
+        if(!is(patch.qname(), Q_GML_POLYGONPATCH)) throw GeoErrors.geoAssrErr(node);
+        polys.add(createPolygon(patch));
+      }
+    }
+    return polys.size() == 1 ? polys.get(0) :
+      gFactory.createMultiPolygon(polys.toArray(new Polygon[polys.size()]));
+  }
+
+  /**
+   * Reads a <gml:MultiSurface> element and returns a MultiPolygon geometry.
+   * The members may be polygons or surfaces.
+   * @param node Geometry element node
+   * @return MultiPolygon geometry out of the node element
+   * @throws QueryException query exception
+   */
+  public MultiPolygon createMultiSurface(final ANode node) throws QueryException {
+    final ArrayList<Polygon> polys = members(node, Q_GML_SURFACEMEMBER,
+        Q_GML_SURFACEMEMBERS, Polygon.class);
+    return gFactory.createMultiPolygon(polys.toArray(new Polygon[polys.size()]));
+  }
+
+  /**
+   * Reads a <gml:MultiCurve> element and returns a MultiLineString geometry.
+   * The members may be line strings or curves.
+   * @param node Geometry element node
+   * @return MultiLineString geometry out of the node element
+   * @throws QueryException query exception
+   */
+  public MultiLineString createMultiCurve(final ANode node) throws QueryException {
+    final ArrayList<LineString> lines = members(node, Q_GML_CURVEMEMBER,
+        Q_GML_CURVEMEMBERS, LineString.class);
+    return gFactory.createMultiLineString(lines.toArray(new LineString[lines.size()]));
+  }
+
   /**
    * Reads an element of type GeometryCollection and creates
    * the corresponding GeometryCollection geometry.
@@ -257,20 +354,20 @@ public final class GmlReader {
     final ArrayList<Geometry> gList = new ArrayList<Geometry>();
     for(final ANode ch : node.children()) {
       for(final QNm name : sQnm) {
-        if(ch.qname().eq(name)) {
+        if(is(ch.qname(), name)) {
           gList.add(createGeometry(ch));
-        } else if(ch.qname().eq(mQnm)) {
+        } else if(is(ch.qname(), mQnm)) {
           final ANode c = ch.children().next();
           if(c == null) throw GeoErrors.geoAssrErr(node);
           gList.add(createGeometry(c));
         }
       }
     }
-    if(node.qname().eq(Q_GML_MULTILINESTRING))
+    if(is(node.qname(), Q_GML_MULTILINESTRING))
       return new MultiLineString(gList.toArray(new LineString[gList.size()]), gFactory);
-    else if(node.qname().eq(Q_GML_MULTIPOINT))
+    else if(is(node.qname(), Q_GML_MULTIPOINT))
       return new MultiPoint(gList.toArray(new Point[gList.size()]), gFactory);
-    else if(node.qname().eq(Q_GML_MULTIPOLYGON))
+    else if(is(node.qname(), Q_GML_MULTIPOLYGON))
       return new MultiPolygon(gList.toArray(new Polygon[gList.size()]), gFactory);
     return new GeometryCollection(gList.toArray(new Geometry[gList.size()]), gFactory);
   }
@@ -287,49 +384,53 @@ public final class GmlReader {
     //long read = 0;
 
     try {
-      if(name.eq(Q_GML_POLYGON)) {
+      if(is(name, Q_GML_POLYGON)) {
         Geometry geo = createPolygon(node);
 //        read += p.time();
 //        System.out.println("create poly: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_LINESTRING)) {
+      if(is(name, Q_GML_LINESTRING)) {
         Geometry geo = createLineString(node);
 //        read += p.time();
 //        System.out.println("create line: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_LINEARRING)) {
+      if(is(name, Q_GML_LINEARRING)) {
         Geometry geo = createRing(node);
 //        read += p.time();
 //        System.out.println("create ring: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_POINT)) {
+      if(is(name, Q_GML_POINT)) {
         Geometry geo = createPoint(node);
 //        read += p.time();
 //        System.out.println("create point: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_MULTIPOLYGON)) {
+      if(is(name, Q_GML_MULTIPOLYGON)) {
         Geometry geo = createMGeom(node, Q_GML_POLYGONMEMBER, Q_GML_POLYGON);
 //        read += p.time();
 //        System.out.println("create Mpoly: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_MULTILINESTRING)) {
+      if(is(name, Q_GML_MULTILINESTRING)) {
         Geometry geo = createMGeom(node, Q_GML_LINESTRINGMEMBER, Q_GML_LINESTRING);
 //        read += p.time();
 //        System.out.println("create Mline: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_MULTIPOINT)) {
+      if(is(name, Q_GML_MULTIPOINT)) {
         Geometry geo = createMGeom(node, Q_GML_POINTMEMBER, Q_GML_POINT);
 //        read += p.time();
 //        System.out.println("create MPoint: " + Performance.getTime(read, 1));
         return geo;
       }
-      if(name.eq(Q_GML_MULTIGEOMETRY)) {
+      if(is(name, Q_GML_SURFACE)) return createSurface(node);
+      if(is(name, Q_GML_CURVE)) return createCurve(node);
+      if(is(name, Q_GML_MULTISURFACE)) return createMultiSurface(node);
+      if(is(name, Q_GML_MULTICURVE)) return createMultiCurve(node);
+      if(is(name, Q_GML_MULTIGEOMETRY)) {
         Geometry geo = createMGeom(node, Q_GML_GEOMETRYMEMBER, QNAMES);
 //        read += p.time();
 //        System.out.println("create Mgeom: " + Performance.getTime(read, 1));
@@ -342,8 +443,60 @@ public final class GmlReader {
     throw GeoErrors.unrecognizedGeo(node);
   }
 
+  /**
+   * Checks if the specified name is the name of a GML geometry element.
+   * @param name element name
+   * @return result of check
+   */
+  public static boolean isGeometry(final QNm name) {
+    for(final QNm geo : GEOMETRIES) if(is(name, geo)) return true;
+    return false;
+  }
+
+  /**
+   * Checks if the specified local name is the local name of a GML geometry element.
+   * @param local local name
+   * @return result of check
+   */
+  public static boolean isGeometry(final byte[] local) {
+    for(final QNm geo : GEOMETRIES) if(eq(local, geo.local())) return true;
+    return false;
+  }
+
   // PRIVATE METHODS ====================================================================
 
+  /**
+   * Reads the members of a <gml:MultiSurface> or <gml:MultiCurve> element. The
+   * member elements may contain single geometries or collections of geometries of
+   * the specified type, whose components are returned.
+   * @param node Geometry element node
+   * @param member name of the elements with a single member
+   * @param members name of the elements with several members
+   * @param type type of the member geometries
+   * @param <G> geometry type
+   * @return member geometries
+   * @throws QueryException query exception
+   */
+  private <G extends Geometry> ArrayList<G> members(final ANode node, final QNm member,
+      final QNm members, final Class<G> type) throws QueryException {
+    final ArrayList<G> list = new ArrayList<G>();
+    for(final ANode ch : node.children()) {
+      if(ch.type != NodeType.ELM) continue;
+      if(!is(ch.qname(), member) && !is(ch.qname(), members))
+        throw GeoErrors.geoAssrErr(node);
+      for(final ANode m : ch.children()) {
+        if(m.type != NodeType.ELM) continue;
+        final Geometry geo = createGeometry(m);
+        for(int g = 0; g < geo.getNumGeometries(); g++) {
+          final Geometry part = geo.getGeometryN(g);
+          if(!type.isInstance(part)) throw GeoErrors.geoAssrErr(node);
+          list.add(type.cast(part));
+        }
+      }
+    }
+    return list;
+  }
+
   /**
    * Reads an <gml:LinearRing> element and returns a LinearRing geometry.
    * @param n The node to be processed
@@ -351,48 +504,202 @@ public final class GmlReader {
    * @throws QueryException query exception
    */
   private LinearRing createRing(final ANode n) throws QueryException {
-    long timeCoord = 0;
-    long timeRing = 0;
-    Performance p = new Performance();
     try {
-      CoordinateSequence cs  = csFactory.create(createCoordSeq(n));
-      timeCoord += p.time();
-      LinearRing lr = new LinearRing(cs, gFactory);
-      timeRing += p.time();
-//      System.out.println("Coord time:" + Performance.getTime(timeCoord, 1));
-//      System.out.println("Ring time:" + Performance.getTime(timeRing, 1));
-      return lr;
+      return new LinearRing(createCoordSeq(n), gFactory);
     } catch(final RuntimeException ex) {
       // catches IllegalAccessExceptions and AssertionFailedException
       throw GeoErrors.jtsConstruction(ex);
     }
   }
 
+
   /**
-   * Creates coordinates sequence out of <gml:coordinate> element
-   * or a set of <gml:coord> elements.
+   * Creates coordinates sequence out of a <gml:coordinates> or <gml:posList> element,
+   * or a set of <gml:pos> or <gml:coord> elements.
    * @param node Geometry element node
    * @return Coordinate sequence
    * @throws QueryException query exception
    */
-  private Coordinate[] createCoordSeq(final ANode node) throws QueryException {
+  private CoordinateSequence createCoordSeq(final ANode node) throws QueryException {
     final List<Coordinate> co = new ArrayList<Coordinate>();
+    Ordinates pos = null;
+    int dim = 0;
     for(final ANode ch : node.children()) {
       if(ch.type != NodeType.ELM) continue;
 
       final QNm name = ch.qname();
-      if(name.eq(Q_GML_COORDINATES)) {
-        byte[] a = ch.string();
-        return createCoordinate(trim(a));
-      } else if(name.eq(Q_GML_COORD)) {
+      if(is(name, Q_GML_COORDINATES)) {
+        return createCoordinates(ch.string(), separator(ch, Q_CS, ','),
+            separator(ch, Q_TS, ' '), separator(ch, Q_DECIMAL, '.'));
+      } else if(is(name, Q_GML_POSLIST)) {
+        final byte[] text = ch.string();
+        final Ordinates ords = new Ordinates(text.length >>> 2);
+        positions(text, ords);
+        return ords.sequence(dimension(ch, 2));
+      } else if(is(name, Q_GML_POS)) {
+        if(pos == null) pos = new Ordinates(16);
+        final int s = pos.size;
+        positions(ch.string(), pos);
+        final int n = pos.size - s;
+        if(dim == 0) dim = dimension(ch, n);
+        if(n != dim) throw GeoErrors.invalidCoordErr();
+      } else if(is(name, Q_GML_COORD)) {
         co.add(createCoord(ch));
       } else {
         throw GeoErrors.geoAssrErr(node);
       }
     }
-    return co.toArray(new Coordinate[co.size()]);
+    if(pos != null) return pos.sequence(dim);
+    return csFactory.create(co.toArray(new Coordinate[co.size()]));
+  }
+
+  /**
+   * Parses the whitespace-separated numbers of a <gml:posList> or <gml:pos> element.
+   * @param text text of the element
+   * @param ords ordinates to which the numbers are added
+   * @throws QueryException query exception
+   */
+  private static void positions(final byte[] text, final Ordinates ords)
+      throws QueryException {
+    final int l = text.length;
+    for(int i = 0; i < l;) {
+      if(ws(text[i])) {
+        i++;
+      } else {
+        int e = i;
+        while(e < l && !ws(text[e])) e++;
+        ords.add(parseDouble(text, i, e, '.'));
+        i = e;
+      }
+    }
   }
 
+  /**
+   * Returns the coordinate dimension of an element, which is specified by the
+   * {@code srsDimension} attribute of the element or one of its ancestors.
+   * @param node element
+   * @param def default dimension
+   * @return dimension
+   * @throws QueryException query exception
+   */
+  private static int dimension(final ANode node, final int def) throws QueryException {
+    for(ANode n = node; n != null; n = n.parent()) {
+      final byte[] dim = n.type == NodeType.ELM ? n.attribute(Q_SRSDIMENSION) : null;
+      if(dim == null) continue;
+      final int d = toInt(dim);
+      if(d < 1 || d > 3) throw GeoErrors.invalidCoordErr();
+      return d;
+    }
+    return def;
+  }
+
+  /**
+   * Checks if an element name is equal to the specified GML name. Names in the
+   * GML 3.2 namespace are accepted as well.
+   * @param name element name
+   * @param gml GML name
+   * @return result of check
+   */
+  static boolean is(final QNm name, final QNm gml) {
+    return name.eq(gml) || eq(name.uri(), GML32URI) && eq(name.local(), gml.local());
+  }
+
+
+  /**
+   * Returns a separator of a <gml:coordinates> element.
+   * @param coords <gml:coordinates> element
+   * @param name name of the separator attribute
+   * @param def default separator
+   * @return separator
+   */
+  private static int separator(final ANode coords, final QNm name, final int def) {
+    final byte[] sep = coords.attribute(name);
+    return sep == null || sep.length == 0 ? def : sep[0];
+  }
+
+  /**
+   * Checks if the specified character may be part of a number.
+   * @param b character
+   * @param dec decimal separator
+   * @return result of check
+   */
+  private static boolean numeric(final byte b, final int dec) {
+    return b >= '0' && b <= '9' || b == dec || b == '-' || b == '+' || b == 'e' ||
+        b == 'E';
+  }
+
+  /**
+   * Parses a number in place. Numbers with up to 15 significant digits and small
+   * exponents are exactly represented by a double and are computed without allocating
+   * memory. Leading zeros are not significant; numbers whose significant digits
+   * exceed the precision of a long are parsed from their string representation.
+   * @param text text
+   * @param s start offset
+   * @param e end offset
+   * @param dec decimal separator
+   * @return number
+   * @throws QueryException query exception
+   */
+  private static double parseDouble(final byte[] text, final int s, final int e,
+      final int dec) throws QueryException {
+
+    int i = s;
+    final boolean neg = i < e && text[i] == '-';
+    if(i < e && (neg || text[i] == '+')) i++;
+    long m = 0;
+    int digits = 0, sig = 0, exp = 0;
+    boolean dropped = false;
+    for(; i < e && text[i] >= '0' && text[i] <= '9'; i++, digits++) {
+      final int d = text[i] - '0';
+      if(sig < 18) {
+        m = m * 10 + d;
+        if(m != 0) sig++;
+      } else {
+        exp++;
+        dropped |= d != 0;
+      }
+    }
+    if(i < e && text[i] == dec) {
+      for(i++; i < e && text[i] >= '0' && text[i] <= '9'; i++, digits++) {
+        final int d = text[i] - '0';
+        if(sig < 18) {
+          m = m * 10 + d;
+          if(m != 0) sig++;
+          exp--;
+        } else {
+          dropped |= d != 0;
+        }
+      }
+    }
+    if(digits == 0) throw GeoErrors.invalidCoordErr();
+    if(i < e && (text[i] == 'e' || text[i] == 'E')) {
+      i++;
+      final boolean nexp = i < e && text[i] == '-';
+      if(i < e && (nexp || text[i] == '+')) i++;
+      if(i == e) throw GeoErrors.invalidCoordErr();
+      int x = 0;
+      for(; i < e && text[i] >= '0' && text[i] <= '9'; i++) {
+        if(x < 100000) x = x * 10 + text[i] - '0';
+      }
+      exp += nexp ? -x : x;
+    }
+    if(i != e) throw GeoErrors.invalidCoordErr();
+
+    if(!dropped && m < 1L << 53 && exp >= -22 && exp <= 22) {
+      final double d = exp < 0 ? m / POWERS[-exp] : m * POWERS[exp];
+      return neg ? -d : d;
+    }
+    // rare case: parse string representation
+    final byte[] num = Arrays.copyOfRange(text, s, e);
+    for(int n = 0; n < num.length; n++) if(num[n] == dec) num[n] = '.';
+    try {
+      return Double.parseDouble(string(num));
+    } catch(final NumberFormatException ex) {
+      throw GeoErrors.invalidCoordErr();
+    }
+  }
+
+
   /**
    * Creates coordinate sequence out of <gml:coord> element.
    * @param coord <gml:coord> element to be processed
@@ -408,13 +715,57 @@ public final class GmlReader {
       if(Double.isNaN(d)) throw GeoErrors.invalidCoordErr();
 
       final QNm name = ch.qname();
-      if(name.eq(Q_GML_X)) x = d;
-      else if(name.eq(Q_GML_Y)) y = d;
-      else if(name.eq(Q_GML_Z)) z = d;
+      if(is(name, Q_GML_X)) x = d;
+      else if(is(name, Q_GML_Y)) y = d;
+      else if(is(name, Q_GML_Z)) z = d;
       else throw GeoErrors.invalidCoordErr();
     }
     if(Double.isNaN(x)) throw GeoErrors.invalidCoordErr();
     return new Coordinate(x, y, z);
   }
-}
 
+  /**
+   * Growable array of packed coordinate ordinates.
+   */
+  private static final class Ordinates {
+    /** Ordinates. */
+    double[] values;
+    /** Number of ordinates. */
+    int size;
+
+    /**
+     * Constructor.
+     * @param capacity initial capacity
+     */
+    Ordinates(final int capacity) {
+      values = new double[Math.max(4, capacity)];
+    }
+
+    /**
+     * Adds an ordinate.
+     * @param d ordinate
+     */
+    void add(final double d) {
+      if(size == values.length) values = Arrays.copyOf(values, size << 1);
+      values[size++] = d;
+    }
+
+    /**
+     * Returns a coordinate sequence of the ordinates. The y coordinate of
+     * one-dimensional coordinates is {@code 0}.
+     * @param dim coordinate dimension
+     * @return coordinate sequence
+     * @throws QueryException query exception
+     */
+    CoordinateSequence sequence(final int dim) throws QueryException {
+      if(size == 0 || size % dim != 0) throw GeoErrors.invalidCoordErr();
+      if(dim == 1) {
+        final double[] xy = new double[size << 1];
+        for(int x = 0; x < size; x++) xy[x << 1] = values[x];
+        return new PackedCoordinateSequence.Double(xy, 2);
+      }
+      return new PackedCoordinateSequence.Double(
+          size == values.length ? values : Arrays.copyOf(values, size), dim);
+    }
+  }
+}
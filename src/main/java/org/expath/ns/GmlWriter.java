@@ -0,0 +1,152 @@
+package org.expath.ns;
+
+import static org.basex.util.Token.*;
+
+import org.basex.query.*;
+import org.basex.query.value.item.*;
+import org.basex.query.value.node.*;
+import org.basex.util.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class contains functions to write geometries as gml elements.
+ * Elements are created as main-memory nodes, without serializing and re-parsing
+ * any GML text. The elements have the same structure as the ones created by the
+ * JTS GML writer.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GmlWriter {
+  /** GML URI. */
+  private static final byte[] URI = token("http://www.opengis.net/gml");
+  /** Prefix: "gml". */
+  private static final String GML = "gml";
+
+  /** QName gml:Point. */
+  private static final QNm Q_GML_POINT = QNm.get(GML, "Point", URI);
+  /** QName gml:LineString. */
+  private static final QNm Q_GML_LINESTRING = QNm.get(GML, "LineString", URI);
+  /** QName gml:LinearRing. */
+  private static final QNm Q_GML_LINEARRING = QNm.get(GML, "LinearRing", URI);
+  /** QName gml:Polygon. */
+  private static final QNm Q_GML_POLYGON = QNm.get(GML, "Polygon", URI);
+  /** QName gml:MultiPoint. */
+  private static final QNm Q_GML_MULTIPOINT = QNm.get(GML, "MultiPoint", URI);
+  /** QName gml:pointMember. */
+  private static final QNm Q_GML_POINTMEMBER = QNm.get(GML, "pointMember", URI);
+  /** QName gml:MultiLineString. */
+  private static final QNm Q_GML_MULTILINESTRING = QNm.get(GML, "MultiLineString", URI);
+  /** QName gml:lineStringMember. */
+  private static final QNm Q_GML_LINESTRINGMEMBER = QNm.get(GML, "lineStringMember", URI);
+  /** QName gml:MultiPolygon. */
+  private static final QNm Q_GML_MULTIPOLYGON = QNm.get(GML, "MultiPolygon", URI);
+  /** QName gml:polygonMember. */
+  private static final QNm Q_GML_POLYGONMEMBER = QNm.get(GML, "polygonMember", URI);
+  /** QName gml:MultiGeometry. */
+  private static final QNm Q_GML_MULTIGEOMETRY = QNm.get(GML, "MultiGeometry", URI);
+  /** QName gml:geometryMember. */
+  private static final QNm Q_GML_GEOMETRYMEMBER = QNm.get(GML, "geometryMember", URI);
+  /** QName gml:outerBoundaryIs. */
+  private static final QNm Q_GML_OUTERBOUNDARY = QNm.get(GML, "outerBoundaryIs", URI);
+  /** QName gml:innerBoundaryIs. */
+  private static final QNm Q_GML_INNERBOUNDARY = QNm.get(GML, "innerBoundaryIs", URI);
+  /** QName gml:coordinates. */
+  private static final QNm Q_GML_COORDINATES = QNm.get(GML, "coordinates", URI);
+
+  // PUBLIC METHODS =====================================================================
+
+  /**
+   * Creates a gml element for the specified geometry, which declares the
+   * GML namespace.
+   * @param geo geometry
+   * @return element
+   * @throws QueryException query exception
+   */
+  public FElem createElement(final Geometry geo) throws QueryException {
+    return element(geo).declareNS();
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Creates a gml element for the specified geometry.
+   * @param geo geometry
+   * @return element
+   * @throws QueryException query exception
+   */
+  private FElem element(final Geometry geo) throws QueryException {
+    if(geo instanceof Point) {
+      return new FElem(Q_GML_POINT).add(
+          coordinates(((Point) geo).getCoordinateSequence()));
+    }
+    if(geo instanceof LinearRing) {
+      return new FElem(Q_GML_LINEARRING).add(
+          coordinates(((LineString) geo).getCoordinateSequence()));
+    }
+    if(geo instanceof LineString) {
+      return new FElem(Q_GML_LINESTRING).add(
+          coordinates(((LineString) geo).getCoordinateSequence()));
+    }
+    if(geo instanceof Polygon) {
+      final Polygon poly = (Polygon) geo;
+      final FElem elem = new FElem(Q_GML_POLYGON);
+      elem.add(new FElem(Q_GML_OUTERBOUNDARY).add(element(poly.getExteriorRing())));
+      final int n = poly.getNumInteriorRing();
+      for(int i = 0; i < n; i++) {
+        elem.add(new FElem(Q_GML_INNERBOUNDARY).add(element(poly.getInteriorRingN(i))));
+      }
+      return elem;
+    }
+    if(geo instanceof MultiPoint) return collection(geo, Q_GML_MULTIPOINT,
+        Q_GML_POINTMEMBER);
+    if(geo instanceof MultiLineString) return collection(geo, Q_GML_MULTILINESTRING,
+        Q_GML_LINESTRINGMEMBER);
+    if(geo instanceof MultiPolygon) return collection(geo, Q_GML_MULTIPOLYGON,
+        Q_GML_POLYGONMEMBER);
+    if(geo instanceof GeometryCollection) return collection(geo, Q_GML_MULTIGEOMETRY,
+        Q_GML_GEOMETRYMEMBER);
+    throw GeoErrors.gmlWriterErr("Unsupported geometry: " + geo.getGeometryType());
+  }
+
+  /**
+   * Creates a gml element for a geometry collection.
+   * @param geo geometry collection
+   * @param name name of the element
+   * @param member name of the member elements
+   * @return element
+   * @throws QueryException query exception
+   */
+  private FElem collection(final Geometry geo, final QNm name, final QNm member)
+      throws QueryException {
+    final FElem elem = new FElem(name);
+    final int n = geo.getNumGeometries();
+    for(int i = 0; i < n; i++) {
+      elem.add(new FElem(member).add(element(geo.getGeometryN(i))));
+    }
+    return elem;
+  }
+
+  /**
+   * Creates a <gml:coordinates> element. Coordinates are separated by commas, and
+   * tuples by spaces. The z coordinates are only written if the z coordinate of the
+   * first tuple is a number.
+   * @param seq coordinate sequence
+   * @return element
+   */
+  private static FElem coordinates(final CoordinateSequence seq) {
+    final FElem elem = new FElem(Q_GML_COORDINATES);
+    final int size = seq.size();
+    if(size == 0) return elem;
+
+    final boolean z = seq.getDimension() > 2 && !Double.isNaN(seq.getOrdinate(0, 2));
+    final TokenBuilder tb = new TokenBuilder();
+    for(int i = 0; i < size; i++) {
+      if(i > 0) tb.add(' ');
+      tb.add(Double.toString(seq.getX(i))).add(',').add(Double.toString(seq.getY(i)));
+      if(z) tb.add(',').add(Double.toString(seq.getOrdinate(i, 2)));
+    }
+    return elem.add(tb.finish());
+  }
+}
@@ -0,0 +1,1141 @@
+package org.expath.ns;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.query.*;
+import org.basex.util.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class contains a read-only, packed R-tree, which is stored in a compact
+ * binary format and queried in place via memory-mapped buffers.
+ * Opening a tree takes constant time, and no tree structures are created on the heap.
+ * The sections of the file are addressed with long offsets, and files that exceed the
+ * size of a single mapped buffer are mapped in segments (see {@link GeoBuffer}).
+ * Small trees are built in main memory with the same layout.
+ *
+ * The file has the following layout (all values are stored in big-endian order):
+ * <ul>
+ *   <li> header: magic number, version, number of entries ({@code size}),
+ *        number of nodes ({@code nodes}), number of leaf nodes ({@code leaves}),
+ *        number of database nodes and last database id at indexing time,
+ *        the stamp of the geometry store ({@code 0} if there is none), the
+ *        node capacity, packing strategy, number of dimensions and curve of the
+ *        point index the tree has been built with (see {@link GeoIndexOptions};
+ *        the curve is {@code 0} if there is no point index, or its ordinal plus
+ *        one), the timestamp of the last database update at indexing time
+ *        as long (see {@link GeoStamp}), the number of geometries that could not
+ *        be parsed, and an unused slot</li>
+ *   <li> node envelopes: {@code nodes} times (min x, min y, max x, max y)
+ *        as doubles</li>
+ *   <li> node children: {@code nodes} times (offset of first child, number of
+ *        children) as integers</li>
+ *   <li> entry envelopes: {@code size} times (min x, min y, max x, max y)
+ *        as doubles</li>
+ *   <li> entry values: {@code size} pre values as integers</li>
+ *   <li> entry ids: {@code size} node ids as integers</li>
+ *   <li> entry records: {@code size} offsets into the geometry store as longs
+ *        ({@code -1} if a geometry is not stored)</li>
+ *   <li> entry hashes: {@code size} hashes of the contents of the indexed
+ *        geometries as longs, which reveal updated geometries</li>
+ *   <li> id order: {@code size} entry offsets as integers, sorted by the ids of
+ *        the entries</li>
+ *   <li> optional point index (see {@link GeoPointIndex})</li>
+ * </ul>
+ * Nodes are stored bottom-up, level by level, and the root is the last node.
+ * The children of the first {@code leaves} nodes are entries, and the children
+ * of all other nodes are nodes. The children of a node, and the entries of the
+ * leaves of each subtree, are stored contiguously.
+ * Entries are addressed by their offsets. The pre values of the entries refer to
+ * the database state at indexing time, whereas the ids remain stable if the database
+ * is updated (see {@link GeoIndexDelta}).
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class PackedRTree {
+  /** Magic number ("GEOI"). */
+  private static final int MAGIC = 0x47454F49;
+  /** Version of the file format. */
+  private static final int VERSION = 8;
+  /** Size of the header. */
+  private static final int HEADER = 64;
+  /** Size of an envelope. */
+  private static final int ENV = 32;
+
+  /** Mapped buffer. */
+  private final GeoBuffer buffer;
+  /** Number of entries. */
+  private final int size;
+  /** Number of nodes. */
+  private final int nodes;
+  /** Number of leaf nodes. */
+  private final int leaves;
+  /** State of the database at indexing time. */
+  private final GeoStamp dbStamp;
+  /** Offset of the node children. */
+  private final long children;
+  /** Offset of the entry envelopes. */
+  private final long entries;
+  /** Offset of the entry values. */
+  private final long values;
+  /** Offset of the entry ids. */
+  private final long ids;
+  /** Offset of the entry records. */
+  private final long records;
+  /** Offset of the entry hashes. */
+  private final long hashes;
+  /** Offset of the entry offsets in the order of their ids. */
+  private final long byId;
+  /** Stamp of the geometry store. */
+  private final int stamp;
+  /** Number of geometries that could not be parsed. */
+  private final int invalid;
+  /** Options the tree has been built with. */
+  private final GeoIndexOptions options;
+  /** Point index ({@code null} if no point index has been built). */
+  private final GeoPointIndex points;
+  /** Query counters. */
+  final GeoIndexStats stats = new GeoIndexStats();
+
+  /**
+   * Constructor.
+   * @param bb mapped buffer
+   * @throws IOException I/O exception
+   */
+  private PackedRTree(final GeoBuffer bb) throws IOException {
+    buffer = bb;
+    if(bb.size() < HEADER || bb.getInt(0) != MAGIC || bb.getInt(4) != VERSION)
+      throw new IOException("Spatial index has an unknown format; please rebuild it.");
+    size = bb.getInt(8);
+    nodes = bb.getInt(12);
+    leaves = bb.getInt(16);
+    dbStamp = new GeoStamp(bb.getInt(20), bb.getInt(24), bb.getLong(48));
+    stamp = bb.getInt(28);
+    invalid = bb.getInt(56);
+    final int packing = bb.getInt(36), curve = bb.getInt(44);
+    final GeoIndexOptions.Packing[] pk = GeoIndexOptions.Packing.values();
+    final GeoIndexOptions.Curve[] cv = GeoIndexOptions.Curve.values();
+    if(size < 0 || nodes < 0 || leaves < 0 || packing < 0 || packing >= pk.length ||
+        curve < 0 || curve > cv.length) throw corrupt();
+    options = new GeoIndexOptions(bb.getInt(32), pk[packing], bb.getInt(40),
+        curve == 0 ? null : cv[curve - 1], GeoIndexOptions.DEFAULT.buffer);
+    children = HEADER + (long) nodes * ENV;
+    entries = children + nodes * 8L;
+    values = entries + (long) size * ENV;
+    ids = values + size * 4L;
+    records = ids + size * 4L;
+    hashes = records + size * 8L;
+    byId = hashes + size * 8L;
+    // truncated file
+    final long end = byId + size * 4L;
+    if(end + (curve == 0 ? 0 : GeoPointIndex.HEADER) > bb.size()) throw corrupt();
+    points = options.points == null ? null : new GeoPointIndex(bb, end, options.points);
+    if(points != null && !points.valid(bb.size())) throw corrupt();
+  }
+
+  /**
+   * Returns an exception for an index file whose header is inconsistent.
+   * @return exception
+   */
+  private static IOException corrupt() {
+    return new IOException("Spatial index is corrupt; please rebuild it.");
+  }
+
+  /**
+   * Opens the specified index file.
+   * @param file index file
+   * @return tree
+   * @throws IOException I/O exception
+   */
+  public static PackedRTree open(final IOFile file) throws IOException {
+    return open(file, GeoBuffer.SEGMENT);
+  }
+
+  /**
+   * Opens the specified index file, which is mapped in segments of the specified size.
+   * @param file index file
+   * @param segment number of bits of the segment size (between {@code 3} and
+   *   {@code 30})
+   * @return tree
+   * @throws IOException I/O exception
+   */
+  public static PackedRTree open(final IOFile file, final int segment)
+      throws IOException {
+    return new PackedRTree(GeoBuffer.map(file, segment));
+  }
+
+  /**
+   * Packs the specified entries and writes the tree to the given file.
+   * @param ents entries
+   * @param opts options
+   * @param file index file
+   * @param db state of the database
+   * @param stmp stamp of the geometry store
+   * @param inv number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  static void write(final GeoEntries ents, final GeoIndexOptions opts,
+      final IOFile file, final GeoStamp db, final int stmp, final int inv)
+      throws IOException {
+    write(ents, opts, new FileOutputStream(file.file()), db, stmp, inv);
+  }
+
+  /**
+   * Packs the specified entries into a tree in main memory. The tree has the same
+   * layout as an index file and is used for small sets of entries.
+   * @param ents entries
+   * @param opts options
+   * @return tree
+   */
+  static PackedRTree build(final GeoEntries ents, final GeoIndexOptions opts) {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try {
+      write(ents, opts, bos, new GeoStamp(0, 0, GeoStamp.UNKNOWN), 0, 0);
+      return new PackedRTree(GeoBuffer.wrap(bos.toByteArray()));
+    } catch(final IOException ex) {
+      // main-memory streams do not throw exceptions
+      throw Util.notexpected(ex);
+    }
+  }
+
+  /**
+   * Packs the specified entries and writes the tree to the given stream.
+   * @param ents entries
+   * @param opts options
+   * @param os output stream (will be closed)
+   * @param db state of the database
+   * @param stmp stamp of the geometry store
+   * @param inv number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  private static void write(final GeoEntries ents, final GeoIndexOptions opts,
+      final OutputStream os, final GeoStamp db, final int stmp, final int inv)
+      throws IOException {
+    final GeoIndexPacker packer = new GeoIndexPacker(opts);
+    final double[] envs = ents.envelopes();
+    packer.pack(envs, ents.size());
+
+    // order the nodes top-down, level by level, so that the children of each node
+    // and the entries of each subtree are stored contiguously
+    final int levels = packer.children.size();
+    final int[][] orders = new int[levels][];
+    if(levels > 0) orders[levels - 1] = new int[] { 0 };
+    for(int l = levels - 1; l > 0; l--) {
+      orders[l - 1] = children(packer.children.get(l), orders[l],
+          packer.children.get(l - 1).length);
+    }
+    final int[] items = levels == 0 ? new int[0] :
+      children(packer.children.get(0), orders[0], ents.size());
+
+    int nodes = 0;
+    for(final int[] order : orders) nodes += order.length;
+    final int leaves = levels == 0 ? 0 : orders[0].length;
+    // entry offsets, sorted by ids
+    final long[] sorted = new long[items.length];
+    for(int e = 0; e < items.length; e++) sorted[e] = (long) ents.id(items[e]) << 32 | e;
+    Arrays.sort(sorted);
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    try {
+      header(out, items.length, nodes, leaves, db, stmp, opts, inv);
+      // node envelopes, bottom-up
+      for(int l = 0; l < levels; l++) {
+        for(final int n : orders[l]) write(out, packer.envelopes.get(l), n);
+      }
+      // node children: children of a level are stored in the preceding level
+      int start = 0;
+      for(int l = 0; l < levels; l++) {
+        if(l > 1) start += orders[l - 2].length;
+        int first = start;
+        for(final int n : orders[l]) {
+          final int count = packer.children.get(l)[n].length;
+          out.writeInt(first);
+          out.writeInt(count);
+          first += count;
+        }
+      }
+      for(final int e : items) write(out, envs, e);
+      for(final int e : items) out.writeInt(ents.pre(e));
+      for(final int e : items) out.writeInt(ents.id(e));
+      for(final int e : items) out.writeLong(ents.record(e));
+      for(final int e : items) out.writeLong(ents.hash(e));
+      for(final long s : sorted) out.writeInt((int) s);
+      if(opts.points != null) GeoPointIndex.write(out, envs, items, opts.points);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the header of an index file.
+   * @param out output
+   * @param sz number of entries
+   * @param nds number of nodes
+   * @param lvs number of leaf nodes
+   * @param db state of the database
+   * @param stmp stamp of the geometry store
+   * @param opts options
+   * @param inv number of geometries that could not be parsed
+   * @throws IOException I/O exception
+   */
+  static void header(final DataOutput out, final int sz, final int nds, final int lvs,
+      final GeoStamp db, final int stmp, final GeoIndexOptions opts, final int inv)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(sz);
+    out.writeInt(nds);
+    out.writeInt(lvs);
+    out.writeInt(db.size);
+    out.writeInt(db.lastId);
+    out.writeInt(stmp);
+    out.writeInt(opts.capacity);
+    out.writeInt(opts.packing.ordinal());
+    out.writeInt(opts.dims);
+    out.writeInt(opts.points == null ? 0 : opts.points.ordinal() + 1);
+    out.writeLong(db.time);
+    out.writeInt(inv);
+    out.writeInt(0);
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of nodes.
+   * @return number of nodes
+   */
+  public int nodes() {
+    return nodes;
+  }
+
+  /**
+   * Returns the number of leaf nodes.
+   * @return number of leaf nodes
+   */
+  public int leaves() {
+    return leaves;
+  }
+
+  /**
+   * Returns the number of levels of the tree.
+   * @return depth
+   */
+  public int depth() {
+    if(nodes == 0) return 0;
+    int d = 1;
+    for(int n = nodes - 1; n >= leaves; n = buffer.getInt(children + n * 8L)) d++;
+    return d;
+  }
+
+  /**
+   * Returns the largest number of children of a node. The fanout is at most the
+   * node capacity the tree has been built with (see {@link #options()}).
+   * @return fanout
+   */
+  public int fanout() {
+    int c = 0;
+    for(int n = 0; n < nodes; n++) c = Math.max(c, buffer.getInt(children + n * 8L + 4));
+    return c;
+  }
+
+  /**
+   * Returns the total area of all node envelopes.
+   * @return area
+   */
+  public double area() {
+    double a = 0;
+    for(int n = 0; n < nodes; n++) a += area(HEADER + (long) n * ENV);
+    return a;
+  }
+
+  /**
+   * Returns the total area in which the envelopes of sibling nodes overlap.
+   * The smaller the overlap, the fewer nodes are visited by queries.
+   * @return area
+   */
+  public double overlap() {
+    double a = 0;
+    for(int n = leaves; n < nodes; n++) {
+      final int first = buffer.getInt(children + n * 8L);
+      final int end = first + buffer.getInt(children + n * 8L + 4);
+      for(int c1 = first; c1 < end; c1++) {
+        final long o1 = HEADER + (long) c1 * ENV;
+        for(int c2 = c1 + 1; c2 < end; c2++) {
+          final long o2 = HEADER + (long) c2 * ENV;
+          final double w = Math.min(buffer.getDouble(o1 + 16),
+              buffer.getDouble(o2 + 16)) - Math.max(buffer.getDouble(o1),
+              buffer.getDouble(o2));
+          final double h = Math.min(buffer.getDouble(o1 + 24),
+              buffer.getDouble(o2 + 24)) - Math.max(buffer.getDouble(o1 + 8),
+              buffer.getDouble(o2 + 8));
+          if(w > 0 && h > 0) a += w * h;
+        }
+      }
+    }
+    return a;
+  }
+
+  /**
+   * Returns the size of the index file.
+   * @return number of bytes
+   */
+  public long bytes() {
+    return buffer.size();
+  }
+
+  /**
+   * Returns the number of segments in which the index file is mapped.
+   * @return number of segments
+   */
+  public int segments() {
+    return buffer.segments();
+  }
+
+  /**
+   * Returns the pre value of an entry at indexing time.
+   * @param e entry offset
+   * @return pre value
+   */
+  public int pre(final int e) {
+    return buffer.getInt(values + e * 4L);
+  }
+
+  /**
+   * Returns the id of an entry.
+   * @param e entry offset
+   * @return id
+   */
+  public int id(final int e) {
+    return buffer.getInt(ids + e * 4L);
+  }
+
+  /**
+   * Returns the hash of the contents of the geometry of an entry
+   * (see {@link GeoIndexBuilder#hash(Data, int)}).
+   * @param e entry offset
+   * @return hash
+   */
+  public long hash(final int e) {
+    return buffer.getLong(hashes + e * 8L);
+  }
+
+  /**
+   * Finds the entry with the specified id. The search starts at the given position
+   * in the order of the ids, so that entries that are requested in ascending order
+   * of their ids are found in constant time.
+   * @param id id
+   * @param hint position at which the search starts
+   * @return position of the entry in the order of the ids, or {@code -1} if no
+   *   entry has this id
+   */
+  int position(final int id, final int hint) {
+    if(hint >= 0 && hint < size && id(sorted(hint)) == id) return hint;
+    int lo = 0, hi = size;
+    while(lo < hi) {
+      final int m = lo + hi >>> 1;
+      final int i = id(sorted(m));
+      if(i < id) lo = m + 1;
+      else if(i > id) hi = m;
+      else return m;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the entry at the specified position in the order of the ids.
+   * @param pos position
+   * @return entry offset
+   */
+  int sorted(final int pos) {
+    return buffer.getInt(byId + pos * 4L);
+  }
+
+  /**
+   * Returns the offset of the geometry of an entry in the geometry store.
+   * @param e entry offset
+   * @return record offset, or {@code -1} if the geometry is not stored
+   */
+  public long record(final int e) {
+    return buffer.getLong(records + e * 8L);
+  }
+
+  /**
+   * Returns the stamp of the geometry store.
+   * @return stamp, or {@code 0} if no geometries are stored
+   */
+  public int stamp() {
+    return stamp;
+  }
+
+  /**
+   * Returns the number of geometries that could not be parsed when the tree was built.
+   * @return number of geometries
+   */
+  public int invalid() {
+    return invalid;
+  }
+
+  /**
+   * Returns the options the tree has been built with.
+   * @return options
+   */
+  public GeoIndexOptions options() {
+    return options;
+  }
+
+  /**
+   * Returns the point index.
+   * @return point index, or {@code null} if no point index has been built
+   */
+  GeoPointIndex points() {
+    return points;
+  }
+
+  /**
+   * Returns the envelope of an entry.
+   * @param e entry offset
+   * @return envelope
+   */
+  public Envelope envelope(final int e) {
+    return bounds(-e - 1);
+  }
+
+  /**
+   * Returns the state of the database when it was indexed.
+   * @return state
+   */
+  GeoStamp database() {
+    return dbStamp;
+  }
+
+  /**
+   * Checks if the tree is up-to-date with the specified database, i.e., if the
+   * database has not been updated after it has been indexed.
+   * @param data database
+   * @return result of check
+   */
+  public boolean upToDate(final Data data) {
+    return dbStamp.matches(data);
+  }
+
+  /**
+   * Visits the offsets of all entries whose envelopes intersect the specified envelope.
+   * @param env search envelope
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public boolean query(final Envelope env, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    final Cursor cursor = new Cursor(env);
+    try {
+      for(int e; (e = cursor.next()) != -1;) {
+        if(!visitor.visit(e)) return false;
+      }
+      return true;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Returns a cursor over the offsets of all entries whose envelopes intersect the
+   * specified envelope. The tree is traversed as the cursor is advanced.
+   * @param env search envelope
+   * @return cursor
+   */
+  public Cursor cursor(final Envelope env) {
+    return new Cursor(env);
+  }
+
+  /**
+   * Counts the entries whose envelopes intersect the specified envelope.
+   * As the entries of each subtree are stored contiguously, nodes whose envelopes
+   * are covered by the search envelope are counted without visiting their entries.
+   * @param env search envelope
+   * @return number of entries
+   */
+  public int count(final Envelope env) {
+    if(nodes == 0 || env.isNull()) return 0;
+    final double minx = env.getMinX(), miny = env.getMinY();
+    final double maxx = env.getMaxX(), maxy = env.getMaxY();
+
+    int c = 0;
+    int[] stack = new int[16];
+    int sp = 0;
+    stack[sp++] = nodes - 1;
+    while(sp > 0) {
+      final int node = stack[--sp];
+      final long off = HEADER + (long) node * ENV;
+      if(!intersects(off, minx, miny, maxx, maxy)) continue;
+      if(covered(off, minx, miny, maxx, maxy)) {
+        c += last(node) - first(node);
+        continue;
+      }
+      final int first = buffer.getInt(children + node * 8L);
+      final int count = buffer.getInt(children + node * 8L + 4);
+      if(node < leaves) {
+        for(int e = first; e < first + count; e++) {
+          if(intersects(entries + (long) e * ENV, minx, miny, maxx, maxy)) c++;
+        }
+      } else {
+        if(sp + count > stack.length) stack = Arrays.copyOf(stack, sp + count << 1);
+        for(int ch = first; ch < first + count; ch++) stack[sp++] = ch;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Visits the offsets of all entries whose envelopes intersect the specified envelope,
+   * except for the entries of subtrees with at least two entries whose node envelopes
+   * are covered by one of the specified cells. As the entries of each subtree are
+   * stored contiguously, these subtrees are counted without visiting their entries,
+   * and the center of their node envelope is added to the sums of their cell,
+   * weighted by their number of entries.
+   * @param env search envelope
+   * @param cells envelopes of the cells
+   * @param counts numbers of counted entries of each cell
+   * @param sums weighted sums of the x and y coordinates of the centers of the counted
+   *   subtrees of each cell
+   * @param visitor visitor
+   * @return {@code false} if the query has been stopped by the visitor
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public boolean cells(final Envelope env, final Envelope[] cells, final int[] counts,
+      final double[] sums, final GeoIndexVisitor visitor)
+      throws QueryException, IOException {
+    if(nodes == 0 || env.isNull()) return true;
+    final double minx = env.getMinX(), miny = env.getMinY();
+    final double maxx = env.getMaxX(), maxy = env.getMaxY();
+
+    int visited = 0;
+    int[] stack = new int[16];
+    int sp = 0;
+    stack[sp++] = nodes - 1;
+    try {
+      while(sp > 0) {
+        final int node = stack[--sp];
+        visited++;
+        final long off = HEADER + (long) node * ENV;
+        if(!intersects(off, minx, miny, maxx, maxy)) continue;
+        final int n = last(node) - first(node);
+        int cell = -1;
+        for(int c = 0; n > 1 && c < cells.length && cell == -1; c++) {
+          final Envelope ce = cells[c];
+          final double cx = ce.getMinX(), cy = ce.getMinY();
+          if(covered(off, cx, cy, ce.getMaxX(), ce.getMaxY())) cell = c;
+        }
+        if(cell != -1) {
+          counts[cell] += n;
+          sums[cell << 1] += n * (buffer.getDouble(off) + buffer.getDouble(off + 16)) / 2;
+          sums[(cell << 1) + 1] += n * (buffer.getDouble(off + 8) +
+              buffer.getDouble(off + 24)) / 2;
+          continue;
+        }
+        final int first = buffer.getInt(children + node * 8L);
+        final int count = buffer.getInt(children + node * 8L + 4);
+        if(node < leaves) {
+          for(int e = first; e < first + count; e++) {
+            if(intersects(entries + (long) e * ENV, minx, miny, maxx, maxy) &&
+                !visitor.visit(e)) return false;
+          }
+        } else {
+          if(sp + count > stack.length) stack = Arrays.copyOf(stack, sp + count << 1);
+          for(int ch = first; ch < first + count; ch++) stack[sp++] = ch;
+        }
+      }
+      return true;
+    } finally {
+      stats.visited(visited);
+    }
+  }
+
+  /**
+   * Finds the entries that are nearest to the specified envelope, in ascending order
+   * of their distances. Envelope distances serve as lower bounds for the distances
+   * of nodes and entries, and exact distances are only computed for entries that
+   * may belong to the result. Entries with infinite distances are skipped.
+   * @param env envelope of the query geometry
+   * @param crs reference system, which defines the envelope distances
+   * @param dist distance function
+   * @param es array for the offsets of the nearest entries
+   * @param ds array for the distances of the nearest entries
+   * @return number of found entries (at most the length of the arrays)
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public int nearest(final Envelope env, final GeoCrs crs, final Distance dist,
+      final int[] es, final double[] ds) throws QueryException, IOException {
+    if(nodes == 0 || es.length == 0) return 0;
+    int c = 0;
+    final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    queue.add(new Candidate(0, nodes - 1, 0, false));
+    while(!queue.isEmpty()) {
+      final Candidate cand = queue.poll();
+      if(cand.exact) {
+        if(cand.dist == Double.POSITIVE_INFINITY) break;
+        es[c] = value(cand.ref1);
+        ds[c] = cand.dist;
+        if(++c == es.length) break;
+      } else if(cand.ref1 < 0) {
+        // compute exact distance of an entry
+        queue.add(new Candidate(dist.distance(value(cand.ref1)), cand.ref1, 0, true));
+      } else {
+        for(final int ch : children(cand.ref1)) {
+          queue.add(new Candidate(crs.bound(env, bounds(ch)), ch, 0, false));
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Finds the two entries that are nearest to each other. Envelope distances serve as
+   * lower bounds for the distances of pairs of nodes and entries, and exact distances
+   * are only computed for pairs of entries that may be the result. Pairs with infinite
+   * distances are skipped.
+   * @param dist distance function
+   * @return entry offsets, or {@code null} if no pair with a finite distance exists
+   * @throws QueryException query exception
+   * @throws IOException I/O exception
+   */
+  public int[] closest(final PairDistance dist) throws QueryException, IOException {
+    if(size < 2) return null;
+    final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    queue.add(new Candidate(0, nodes - 1, nodes - 1, false));
+    while(!queue.isEmpty()) {
+      final Candidate c = queue.poll();
+      final int r1 = c.ref1, r2 = c.ref2;
+      if(c.exact) {
+        return c.dist == Double.POSITIVE_INFINITY ? null :
+          new int[] { value(r1), value(r2) };
+      }
+      if(r1 < 0 && r2 < 0) {
+        // compute exact distance of two entries
+        queue.add(new Candidate(dist.distance(value(r1), value(r2)), r1, r2, true));
+      } else if(r1 == r2) {
+        // expand a node paired with itself; each pair of children is added once
+        final int[] ch = children(r1);
+        for(int i = 0; i < ch.length; i++) {
+          for(int j = ch[i] < 0 ? i + 1 : i; j < ch.length; j++) {
+            queue.add(new Candidate(bounds(ch[i]).distance(bounds(ch[j])),
+                ch[i], ch[j], false));
+          }
+        }
+      } else {
+        // expand the larger node
+        final Envelope e1 = bounds(r1), e2 = bounds(r2);
+        final boolean first = r2 < 0 || r1 >= 0 && e1.getArea() >= e2.getArea();
+        final Envelope env = first ? e2 : e1;
+        for(final int ch : children(first ? r1 : r2)) {
+          queue.add(new Candidate(bounds(ch).distance(env),
+              first ? ch : r1, first ? r2 : ch, false));
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a cursor over all pairs of entries of this and the specified tree whose
+   * envelopes are within the given distance. If the distance is {@code 0}, all pairs
+   * of entries with intersecting envelopes are returned. Both trees are traversed
+   * synchronously: pairs of nodes are discarded if their envelopes are too distant,
+   * and the larger node of a pair is expanded first.
+   * @param tree other tree
+   * @param dist maximum distance between envelopes
+   * @return cursor
+   */
+  public JoinCursor join(final PackedRTree tree, final double dist) {
+    return new JoinCursor(tree, dist);
+  }
+
+  // PRIVATE METHODS ====================================================================
+
+  /**
+   * Checks if the envelope at the specified offset intersects the given bounds.
+   * @param off offset of the envelope
+   * @param minx minimum x
+   * @param miny minimum y
+   * @param maxx maximum x
+   * @param maxy maximum y
+   * @return result of check
+   */
+  private boolean intersects(final long off, final double minx, final double miny,
+      final double maxx, final double maxy) {
+    return buffer.getDouble(off) <= maxx && buffer.getDouble(off + 8) <= maxy &&
+        buffer.getDouble(off + 16) >= minx && buffer.getDouble(off + 24) >= miny;
+  }
+
+  /**
+   * Checks if the envelope at the specified offset is covered by the given bounds.
+   * @param off offset of the envelope
+   * @param minx minimum x
+   * @param miny minimum y
+   * @param maxx maximum x
+   * @param maxy maximum y
+   * @return result of check
+   */
+  private boolean covered(final long off, final double minx, final double miny,
+      final double maxx, final double maxy) {
+    return buffer.getDouble(off) >= minx && buffer.getDouble(off + 8) >= miny &&
+        buffer.getDouble(off + 16) <= maxx && buffer.getDouble(off + 24) <= maxy;
+  }
+
+  /**
+   * Returns the offset of the first entry in the subtree of the specified node.
+   * @param node node
+   * @return entry offset
+   */
+  private int first(final int node) {
+    int n = node;
+    while(n >= leaves) n = buffer.getInt(children + n * 8L);
+    return buffer.getInt(children + n * 8L);
+  }
+
+  /**
+   * Returns the offset after the last entry in the subtree of the specified node.
+   * @param node node
+   * @return entry offset
+   */
+  private int last(final int node) {
+    int n = node;
+    while(n >= leaves) {
+      n = buffer.getInt(children + n * 8L) + buffer.getInt(children + n * 8L + 4) - 1;
+    }
+    return buffer.getInt(children + n * 8L) + buffer.getInt(children + n * 8L + 4);
+  }
+
+  /**
+   * Returns the offset of the envelope of the referenced node or entry.
+   * @param ref reference
+   * @return offset
+   */
+  private long offset(final int ref) {
+    return ref < 0 ? entries + (long) (-ref - 1) * ENV : HEADER + (long) ref * ENV;
+  }
+
+  /**
+   * Returns the area of the envelope at the specified offset.
+   * @param off offset of the envelope
+   * @return area
+   */
+  private double area(final long off) {
+    return (buffer.getDouble(off + 16) - buffer.getDouble(off)) *
+        (buffer.getDouble(off + 24) - buffer.getDouble(off + 8));
+  }
+
+  /**
+   * Checks if the squared distance between two envelopes does not exceed the given
+   * value.
+   * @param off offset of the envelope in this tree
+   * @param tree other tree
+   * @param toff offset of the envelope in the other tree
+   * @param max maximum squared distance
+   * @return result of check
+   */
+  private boolean within(final long off, final PackedRTree tree, final long toff,
+      final double max) {
+    final GeoBuffer bb = tree.buffer;
+    final double dx = Math.max(0, Math.max(
+        buffer.getDouble(off) - bb.getDouble(toff + 16),
+        bb.getDouble(toff) - buffer.getDouble(off + 16)));
+    final double dy = Math.max(0, Math.max(
+        buffer.getDouble(off + 8) - bb.getDouble(toff + 24),
+        bb.getDouble(toff + 8) - buffer.getDouble(off + 24)));
+    return dx * dx + dy * dy <= max;
+  }
+
+  /**
+   * Returns the child references of the specified node.
+   * Nodes are referenced by their index, and entries by their negated index minus one.
+   * @param node node
+   * @return child references
+   */
+  private int[] children(final int node) {
+    final int first = buffer.getInt(children + node * 8L);
+    final int[] refs = new int[buffer.getInt(children + node * 8L + 4)];
+    final boolean leaf = node < leaves;
+    for(int c = 0; c < refs.length; c++) refs[c] = leaf ? -(first + c) - 1 : first + c;
+    return refs;
+  }
+
+  /**
+   * Returns the envelope of the referenced node or entry.
+   * @param ref reference
+   * @return envelope
+   */
+  private Envelope bounds(final int ref) {
+    final long off = offset(ref);
+    return new Envelope(buffer.getDouble(off), buffer.getDouble(off + 16),
+        buffer.getDouble(off + 8), buffer.getDouble(off + 24));
+  }
+
+  /**
+   * Returns the offset of the referenced entry.
+   * @param ref reference
+   * @return entry offset
+   */
+  private static int value(final int ref) {
+    return -ref - 1;
+  }
+
+  /**
+   * Writes an envelope.
+   * @param out output stream
+   * @param envs envelopes (min x, min y, max x, max y)
+   * @param e offset of the envelope
+   * @throws IOException I/O exception
+   */
+  private static void write(final DataOutputStream out, final double[] envs,
+      final int e) throws IOException {
+    for(int d = e << 2; d < (e << 2) + 4; d++) out.writeDouble(envs[d]);
+  }
+
+  /**
+   * Returns the children of the specified nodes, in the order of the nodes.
+   * @param children children of all nodes of a level
+   * @param order nodes
+   * @param size number of children of all nodes
+   * @return children
+   */
+  private static int[] children(final int[][] children, final int[] order,
+      final int size) {
+    final int[] result = new int[size];
+    int c = 0;
+    for(final int n : order) {
+      for(final int ch : children[n]) result[c++] = ch;
+    }
+    return result;
+  }
+
+  /**
+   * Cursor over the entries of a window query. The tree is traversed depth-first
+   * with a stack of node offsets, and the entries of the current leaf are returned
+   * one by one, so that no results are buffered.
+   */
+  public final class Cursor implements GeoIndexCursor {
+    /** Search envelope. */
+    private final double minx, miny, maxx, maxy;
+    /** Stack with the nodes to be visited. */
+    private int[] stack = new int[16];
+    /** Stack pointer. */
+    private int sp;
+    /** Next entry of the current leaf. */
+    private int entry;
+    /** End of the entries of the current leaf. */
+    private int end;
+    /** Number of visited nodes that have not been registered yet. */
+    private int visited;
+
+    /**
+     * Constructor.
+     * @param env search envelope
+     */
+    Cursor(final Envelope env) {
+      minx = env.getMinX();
+      miny = env.getMinY();
+      maxx = env.getMaxX();
+      maxy = env.getMaxY();
+      if(nodes != 0 && !env.isNull()) stack[sp++] = nodes - 1;
+    }
+
+    /**
+     * Returns the offset of the next entry whose envelope intersects the search
+     * envelope. The visited nodes are registered as soon as the cursor is exhausted.
+     * @return entry offset, or {@code -1} if there are no more entries
+     */
+    @Override
+    public int next() {
+      while(true) {
+        while(entry < end) {
+          final int e = entry++;
+          if(intersects(entries + (long) e * ENV, minx, miny, maxx, maxy)) return e;
+        }
+        if(sp == 0) {
+          close();
+          return -1;
+        }
+        final int node = stack[--sp];
+        visited++;
+        if(!intersects(HEADER + (long) node * ENV, minx, miny, maxx, maxy)) continue;
+        final int first = buffer.getInt(children + node * 8L);
+        final int count = buffer.getInt(children + node * 8L + 4);
+        if(node < leaves) {
+          entry = first;
+          end = first + count;
+        } else {
+          if(sp + count > stack.length) stack = Arrays.copyOf(stack, sp + count << 1);
+          for(int c = first + count - 1; c >= first; c--) stack[sp++] = c;
+        }
+      }
+    }
+
+    /**
+     * Registers the nodes that have been visited so far. This method must be called
+     * if the cursor is not exhausted.
+     */
+    public void close() {
+      if(visited == 0) return;
+      stats.visited(visited);
+      visited = 0;
+    }
+  }
+
+  /**
+   * Cursor over the pairs of entries of a join. The trees are traversed depth-first
+   * with a stack of pairs of node or entry references, and pairs of entries are
+   * returned one by one in the order of the traversal, so that no results are
+   * buffered.
+   */
+  public final class JoinCursor {
+    /** Other tree. */
+    private final PackedRTree tree;
+    /** Maximum squared distance between envelopes. */
+    private final double max;
+    /** Stack with the pairs of references to be visited. */
+    private int[] stack = new int[32];
+    /** Stack pointer. */
+    private int sp;
+    /** Entry of this tree of the current pair. */
+    private int entry1;
+    /** Entry of the other tree of the current pair. */
+    private int entry2;
+
+    /**
+     * Constructor.
+     * @param t other tree
+     * @param dist maximum distance between envelopes
+     */
+    JoinCursor(final PackedRTree t, final double dist) {
+      tree = t;
+      max = dist * dist;
+      if(nodes != 0 && t.nodes != 0) {
+        stack[sp++] = nodes - 1;
+        stack[sp++] = t.nodes - 1;
+      }
+    }
+
+    /**
+     * Advances the cursor to the next pair of entries whose envelopes are within the
+     * maximum distance.
+     * @return {@code false} if there are no more pairs
+     */
+    public boolean next() {
+      while(sp > 0) {
+        final int r2 = stack[--sp], r1 = stack[--sp];
+        final long o1 = offset(r1), o2 = tree.offset(r2);
+        if(!within(o1, tree, o2, max)) continue;
+        if(r1 < 0 && r2 < 0) {
+          entry1 = value(r1);
+          entry2 = value(r2);
+          return true;
+        }
+        // expand the larger node
+        final boolean first = r2 < 0 || r1 >= 0 && area(o1) >= tree.area(o2);
+        final int node = first ? r1 : r2;
+        final PackedRTree t = first ? PackedRTree.this : tree;
+        final int fc = t.buffer.getInt(t.children + node * 8L);
+        final int count = t.buffer.getInt(t.children + node * 8L + 4);
+        final boolean leaf = node < t.leaves;
+        if(sp + count * 2 > stack.length) {
+          stack = Arrays.copyOf(stack, sp + count * 2 << 1);
+        }
+        for(int c = fc + count - 1; c >= fc; c--) {
+          final int ch = leaf ? -c - 1 : c;
+          stack[sp++] = first ? ch : r1;
+          stack[sp++] = first ? r2 : ch;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns the entry of this tree of the current pair.
+     * @return entry offset
+     */
+    public int first() {
+      return entry1;
+    }
+
+    /**
+     * Returns the entry of the other tree of the current pair.
+     * @return entry offset
+     */
+    public int second() {
+      return entry2;
+    }
+  }
+
+  /** Exact distance function for entries. */
+  public interface Distance {
+    /**
+     * Computes the distance of an entry.
+     * @param e entry offset
+     * @return distance
+     * @throws QueryException query exception
+     * @throws IOException I/O exception
+     */
+    double distance(int e) throws QueryException, IOException;
+  }
+
+  /** Exact distance function for pairs of entries. */
+  public interface PairDistance {
+    /**
+     * Computes the distance between two entries.
+     * @param e1 first entry offset
+     * @param e2 second entry offset
+     * @return distance
+     * @throws QueryException query exception
+     * @throws IOException I/O exception
+     */
+    double distance(int e1, int e2) throws QueryException, IOException;
+  }
+
+  /** Candidate of a nearest neighbour search. */
+  private static final class Candidate implements Comparable<Candidate> {
+    /** Distance. */
+    final double dist;
+    /** First reference. */
+    final int ref1;
+    /** Second reference. */
+    final int ref2;
+    /** Indicates if the distance is exact. */
+    final boolean exact;
+
+    /**
+     * Constructor.
+     * @param d distance
+     * @param r1 first reference
+     * @param r2 second reference
+     * @param e exact flag
+     */
+    Candidate(final double d, final int r1, final int r2, final boolean e) {
+      dist = d;
+      ref1 = r1;
+      ref2 = r2;
+      exact = e;
+    }
+
+    @Override
+    public int compareTo(final Candidate c) {
+      // exact candidates come first if distances are equal
+      final int d = Double.compare(dist, c.dist);
+      return d != 0 ? d : exact == c.exact ? 0 : exact ? -1 : 1;
+    }
+  }
+}
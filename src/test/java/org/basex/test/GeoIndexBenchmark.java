@@ -0,0 +1,110 @@
+package org.basex.test;
+
+import java.util.*;
+
+import org.basex.core.*;
+import org.basex.core.cmd.*;
+
+/**
+ * This class compares the node capacities and packing strategies of the spatial
+ * index. A database with random points and boxes is created, and for each option
+ * set, the index is built, random window queries are timed, and the index
+ * statistics are printed.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexBenchmark {
+  /** Test database. */
+  private static final String DB = "geobench";
+  /** Module import. */
+  private static final String IMPORT =
+      "import module namespace idx='http://expath.org/ns/geo-index'; ";
+  /** Option sets. */
+  private static final String[] OPTIONS = {
+    "capacity=10,packing=str", "capacity=32,packing=str", "capacity=64,packing=str",
+    "capacity=10,packing=hilbert", "capacity=32,packing=hilbert",
+    "capacity=10,packing=split", "capacity=32,packing=split"
+  };
+
+  /** Private constructor. */
+  private GeoIndexBenchmark() { }
+
+  /**
+   * Main method.
+   * @param args command-line arguments (optional: number of geometries,
+   *   number of queries)
+   * @throws Exception exception
+   */
+  public static void main(final String[] args) throws Exception {
+    final int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    final Random rnd = new Random(0);
+    final Context ctx = new Context();
+    try {
+      // points and boxes in a 1000 x 1000 square
+      final StringBuilder sb = new StringBuilder(
+          "<features xmlns:gml='http://www.opengis.net/gml'>");
+      for(int i = 0; i < size; i++) {
+        final double x = rnd.nextDouble() * 1000, y = rnd.nextDouble() * 1000;
+        sb.append("<f>");
+        if(i % 2 == 0) {
+          sb.append("<gml:Point><gml:coordinates>").append(x).append(',').append(y);
+          sb.append("</gml:coordinates></gml:Point>");
+        } else {
+          final double w = rnd.nextDouble() * 5, h = rnd.nextDouble() * 5;
+          sb.append("<gml:Polygon><gml:outerBoundaryIs><gml:LinearRing>");
+          sb.append("<gml:coordinates>").append(box(x, y, w, h));
+          sb.append("</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs>");
+          sb.append("</gml:Polygon>");
+        }
+        sb.append("</f>");
+      }
+      new CreateDB(DB, sb.append("</features>").toString()).execute(ctx);
+
+      // the same windows are used for all option sets
+      final String[] windows = new String[queries];
+      for(int q = 0; q < queries; q++) {
+        windows[q] = box(rnd.nextDouble() * 980, rnd.nextDouble() * 980, 20, 20);
+      }
+      for(final String options : OPTIONS) {
+        long time = System.nanoTime();
+        new XQuery(IMPORT + "idx:create-index('" + DB + "', '" + options + "')").
+          execute(ctx);
+        final long build = (System.nanoTime() - time) / 1000000;
+        long results = 0;
+        time = System.nanoTime();
+        for(final String window : windows) {
+          results += Long.parseLong(new XQuery(IMPORT + "count(idx:query('" + DB +
+              "', <gml:Polygon xmlns:gml='http://www.opengis.net/gml'>" +
+              "<gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" + window +
+              "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs>" +
+              "</gml:Polygon>))").execute(ctx));
+        }
+        final long query = (System.nanoTime() - time) / 1000000;
+        System.out.println(options + ": build " + build + " ms, " + queries +
+            " queries " + query + " ms, " + results + " results");
+        System.out.println(new XQuery(IMPORT + "idx:index-info('" + DB + "')").
+            execute(ctx));
+      }
+      new DropDB(DB).execute(ctx);
+    } finally {
+      ctx.close();
+    }
+  }
+
+  /**
+   * Returns the coordinates of a box.
+   * @param x min x
+   * @param y min y
+   * @param w width
+   * @param h height
+   * @return coordinates
+   */
+  private static String box(final double x, final double y, final double w,
+      final double h) {
+    final double mx = x + w, my = y + h;
+    return x + "," + y + ' ' + mx + ',' + y + ' ' + mx + ',' + my + ' ' + x + ',' +
+        my + ' ' + x + ',' + y;
+  }
+}
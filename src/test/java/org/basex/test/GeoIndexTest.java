@@ -0,0 +1,598 @@
+package org.basex.test;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.basex.core.*;
+import org.basex.core.cmd.*;
+import org.basex.data.*;
+import org.basex.io.*;
+import org.basex.query.*;
+import org.basex.query.iter.*;
+import org.basex.query.value.item.*;
+import org.expath.ns.*;
+import org.junit.*;
+
+import com.vividsolutions.jts.geom.*;
+
+/**
+ * This class tests the functions of the spatial index module.
+ *
+ * @author BaseX Team 2005-13, BSD License
+ * @author Masoumeh Seydi
+ */
+public final class GeoIndexTest extends AdvancedQueryTest {
+  /** Test database. */
+  private static final String DB = "geoindex";
+  /** Test document. */
+  private static final String DOC = "<features xmlns:gml='http://www.opengis.net/gml'>" +
+      "<a><gml:Point><gml:coordinates>1,1</gml:coordinates></gml:Point></a>" +
+      "<b><gml:Point><gml:coordinates>5,5</gml:coordinates></gml:Point></b>" +
+      "<c><gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+      "10,10 20,10 20,20 10,20 10,10</gml:coordinates></gml:LinearRing>" +
+      "</gml:outerBoundaryIs></gml:Polygon></c>" +
+      "<d><gml:MultiPoint><gml:pointMember><gml:Point><gml:coordinates>30,30" +
+      "</gml:coordinates></gml:Point></gml:pointMember></gml:MultiPoint></d>" +
+      "</features>";
+  /** Second test database. */
+  private static final String DB2 = "geoindex2";
+  /** Second test document. */
+  private static final String DOC2 = "<zones xmlns:gml='http://www.opengis.net/gml'>" +
+      "<y><gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+      "0,0 6,0 6,6 0,6 0,0</gml:coordinates></gml:LinearRing>" +
+      "</gml:outerBoundaryIs></gml:Polygon></y>" +
+      "<z><gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+      "12,12 40,12 40,40 12,40 12,12</gml:coordinates></gml:LinearRing>" +
+      "</gml:outerBoundaryIs></gml:Polygon></z>" +
+      "</zones>";
+  /** Third test database. */
+  private static final String DB3 = "geoindex3";
+
+  /**
+   * Creates the test database.
+   * @throws BaseXException database exception
+   */
+  @BeforeClass
+  public static void init() throws BaseXException {
+    new CreateDB(DB, DOC).execute(context);
+    new CreateDB(DB2, DOC2).execute(context);
+  }
+
+  /**
+   * Drops the test database.
+   * @throws BaseXException database exception
+   */
+  @AfterClass
+  public static void finish() throws BaseXException {
+    new DropDB(DB).execute(context);
+    new DropDB(DB2).execute(context);
+  }
+
+  /** Test method. */
+  @Test
+  public void createIndex() {
+    // nested geometries are not indexed
+    runQuery("idx:create-index('" + DB + "')", "4");
+    runQuery("count(idx:query('" + DB + "', <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>0,0 6,0 6,6 0,6 0,0</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>))", "2");
+    runQuery("count(head(idx:query('" + DB + "', <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>0,0 40,0 40,40 0,40 0,0</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>)))", "1");
+  }
+
+  /**
+   * Test method.
+   * @throws Exception exception
+   */
+  @Test
+  public void lazyQuery() throws Exception {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String visited = "idx:index-info('" + DB + "')/visited/string()";
+    new Open(DB).execute(context);
+    try {
+      final Iter iter = GeoIndexes.get(context.data()).iter(new Envelope(0, 40, 0, 40));
+      // the visited tree nodes are registered when the traversal is finished
+      assertNotNull(iter.next());
+      runQuery(visited, "0");
+      int n = 1;
+      while(iter.next() != null) n++;
+      assertEquals(4, n);
+      runQuery(visited, "1");
+    } finally {
+      new Close().execute(context);
+    }
+  }
+
+  /** Test method. */
+  @Test
+  public void limitedQuery() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    // the first results in document order are returned
+    query("import module namespace pro='http://expath.org/ns/pro-geo-index'; " +
+        "declare namespace gml='http://www.opengis.net/gml';" +
+        "string-join(pro:intersects('" + DB + "', <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>0,0 40,0 40,40 0,40 0,0</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>, 2)/name(..), ' ')",
+        "a b");
+  }
+
+  /**
+   * Test method.
+   * @throws BaseXException database exception
+   */
+  @Test
+  public void parallelRefinement() throws BaseXException {
+    // lattice of 40 x 40 squares, which are refined in parallel
+    final StringBuilder sb = new StringBuilder(
+        "<squares xmlns:gml='http://www.opengis.net/gml'>");
+    for(int x = 0; x < 40; x++) {
+      for(int y = 0; y < 40; y++) {
+        sb.append("<s><gml:Polygon><gml:outerBoundaryIs><gml:LinearRing>");
+        sb.append("<gml:coordinates>").append(x).append(',').append(y).append(' ');
+        sb.append(x + 1).append(',').append(y).append(' ').append(x + 1).append(',');
+        sb.append(y + 1).append(' ').append(x).append(',').append(y + 1).append(' ');
+        sb.append(x).append(',').append(y).append("</gml:coordinates>");
+        sb.append("</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon></s>");
+      }
+    }
+    new CreateDB(DB3, sb.append("</squares>").toString()).execute(context);
+    runQuery("idx:create-index('" + DB3 + "')", "1600");
+    // the results match those of the sequential refinement of limited queries
+    final String diamond = "<gml:Polygon><gml:outerBoundaryIs><gml:LinearRing>" +
+        "<gml:coordinates>20.5,0 40,20.5 20.5,40 0,20.5 20.5,0</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>";
+    final String prolog = "import module namespace " +
+        "pro='http://expath.org/ns/pro-geo-index'; " +
+        "import module namespace geo='http://expath.org/ns/geo'; " +
+        "declare namespace gml='http://www.opengis.net/gml';";
+    for(final String pred : new String[] { "intersects", "contains" }) {
+      final String all = "pro:" + pred + "('" + DB3 + "', " + diamond;
+      query(prolog + "deep-equal(" + all + "), " + all + ", 10000))", "true");
+      query(prolog + "count(" + all + ")) = count(db:open('" + DB3 + "')//gml:Polygon" +
+          "[geo:" + pred + "(" + diamond + ", .)])", "true");
+    }
+    new DropDB(DB3).execute(context);
+  }
+
+  /**
+   * Test method.
+   * @throws BaseXException database exception
+   */
+  @Test
+  public void createIndexCommand() throws BaseXException {
+    new Open(DB).execute(context);
+    new CreateGeoIndex().execute(context);
+    new Close().execute(context);
+    runQuery("idx:query('" + DB + "', <gml:Point><gml:coordinates>5,5" +
+        "</gml:coordinates></gml:Point>)/name(..)", "b");
+  }
+
+  /**
+   * Test method.
+   * @throws Exception exception
+   */
+  @Test
+  public void segments() throws Exception {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    new Open(DB).execute(context);
+    try {
+      final Data data = context.data();
+      final IOFile file = GeoIndexBuilder.file(data);
+      final IOFile sfile = GeoIndexBuilder.storeFile(data);
+      final PackedRTree tree = PackedRTree.open(file);
+      final GeoStore store = GeoStore.open(sfile, tree.stamp());
+      // segments of 16 bytes: the values of all sections span segment boundaries
+      final PackedRTree split = PackedRTree.open(file, 4);
+      final GeoStore sstore = GeoStore.open(sfile, tree.stamp(), 4);
+      assertEquals(1, tree.segments());
+      assertEquals((tree.bytes() + 15) / 16, split.segments());
+      assertEquals(tree.size(), split.size());
+      for(int e = 0; e < tree.size(); e++) {
+        assertEquals(tree.envelope(e), split.envelope(e));
+        assertEquals(tree.pre(e), split.pre(e));
+        assertEquals(tree.id(e), split.id(e));
+        assertEquals(tree.hash(e), split.hash(e));
+        assertEquals(tree.record(e), split.record(e));
+        assertTrue(store.geometry(tree.record(e)).equalsExact(
+            sstore.geometry(split.record(e))));
+      }
+      final Envelope env = new Envelope(0, 6, 0, 6);
+      assertEquals(tree.count(env), split.count(env));
+      final PackedRTree.Cursor c1 = tree.cursor(env), c2 = split.cursor(env);
+      for(int e; (e = c1.next()) != -1;) assertEquals(e, c2.next());
+      assertEquals(-1, c2.next());
+    } finally {
+      new Close().execute(context);
+    }
+  }
+
+  /**
+   * Test method.
+   * @throws Exception exception
+   */
+  @Test
+  public void corruptIndex() throws Exception {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    new Open(DB).execute(context);
+    try {
+      final IOFile file = GeoIndexBuilder.file(context.data());
+      final IOFile copy = new IOFile(file.path() + ".copy");
+      final byte[] bytes = file.read();
+      // unknown packing strategy, unknown curve, truncated file
+      final byte[] packing = bytes.clone(), curve = bytes.clone();
+      packing[39] = 9;
+      curve[47] = 9;
+      try {
+        for(final byte[] b : new byte[][] { packing, curve,
+            Arrays.copyOf(bytes, bytes.length - 1) }) {
+          copy.write(b);
+          try {
+            PackedRTree.open(copy);
+            fail("Corrupt index was opened.");
+          } catch(final IOException ex) {
+            // expected
+          }
+        }
+      } finally {
+        copy.delete();
+      }
+    } finally {
+      new Close().execute(context);
+    }
+  }
+
+  /** Test method. */
+  @Test
+  public void nearest() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String point = "<gml:Point><gml:coordinates>6,6</gml:coordinates></gml:Point>";
+    runQuery("string-join(for $n in idx:nearest('" + DB + "', " + point + ", 3) " +
+        "return name($n/..), ' ')", "b c a");
+    runQuery("count(idx:nearest('" + DB + "', " + point + ", 10))", "4");
+    runQuery("count(idx:nearest('" + DB + "', " + point + ", 0))", "0");
+
+    // closest pair, including geometries that have been added after indexing
+    final String pair = "string-join(for $n in idx:nearest-neighbour('" + DB + "') " +
+        "order by name($n/..) return name($n/..), ' ')";
+    runQuery(pair, "a b");
+    query("insert node <e><gml:Point xmlns:gml='http://www.opengis.net/gml'>" +
+        "<gml:coordinates>2,2</gml:coordinates></gml:Point></e> " +
+        "as last into db:open('" + DB + "')/features");
+    runQuery(pair, "a e");
+    query("delete node db:open('" + DB + "')//e");
+    runQuery(pair, "a b");
+  }
+
+  /** Test method. */
+  @Test
+  public void join() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    runQuery("idx:create-index('" + DB2 + "')", "2");
+    // pairs are returned in the order of the traversal
+    final String pairs = "string-join(let $j := idx:join('" + DB + "', '" + DB2 +
+        "', '%') for $i in 1 to count($j) idiv 2 " +
+        "let $p := concat(name($j[$i * 2 - 1]/..), name($j[$i * 2]/..)) " +
+        "order by $p return $p, ' ')";
+    runQuery(pairs.replace("%", "intersects"), "ay by cz dz");
+    runQuery(pairs.replace("%", "within"), "ay by dz");
+    runQuery("count(idx:join('" + DB + "', '" + DB2 + "', 'intersects'))", "8");
+    // disjoint geometries are not found via the index
+    runError("idx:join('" + DB + "', '" + DB2 + "', 'disjoint')", GeoErrors.qname(17));
+  }
+
+  /** Test method. */
+  @Test
+  public void select() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String nodes = "db:open('" + DB + "')//gml:*";
+    final String box = "<gml:Polygon><gml:outerBoundaryIs><gml:LinearRing>" +
+        "<gml:coordinates>0,0 6,0 6,6 0,6 0,0</gml:coordinates></gml:LinearRing>" +
+        "</gml:outerBoundaryIs></gml:Polygon>";
+    runQuery("string-join(idx:select(" + nodes + ", " + box + ", 'intersects')" +
+        "/name(..), ' ')", "a b");
+    // geometries of the nodes are within the query geometry
+    runQuery("string-join(idx:select(" + nodes + ", " + box + ", 'within')" +
+        "/name(..), ' ')", "a b");
+    runQuery("count(idx:select(" + nodes + ", " + box + ", 'contains'))", "0");
+    // nested geometries are found as well
+    runQuery("string-join(idx:select(" + nodes + ", <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>25,25 35,25 35,35 25,35 25,25" +
+        "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>, " +
+        "'intersects')/local-name(), ' ')", "MultiPoint Point");
+    // nodes of several databases
+    runQuery("string-join(idx:select((" + nodes + ", db:open('" + DB2 +
+        "')//gml:Polygon), " + box + ", 'intersects')/name(..), ' ')", "a b y");
+    // nodes without index
+    runQuery("count(idx:select((<gml:Point><gml:coordinates>1,1</gml:coordinates>" +
+        "</gml:Point>, <gml:Point><gml:coordinates>9,9</gml:coordinates></gml:Point>), " +
+        box + ", 'intersects'))", "1");
+
+    runQuery("idx:estimate('" + DB + "', " + box + ")", "2");
+    runQuery("idx:selectivity('" + DB + "', " + box + ", 'intersects')", "0.5");
+    runQuery("idx:selectivity('" + DB + "', " + box + ", 'disjoint')", "1");
+  }
+
+  /** Test method. */
+  @Test
+  public void predicates() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String box = polygon("0,0 6,0 6,6 0,6 0,0");
+    final String inner = polygon("12,12 18,12 18,18 12,18 12,12");
+    runPro("contains", box, "a b");
+    runPro("covers", box, "a b");
+    runPro("within", inner, "c");
+    runPro("coveredBy", inner, "c");
+    // geometries outside the envelope of the query geometry are disjoint
+    runPro("disjoint", box, "c d");
+    runPro("disjoint", box + ", 1", "c");
+    // topological equality: the vertices start at another corner
+    runPro("equals", polygon("20,20 10,20 10,10 20,10 20,20"), "c");
+    runPro("touches", polygon("20,10 30,10 30,20 20,20 20,10"), "c");
+    runPro("overlaps", polygon("15,15 25,15 25,25 15,25 15,15"), "c");
+    runPro("crosses", "<gml:LineString><gml:coordinates>0,15 25,15" +
+        "</gml:coordinates></gml:LineString>", "c");
+
+    // relate: the query geometry contains the geometries of the database
+    runPro("relate", box + ", 'T*****FF*'", "a b");
+    runPro("relate", box + ", 'T*F**F***'", "");
+    // select: the geometries of the nodes are within the query geometry
+    final String nodes = "db:open('" + DB + "')//gml:*";
+    runQuery("string-join(idx:select(" + nodes + ", " + box + ", 'T*F**F***')" +
+        "/name(..), ' ')", "a b");
+    runQuery("count(idx:select(" + nodes + ", " + box + ", 'T*****FF*'))", "0");
+    runQuery("string-join(idx:select(" + nodes + ", " + inner + ", 'T*****FF*')" +
+        "/name(..), ' ')", "c");
+    runError("import module namespace pro='http://expath.org/ns/pro-geo-index'; " +
+        "declare namespace gml='http://www.opengis.net/gml';" +
+        "pro:relate('" + DB + "', " + box + ", 'T*F')", GeoErrors.qname(11));
+  }
+
+  /** Test method. */
+  @Test
+  public void indexInfo() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String info = "idx:index-info('" + DB + "')";
+    runQuery(info + "/database/string()", "geoindex");
+    runQuery(info + "/entries/string()", "4");
+    runQuery("string-join(" + info + "/(nodes, leaves, depth, fanout), ' ')",
+        "1 1 1 4");
+    runQuery("string-join(" + info + "/(capacity, packing, dims), ' ')", "10 str 2");
+    runQuery("string-join(" + info + "/(area, overlap, added, deleted, queries), ' ')",
+        "841 0 0 0 0");
+    runQuery("count(idx:select(db:open('" + DB + "')//gml:*, <gml:Point>" +
+        "<gml:coordinates>5,5</gml:coordinates></gml:Point>, 'intersects'))", "1");
+    runQuery("string-join(" + info + "/(queries, candidates, hits), ' ')", "1 1 1");
+    runQuery("string-join(" + info + "/(merge-failures, count(merge-error)), ' ')",
+        "0 0");
+  }
+
+  /** Test method. */
+  @Test
+  public void indexOptions() {
+    final String info = "idx:index-info('" + DB + "')";
+    final String query = "string-join(idx:query('" + DB + "', <gml:Polygon>" +
+        "<gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>0,0 12,0 12,12 0,12 0,0" +
+        "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>)" +
+        "/name(..), ' ')";
+    for(final String packing : new String[] { "str", "hilbert", "split" }) {
+      runQuery("idx:create-index('" + DB + "', 'capacity=2,packing=" + packing + "')",
+          "4");
+      runQuery("string-join(" + info + "/(nodes, leaves, depth, fanout), ' ')",
+          "3 2 2 2");
+      runQuery("string-join(" + info + "/(capacity, packing), ' ')", "2 " + packing);
+      runQuery(query, "a b c");
+    }
+    runQuery("idx:create-index('" + DB + "', '')", "4");
+    runQuery(info + "/capacity/string()", "10");
+  }
+
+  /** Test method. */
+  @Test
+  public void spilledIndex() {
+    // entries that exceed the buffer are sorted in runs on disk
+    final String info = "idx:index-info('" + DB + "')";
+    final String query = "string-join(idx:query('" + DB + "', <gml:Polygon>" +
+        "<gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>0,0 12,0 12,12 0,12 0,0" +
+        "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>)" +
+        "/name(..), ' ')";
+    for(final String packing : new String[] { "str", "hilbert" }) {
+      runQuery("idx:create-index('" + DB + "', 'capacity=2,buffer=2,points=hilbert," +
+          "packing=" + packing + "')", "4");
+      runQuery("string-join(" + info + "/(nodes, leaves, depth, fanout), ' ')",
+          "3 2 2 2");
+      runQuery(query, "a b c");
+    }
+  }
+
+  /** Test method. */
+  @Test
+  public void updateIndex() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    final String query = "idx:query('" + DB + "', <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>0,0 6,0 6,6 0,6 0,0</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>)/name(..)";
+    // added and deleted geometries are considered without rebuilding the index
+    query("insert node <e><gml:Point xmlns:gml='http://www.opengis.net/gml'>" +
+        "<gml:coordinates>2,2</gml:coordinates></gml:Point></e> " +
+        "as first into db:open('" + DB + "')/features");
+    query("delete node db:open('" + DB + "')//a");
+    runQuery("string-join(" + query + ", ' ')", "e b");
+    // updated values are detected, and invalid geometries are skipped
+    final String coords = "db:open('" + DB + "')//b//*:coordinates";
+    query("replace value of node " + coords + " with '50,50'");
+    runQuery("string-join(" + query + ", ' ')", "e");
+    // text values are replaced in place, without new node ids
+    query("replace value of node " + coords + "/text() with '5,5'");
+    runQuery("count(" + query + ")", "2");
+    query("insert node <f><gml:Point xmlns:gml='http://www.opengis.net/gml'>" +
+        "<gml:coordinates>x</gml:coordinates></gml:Point></f> " +
+        "as last into db:open('" + DB + "')/features");
+    runQuery("string-join(" + query + ", ' ')", "b e");
+    runQuery("idx:index-info('" + DB + "')/invalid/string()", "1");
+    query("delete node db:open('" + DB + "')//f");
+    query("delete node db:open('" + DB + "')//e");
+    query("insert node <a><gml:Point xmlns:gml='http://www.opengis.net/gml'>" +
+        "<gml:coordinates>1,1</gml:coordinates></gml:Point></a> " +
+        "as first into db:open('" + DB + "')/features");
+  }
+
+  /** Test method. */
+  @Test
+  public void invalidGeometries() {
+    // geometries that cannot be parsed are skipped and counted
+    final String insert = "insert node <f><gml:Point " +
+        "xmlns:gml='http://www.opengis.net/gml'><gml:coordinates>x</gml:coordinates>" +
+        "</gml:Point></f> as last into db:open('" + DB + "')/features";
+    query(insert);
+    runQuery("idx:create-index('" + DB + "')", "4");
+    runQuery("idx:index-info('" + DB + "')/invalid/string()", "1");
+    query("delete node db:open('" + DB + "')//f");
+    runQuery("idx:create-index('" + DB + "')", "4");
+    runQuery("idx:index-info('" + DB + "')/invalid/string()", "0");
+    // inserted geometries are found in the changes
+    query(insert);
+    runQuery("idx:index-info('" + DB + "')/invalid/string()", "1");
+    query("delete node db:open('" + DB + "')//f");
+  }
+
+  /** Test method. */
+  @Test
+  public void cachedGeometries() {
+    // cached geometries of database nodes are discarded if a value is replaced
+    final String x = "import module namespace geo='http://expath.org/ns/geo'; " +
+        "geo:x(db:open('" + DB + "')//b/*)";
+    final String coords = "db:open('" + DB + "')//b//*:coordinates";
+    query(x, "5");
+    query("replace value of node " + coords + " with '7,5'");
+    query(x, "7");
+    query("replace value of node " + coords + " with '5,5'");
+  }
+
+  /**
+   * Test method.
+   * @throws BaseXException database exception
+   */
+  @Test
+  public void pointIndex() throws BaseXException {
+    // lattice of 10 x 10 points
+    final StringBuilder sb = new StringBuilder(
+        "<points xmlns:gml='http://www.opengis.net/gml'>");
+    for(int x = 0; x < 10; x++) {
+      for(int y = 0; y < 10; y++) {
+        sb.append("<p><gml:Point><gml:coordinates>").append(x).append(',').append(y);
+        sb.append("</gml:coordinates></gml:Point></p>");
+      }
+    }
+    new CreateDB(DB3, sb.append("</points>").toString()).execute(context);
+    final String info = "idx:index-info('" + DB3 + "')";
+    for(final String curve : new String[] { "zorder", "hilbert" }) {
+      runQuery("idx:create-index('" + DB3 + "', 'points=" + curve + "')", "100");
+      runQuery("string-join(" + info + "/(curve, points), ' ')", curve + " 100");
+      runQuery("count(idx:query('" + DB3 + "', <gml:Polygon><gml:outerBoundaryIs>" +
+          "<gml:LinearRing><gml:coordinates>2,3 5,3 5,7 2,7 2,3</gml:coordinates>" +
+          "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>))", "20");
+      runQuery("count(idx:dwithin('" + DB3 + "', <gml:Point><gml:coordinates>5,5" +
+          "</gml:coordinates></gml:Point>, xs:double(2)))", "13");
+    }
+    // more runs than can be merged at once: the runs are merged in several passes
+    runQuery("idx:create-index('" + DB3 + "', 'buffer=1')", "100");
+    runQuery("count(idx:query('" + DB3 + "', <gml:Polygon><gml:outerBoundaryIs>" +
+        "<gml:LinearRing><gml:coordinates>2,3 5,3 5,7 2,7 2,3</gml:coordinates>" +
+        "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon>))", "20");
+    new DropDB(DB3).execute(context);
+  }
+
+  /** Test method. */
+  @Test
+  public void geographic() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    // distances in meters: b is 629 km away from a
+    final String dwithin = "idx:dwithin('" + DB + "', <gml:Point srsName='EPSG:4326'>" +
+        "<gml:coordinates>1,1</gml:coordinates></gml:Point>, ";
+    runQuery("string-join(" + dwithin + "xs:double(600000))/name(..), ' ')", "a");
+    runQuery("string-join(" + dwithin + "xs:double(700000))/name(..), ' ')", "a b");
+    // near the pole, d is nearest on the sphere, and a is nearest in the plane
+    final String pole = "<gml:coordinates>-150,80</gml:coordinates></gml:Point>";
+    runQuery("idx:nearest('" + DB + "', <gml:Point srsName='EPSG:4326'>" + pole +
+        ", 1)/name(..)", "d");
+    runQuery("idx:nearest('" + DB + "', <gml:Point>" + pole + ", 1)/name(..)", "a");
+  }
+
+  /** Test method. */
+  @Test
+  public void tile() {
+    runQuery("idx:create-index('" + DB + "')", "4");
+    // the whole world: all geometries are clustered in a single cell
+    final String tile = "idx:tile('" + DB + "', ";
+    runQuery(tile + "0, 0, 0)/cluster/@count/string()", "4");
+    runQuery("string-join(" + tile + "2, 2, 1)/*/name(), ' ')", "feature cluster");
+    runQuery(tile + "2, 2, 1)/cluster/@count/string()", "3");
+    runQuery(tile + "2, 2, 1)/@features/string()", "4");
+    // large geometries are returned by all tiles they intersect, and clipped
+    runQuery("string-join(for $f in " + tile + "5, 16, 15)/feature " +
+        "return db:open-pre('" + DB + "', xs:integer($f/@pre))/name(..), ' ')", "b a c");
+    runQuery("contains(" + tile + "4, 8, 7), '20.0,20.0')", "true");
+    runQuery("contains(" + tile + "5, 16, 15), '20.0,20.0')", "false");
+    // tiles are cached, and each request returns a copy of the cached tile
+    final long hits = GeoTiles.hits();
+    runQuery("deep-equal(" + tile + "3, 4, 3), " + tile + "3, 4, 3))", "true");
+    assertEquals(hits + 1, GeoTiles.hits());
+  }
+
+  /**
+   * Query.
+   * @param query query
+   * @param result result
+   */
+  private static void runQuery(final String query, final String result) {
+    query("import module namespace idx='http://expath.org/ns/geo-index'; " +
+          "declare namespace gml='http://www.opengis.net/gml';" + query, result);
+  }
+
+  /**
+   * Runs an indexed predicate of the pro module and compares the names of the
+   * parents of the results.
+   * @param pred name of the predicate
+   * @param args query geometry and further arguments
+   * @param result names of the parents
+   */
+  private static void runPro(final String pred, final String args, final String result) {
+    query("import module namespace pro='http://expath.org/ns/pro-geo-index'; " +
+        "declare namespace gml='http://www.opengis.net/gml';" +
+        "string-join(pro:" + pred + "('" + DB + "', " + args + ")/name(..), ' ')",
+        result);
+  }
+
+  /**
+   * Returns a polygon with the specified coordinates of its exterior ring.
+   * @param coords coordinates
+   * @return polygon
+   */
+  private static String polygon(final String coords) {
+    return "<gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+        coords + "</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs>" +
+        "</gml:Polygon>";
+  }
+
+  /**
+   * Checks if a query yields the specified error code.
+   * @param query query
+   * @param error expected error code
+   */
+  private static void runError(final String query, final QNm error) {
+    final QueryProcessor qp = new QueryProcessor("import module namespace " +
+        "idx='http://expath.org/ns/geo-index'; " + query, context);
+    try {
+      qp.execute();
+      fail("Query did not fail:\n" + query + "\n[E] " + error);
+    } catch(final QueryException ex) {
+      if(!ex.qname().eq(error))
+        fail("Wrong error code:\n[E] " + error + "\n[F] " + ex.qname());
+    } finally {
+      qp.close();
+    }
+  }
+}
@@ -53,7 +53,7 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:srid(text {'a'})", FUNCMP.qname());
     runError("geo:srid(<gml:unknown/>)", GeoErrors.qname(1));
     runError("geo:srid(<gml:LinearRing><gml:pos>1,1 20,1 50,30 1,1</gml:pos>" +
-            "</gml:LinearRing>)", GeoErrors.qname(6));
+            "</gml:LinearRing>)", GeoErrors.qname(9));
   }
 
   /** Test method. */
@@ -69,7 +69,7 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:envelope(text {'a'})", FUNCMP.qname());
     runError("geo:envelope(<gml:unknown/>)", GeoErrors.qname(1));
     runError("geo:envelope(<gml:LinearRing><gml:pos>1,1 20,1 50,30 1,1</gml:pos>" +
-            "</gml:LinearRing>)", GeoErrors.qname(6));
+            "</gml:LinearRing>)", GeoErrors.qname(9));
   }
 
   /** Test method. */
@@ -125,8 +125,8 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:boundary(text {'a'})", FUNCMP.qname());
     runError("geo:boundary(a)", NOCTX.qname());
     runError("geo:boundary(<gml:geo/>)", GeoErrors.qname(1));
-    runError("geo:boundary(<gml:Point><gml:pos>1 2</gml:pos></gml:Point>)",
-        GeoErrors.qname(6));
+    runError("geo:boundary(<gml:Point><gml:pos/></gml:Point>)",
+        GeoErrors.qname(9));
   }
 
   /** Test method. */
@@ -243,6 +243,16 @@ public final class GeoTest extends AdvancedQueryTest {
             "<gml:Point><gml:coordinates>1.00,1.00</gml:coordinates></gml:Point>)",
             "true");
 
+    // constant arguments in a loop are prepared
+    runQuery("let $p := <gml:Polygon><gml:outerBoundaryIs><gml:LinearRing>" +
+            "<gml:coordinates>0,0 10,0 10,10 0,10 0,0</gml:coordinates>" +
+            "</gml:LinearRing></gml:outerBoundaryIs></gml:Polygon> " +
+            "for $i in (1, 5, 20) " +
+            "let $q := <gml:Point><gml:coordinates>{ $i },{ $i }</gml:coordinates>" +
+            "</gml:Point> " +
+            "return (geo:contains($p, $q), geo:contains($q, $p))",
+            "true false true false false false");
+
     runError("geo:contains()", FUNCARGSG.qname());
     runError("geo:contains(" +
             "<gml:Point><gml:coordinates>1,1</gml:coordinates></gml:Point>, " +
@@ -306,6 +316,27 @@ public final class GeoTest extends AdvancedQueryTest {
             "<gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
             "10,10 20,10 30,40 20,40 10,10</gml:coordinates></gml:LinearRing>" +
             "</gml:outerBoundaryIs></gml:Polygon>)", "60");
+    // geodesic distances in meters
+    runQuery("round(geo:distance(<gml:Point srsName='EPSG:4326'><gml:coordinates>0,0" +
+        "</gml:coordinates></gml:Point>, <gml:Point srsName='EPSG:4326'>" +
+        "<gml:coordinates>1,0</gml:coordinates></gml:Point>))", "111195");
+    runQuery("round(geo:distance(<gml:Point srsName='urn:ogc:def:crs:EPSG::4326'>" +
+        "<gml:coordinates>0,0</gml:coordinates></gml:Point>, " +
+        "<gml:Point srsName='urn:ogc:def:crs:EPSG::4326'>" +
+        "<gml:coordinates>0,1</gml:coordinates></gml:Point>))", "111195");
+    runQuery("round(geo:distance(<gml:Point srsName='EPSG:4326'><gml:coordinates>0,0" +
+        "</gml:coordinates></gml:Point>, <gml:Point srsName='EPSG:3857'>" +
+        "<gml:coordinates>111319.49079327357,0</gml:coordinates></gml:Point>))",
+        "111195");
+    runQuery("round(geo:distance(<gml:Point srsName='EPSG:3857'><gml:coordinates>" +
+        "111319.49079327357,0</gml:coordinates></gml:Point>, <gml:Point " +
+        "srsName='EPSG:4326'><gml:coordinates>0,0</gml:coordinates></gml:Point>))",
+        "111195");
+    // segments are great-circle arcs, which bend towards the pole
+    runQuery("round(geo:distance(<gml:LineString srsName='EPSG:4326'><gml:coordinates>" +
+        "-10,60 10,60</gml:coordinates></gml:LineString>, <gml:Point " +
+        "srsName='EPSG:4326'><gml:coordinates>0,61</gml:coordinates></gml:Point>))",
+        "69125");
 
     runError("geo:distance()", FUNCARGSG.qname());
     runError("geo:distance(" +
@@ -338,6 +369,13 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:buffer(<gml:LinearRing><gml:coordinates>1,1 55,99 1,1" +
             "</gml:coordinates></gml:LinearRing>, 1)", FUNCMP.qname());
     runError("geo:buffer(xs:double(1))", FUNCARGSG.qname());
+
+    // buffer of a geographic point in meters
+    final String point = "<gml:Point srsName='EPSG:4326'><gml:coordinates>10,50" +
+        "</gml:coordinates></gml:Point>";
+    runQuery("let $b := geo:buffer(" + point + ", xs:double(1000)) " +
+        "return round(geo:distance(" + point + ", <gml:Point srsName='EPSG:4326'>{ " +
+        "geo:pointN(geo:exteriorRing($b), 1)/* }</gml:Point>))", "1000");
   }
 
   /** Test method. */
@@ -356,6 +394,30 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:convexHull(<gml:LinearRing><gml:coordinates>1,1 55,99 1,1" +
             "</gml:coordinates></gml:LinearRing>)", GeoErrors.qname(8));
     runError("geo:convexHull()", FUNCARGSG.qname());
+  }
+
+  /** Test method. */
+  @Test
+  public void format() {
+    final String ring = "<gml:LinearRing><gml:coordinates>1,1 55,99 2,2 1,1" +
+        "</gml:coordinates></gml:LinearRing>";
+    runQuery("geo:convexHull(" + ring + ", 'wkt')", "POLYGON ((1 1, 55 99, 2 2, 1 1))");
+    runQuery("geo:convexHull(" + ring + ", 'wkb') eq " +
+        "geo:asBinary(geo:convexHull(" + ring + "))", "true");
+    runQuery("geo:convexHull(" + ring + ", 'gml')",
+        "<gml:Polygon xmlns:gml=\"http://www.opengis.net/gml\">" +
+        "<gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>" +
+        "1.0,1.0 55.0,99.0 2.0,2.0 1.0,1.0</gml:coordinates></gml:LinearRing>" +
+        "</gml:outerBoundaryIs></gml:Polygon>");
+    runQuery("geo:buffer(<gml:Point><gml:coordinates>1,1</gml:coordinates>" +
+        "</gml:Point>, xs:double(0), 'wkt')", "POLYGON EMPTY");
+    runQuery("geo:union(<gml:Point><gml:coordinates>1,1</gml:coordinates></gml:Point>," +
+        "<gml:Point><gml:coordinates>2,2</gml:coordinates></gml:Point>, 'wkt')",
+        "MULTIPOINT ((1 1), (2 2))");
+    runQuery("geo:intersection(" + ring + ", <gml:Point><gml:coordinates>1,1" +
+        "</gml:coordinates></gml:Point>, 'wkt')", "POINT (1 1)");
+
+    runError("geo:convexHull(" + ring + ", 'svg')", GeoErrors.qname(13));
       }
 
   /** Test method. */
@@ -409,6 +471,31 @@ public final class GeoTest extends AdvancedQueryTest {
             "</gml:coordinates></gml:Point>)", FUNCMP.qname());
   }
 
+  /** Test method. */
+  @Test
+  public void aggregate() {
+    final String squares = "for $i in 0 to 2 let $c := string-join(" +
+        "for $p in ((0,0), (4,0), (4,4), (0,4), (0,0)) return string($p + $i * 2), ' ')" +
+        " return <gml:Polygon><gml:outerBoundaryIs><gml:LinearRing><gml:coordinates>{" +
+        "replace($c, '(\\d+) (\\d+)', '$1,$2')}</gml:coordinates></gml:LinearRing>" +
+        "</gml:outerBoundaryIs></gml:Polygon>";
+    runQuery("geo:area(geo:unionAll(" + squares + "))", "40");
+    runQuery("geo:geometryType(geo:unionAll(" + squares + "))", "gml:Polygon");
+    runQuery("geo:asText(geo:extent(" + squares + "))",
+        "POLYGON ((0 0, 0 8, 8 8, 8 0, 0 0))");
+    runQuery("geo:numGeometries(geo:collect(" + squares + "))", "3");
+    runQuery("geo:geometryType(geo:collect(" + squares + "))", "gml:MultiPolygon");
+    runQuery("local-name(geo:collect((<gml:Point><gml:coordinates>1,1" +
+        "</gml:coordinates></gml:Point>, <gml:LineString><gml:coordinates>1,1 2,2" +
+        "</gml:coordinates></gml:LineString>)))", "MultiGeometry");
+    runQuery("geo:area(geo:convexHullAll(" + squares + "))", "48");
+    runQuery("geo:unionAll(())", "<gml:MultiGeometry " +
+        "xmlns:gml=\"http://www.opengis.net/gml\"/>");
+
+    runError("geo:unionAll((" + squares + ", 1))", FUNCMP.qname());
+    runError("geo:extent(<gml:unknown/>)", GeoErrors.qname(1));
+  }
+
   /** Test method. */
   @Test
   public void difference() {
@@ -534,6 +621,88 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:z(a)", NOCTX.qname());
   }
 
+  /** Test method. */
+  @Test
+  public void coordinates() {
+    runQuery("geo:asText(<gml:LineString><gml:coordinates>" +
+            " 1.5,-2 \n\t3e1, 4.25E-1 </gml:coordinates></gml:LineString>)",
+            "LINESTRING (1.5 -2, 30 0.425)");
+    runQuery("geo:asText(<gml:LineString><gml:coordinates cs=' ' ts=';' decimal=','>" +
+            "1,5 2 ; 3 4,75</gml:coordinates></gml:LineString>)",
+            "LINESTRING (1.5 2, 3 4.75)");
+    runQuery("geo:z(<gml:Point><gml:coordinates cs=';'>1;2;3</gml:coordinates>" +
+            "</gml:Point>)", "3");
+    runQuery("geo:numPoints(<gml:LineString><gml:coordinates>1,2,3 4,5,6" +
+            "</gml:coordinates></gml:LineString>)", "2");
+    runQuery("geo:numPoints(<gml:LineString><gml:coordinates>" +
+            "123456789.123456789,987654321.987654321 -123456789.123456789," +
+            "-987654321.987654321 0.00000000001,0.00000000002" +
+            "</gml:coordinates></gml:LineString>)", "3");
+    // leading zeros are no significant digits
+    runQuery("geo:y(<gml:Point><gml:coordinates>1,0.0000000000000000001" +
+            "</gml:coordinates></gml:Point>) = 1e-19", "true");
+    runQuery("geo:y(<gml:Point><gml:pos>1 0.000000000000000012345</gml:pos>" +
+            "</gml:Point>) = 1.2345e-17", "true");
+    runQuery("geo:x(<gml:Point><gml:coordinates>0000000000000000000012.5,1" +
+            "</gml:coordinates></gml:Point>)", "12.5");
+
+    runError("geo:numPoints(<gml:LineString><gml:coordinates>1,2 3,4,5" +
+            "</gml:coordinates></gml:LineString>)", GeoErrors.qname(9));
+    runError("geo:numPoints(<gml:LineString><gml:coordinates>1,2 3,a" +
+            "</gml:coordinates></gml:LineString>)", GeoErrors.qname(9));
+    runError("geo:numPoints(<gml:LineString><gml:coordinates>1,2 3," +
+            "</gml:coordinates></gml:LineString>)", GeoErrors.qname(9));
+  }
+
+  /** Test method. */
+  @Test
+  public void gml3() {
+    runQuery("geo:asText(<gml:LineString><gml:posList>1 2\n 3.5 -4</gml:posList>" +
+            "</gml:LineString>)", "LINESTRING (1 2, 3.5 -4)");
+    runQuery("geo:numPoints(<gml:LineString srsDimension='3'><gml:posList>" +
+            "1 2 3 4 5 6</gml:posList></gml:LineString>)", "2");
+    runQuery("geo:z(<gml:Point><gml:pos>1 2 3</gml:pos></gml:Point>)", "3");
+    runQuery("geo:asText(<gml:LineString><gml:pos>1 2</gml:pos><gml:pos>3 4</gml:pos>" +
+            "</gml:LineString>)", "LINESTRING (1 2, 3 4)");
+    runQuery("geo:area(<gml:Polygon><gml:exterior><gml:LinearRing><gml:posList>" +
+            "0 0 10 0 10 10 0 10 0 0</gml:posList></gml:LinearRing></gml:exterior>" +
+            "<gml:interior><gml:LinearRing><gml:posList>2 2 4 2 4 4 2 4 2 2" +
+            "</gml:posList></gml:LinearRing></gml:interior></gml:Polygon>)", "96");
+    runQuery("geo:asText(<g:Point xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:pos>1 2</g:pos></g:Point>)", "POINT (1 2)");
+    runQuery("geo:asText(<g:Curve xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:segments><g:LineStringSegment><g:posList>0 0 1 1</g:posList>" +
+            "</g:LineStringSegment><g:LineStringSegment><g:posList>1 1 2 0</g:posList>" +
+            "</g:LineStringSegment></g:segments></g:Curve>)",
+            "LINESTRING (0 0, 1 1, 2 0)");
+    runQuery("geo:asText(<g:Surface xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:patches><g:PolygonPatch><g:exterior><g:LinearRing><g:posList>" +
+            "0 0 1 0 1 1 0 0</g:posList></g:LinearRing></g:exterior></g:PolygonPatch>" +
+            "</g:patches></g:Surface>)", "POLYGON ((0 0, 1 0, 1 1, 0 0))");
+    runQuery("geo:asText(<g:MultiSurface xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:surfaceMember><g:Polygon><g:exterior><g:LinearRing><g:posList>" +
+            "0 0 1 0 1 1 0 0</g:posList></g:LinearRing></g:exterior></g:Polygon>" +
+            "</g:surfaceMember><g:surfaceMember><g:Surface><g:patches><g:PolygonPatch>" +
+            "<g:exterior><g:LinearRing><g:posList>2 2 3 2 3 3 2 2</g:posList>" +
+            "</g:LinearRing></g:exterior></g:PolygonPatch></g:patches></g:Surface>" +
+            "</g:surfaceMember></g:MultiSurface>)",
+            "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((2 2, 3 2, 3 3, 2 2)))");
+    runQuery("geo:asText(<g:MultiCurve xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:curveMember><g:LineString><g:posList>0 0 1 1</g:posList></g:LineString>" +
+            "</g:curveMember><g:curveMember><g:Curve><g:segments><g:LineStringSegment>" +
+            "<g:posList>2 2 3 3</g:posList></g:LineStringSegment></g:segments>" +
+            "</g:Curve></g:curveMember></g:MultiCurve>)",
+            "MULTILINESTRING ((0 0, 1 1), (2 2, 3 3))");
+
+    runError("geo:numPoints(<gml:LineString><gml:posList>1 2 3</gml:posList>" +
+            "</gml:LineString>)", GeoErrors.qname(9));
+    runError("geo:numPoints(<gml:LineString><gml:pos>1 2</gml:pos>" +
+            "<gml:pos>1 2 3</gml:pos></gml:LineString>)", GeoErrors.qname(9));
+    runError("geo:asText(<g:MultiCurve xmlns:g='http://www.opengis.net/gml/3.2'>" +
+            "<g:curveMember><g:Point><g:pos>1 2</g:pos></g:Point></g:curveMember>" +
+            "</g:MultiCurve>)", GeoErrors.qname(6));
+  }
+
   /** Test method. */
   @Test
   public void length() {
@@ -861,6 +1030,18 @@ public final class GeoTest extends AdvancedQueryTest {
     runError("geo:interiorRingN()", FUNCARGSG.qname());
   }
 
+  /** Test method. */
+  @Test
+  public void cache() {
+    // the counters are shared by all queries: compare them before and after the query
+    final long misses = GeoCache.misses(), hits = GeoCache.hits();
+    // the geometry of a repeatedly used node is parsed once
+    runQuery("let $p := <gml:Point><gml:coordinates>1,1</gml:coordinates></gml:Point> " +
+            "for $i in 1 to 3 return geo:dimension($p)", "0 0 0");
+    assertEquals(1, GeoCache.misses() - misses);
+    assertEquals(2, GeoCache.hits() - hits);
+  }
+
   /**
    * Query.
    * @param query query